@@ -0,0 +1,163 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioItem;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+
+/**
+ * A burst of {@code requests} /play loads at once, against a source that takes {@code latency} ms to answer (like a search round trip). Loads go through the same pool
+ * {@link AudioHandler} uses, which subclasses pick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public abstract class AbstractLoaderBenchmark {
+	
+	@Param({"500"})
+	public int requests;
+	
+	@Param({"200"})
+	public long latency;
+	
+	private AudioPlayerManager playerManager;
+	private ExecutorService loaders;
+	
+	/**
+	 * @return the pool loads run on
+	 */
+	protected abstract ExecutorService createLoaders();
+	
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		playerManager = new DefaultAudioPlayerManager();
+		playerManager.registerSourceManager(new SlowSource(latency));
+		loaders = createLoaders();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		loaders.shutdownNow();
+		playerManager.shutdown();
+	}
+	
+	@Benchmark
+	public void burst() throws InterruptedException
+	{
+		CountDownLatch done = new CountDownLatch(requests);
+		
+		AudioLoadResultHandler handler = new AudioLoadResultHandler()
+		{
+			@Override
+			public void trackLoaded(AudioTrack track)
+			{
+				done.countDown();
+			}
+			
+			@Override
+			public void playlistLoaded(AudioPlaylist playlist)
+			{
+				done.countDown();
+			}
+			
+			@Override
+			public void noMatches()
+			{
+				done.countDown();
+			}
+			
+			@Override
+			public void loadFailed(FriendlyException exception)
+			{
+				done.countDown();
+			}
+		};
+		
+		for(int i = 0; i < requests; i++)
+		{
+			AudioReference reference = new AudioReference("slow:" + i, null);
+			loaders.execute(() -> playerManager.loadItemSync(reference, handler));
+		}
+		
+		done.await();
+	}
+	
+	/**
+	 * Blocks for a while before answering, like a source waiting on the network.
+	 */
+	private static class SlowSource implements AudioSourceManager {
+		
+		private final long latency;
+		
+		private SlowSource(long latency)
+		{
+			this.latency = latency;
+		}
+		
+		@Override
+		public String getSourceName()
+		{
+			return "slow";
+		}
+		
+		@Override
+		public AudioItem loadItem(AudioPlayerManager manager, AudioReference reference)
+		{
+			try {
+				Thread.sleep(latency);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			
+			return Synthetic.track(reference.identifier);
+		}
+		
+		@Override
+		public boolean isTrackEncodable(AudioTrack track)
+		{
+			return false;
+		}
+		
+		@Override
+		public void encodeTrack(AudioTrack track, DataOutput output)
+		{
+		}
+		
+		@Override
+		public AudioTrack decodeTrack(AudioTrackInfo trackInfo, DataInput input)
+		{
+			return null;
+		}
+		
+		@Override
+		public void shutdown()
+		{
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+/**
+ * Text that's built for every line of every queue listing and track message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormattingBenchmark {
+	
+	private AudioTrack track;
+	private AudioRequest request;
+	/** Not constant so it isn't folded away */
+	private long duration = 3 * 60 * 60 * 1000L + 25 * 60 * 1000L + 7 * 1000L;
+	
+	@Setup
+	public void setup()
+	{
+		track = Synthetic.track("Some *markdown* in the title");
+		request = new AudioRequest(track, Synthetic.GUILD_ID, Synthetic.CHANNEL_ID);
+	}
+	
+	@Benchmark
+	public String parseDuration()
+	{
+		return AudioHandler.parseDuration(duration);
+	}
+	
+	@Benchmark
+	public String applyTrack()
+	{
+		return new RequestInfoBuilder().bold().showDuration().showLink().showPosition().apply(track);
+	}
+	
+	@Benchmark
+	public String applyRequest()
+	{
+		return new RequestInfoBuilder().showDuration().showLink().apply(request);
+	}
+}
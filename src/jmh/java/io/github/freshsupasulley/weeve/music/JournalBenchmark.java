@@ -0,0 +1,124 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+
+/**
+ * Startup: replaying the queue log of {@code guilds} guilds, each with something playing and {@code tracks} more queued. Replaying from a fresh snapshot is the usual case,
+ * replaying a whole log is what happens after a crash right before compacting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JournalBenchmark {
+	
+	@Param({"1000"})
+	public int guilds;
+	
+	@Param({"20"})
+	public int tracks;
+	
+	@Param({"snapshot", "log"})
+	public String from;
+	
+	private AudioPlayerManager playerManager;
+	private Path directory;
+	/** The files replaying starts from, put back before every replay since replaying compacts */
+	private Map<Path, byte[]> files;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		playerManager = Synthetic.playerManager();
+		directory = Files.createTempDirectory("weeve-journal");
+		
+		// Never compacts on its own, so everything stays in the log
+		QueueJournal journal = new QueueJournal(directory, playerManager, Long.MAX_VALUE);
+		journal.replay();
+		
+		for(long guildID = 1; guildID <= guilds; guildID++)
+		{
+			journal.playing(guildID, Synthetic.request("Playing " + guildID), Synthetic.CHANNEL_ID);
+			journal.queued(guildID, 0, Synthetic.requests(tracks));
+			journal.position(guildID, 60 * 1000);
+		}
+		
+		journal.close();
+		
+		// Replaying once compacts it all into a snapshot
+		if(from.equals("snapshot"))
+		{
+			journal = new QueueJournal(directory, playerManager, Long.MAX_VALUE);
+			journal.replay();
+			journal.close();
+		}
+		
+		files = new HashMap<Path, byte[]>();
+		
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+		{
+			for(Path file : stream)
+			{
+				files.put(file.getFileName(), Files.readAllBytes(file));
+			}
+		}
+	}
+	
+	@Setup(Level.Invocation)
+	public void restoreFiles() throws IOException
+	{
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+		{
+			for(Path file : stream)
+			{
+				Files.delete(file);
+			}
+		}
+		
+		for(Map.Entry<Path, byte[]> file : files.entrySet())
+		{
+			Files.write(directory.resolve(file.getKey()), file.getValue());
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		restoreFiles();
+		
+		for(Path file : files.keySet())
+		{
+			Files.delete(directory.resolve(file));
+		}
+		
+		Files.delete(directory);
+	}
+	
+	@Benchmark
+	public List<QueueJournal.RestoredGuild> replay() throws Exception
+	{
+		QueueJournal journal = new QueueJournal(directory, playerManager, Long.MAX_VALUE);
+		List<QueueJournal.RestoredGuild> restored = journal.replay();
+		journal.close();
+		return restored;
+	}
+}
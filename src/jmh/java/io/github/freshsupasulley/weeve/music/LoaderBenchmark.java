@@ -0,0 +1,20 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.ExecutorService;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Load bursts on {@code threads} platform loader threads. {@link VirtualLoaderBenchmark} runs the same bursts on virtual threads.
+ */
+public class LoaderBenchmark extends AbstractLoaderBenchmark {
+	
+	@Param({"10", "100"})
+	public int threads;
+	
+	@Override
+	protected ExecutorService createLoaders()
+	{
+		return AudioExecutors.loaders(threads, false);
+	}
+}
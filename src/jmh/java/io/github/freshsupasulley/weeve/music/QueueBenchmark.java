@@ -0,0 +1,140 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
+
+/**
+ * Queue operations on a guild with something playing and a queue of {@code size} tracks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueBenchmark {
+	
+	/** Fresh tracks are made in batches for skipping */
+	private static final int REFILL_BATCH = 10000;
+	
+	@State(Scope.Thread)
+	public static class Guild {
+		
+		@Param({"10", "100", "1000", "10000", "100000"})
+		public int size;
+		
+		AudioHandler handler;
+		GuildMusicManager manager;
+		
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			handler = new AudioHandler(Synthetic.shards(), false);
+			manager = playing(handler, size);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			manager.destroy();
+			handler.shutdown();
+		}
+	}
+	
+	/**
+	 * Skipping pulls one off the queue, so each invocation puts a fresh one at the back to keep the size steady.
+	 */
+	@State(Scope.Thread)
+	public static class SkippingGuild {
+		
+		@Param({"10", "100", "1000", "10000", "100000"})
+		public int size;
+		
+		AudioHandler handler;
+		GuildMusicManager manager;
+		private List<AudioRequest> refill;
+		private int refilled;
+		
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			handler = new AudioHandler(Synthetic.shards(), false);
+			manager = playing(handler, size);
+			refill = Synthetic.requests(REFILL_BATCH);
+		}
+		
+		@Setup(Level.Invocation)
+		public void refill()
+		{
+			// Tracks can only be played once, so never reuse one that might've played
+			if(refilled == refill.size())
+			{
+				refill = Synthetic.requests(REFILL_BATCH);
+				refilled = 0;
+			}
+			
+			manager.queue(false, refill.get(refilled++), null);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			manager.destroy();
+			handler.shutdown();
+		}
+	}
+	
+	/**
+	 * @param handler a bare handler with no sources, so trials don't start real sources or link YouTube
+	 * @param size    number of queued tracks
+	 * @return a manager playing something with {@code size} tracks queued after it
+	 */
+	private static GuildMusicManager playing(AudioHandler handler, int size)
+	{
+		GuildMusicManager manager = new GuildMusicManager(handler, Synthetic.GUILD_ID);
+		
+		// The first one starts playing, the rest is queued
+		manager.queue(false, Synthetic.request("Playing"), null);
+		manager.queueAll(Synthetic.requests(size), false, null);
+		return manager;
+	}
+	
+	/**
+	 * Appends a track, then removes it again so the queue doesn't grow.
+	 */
+	@Benchmark
+	public String queue(Guild guild)
+	{
+		AudioRequest request = Synthetic.request("Queued");
+		guild.manager.queue(false, request, null);
+		// Positions start at 2 (on deck)
+		return guild.manager.removeTrack(guild.size + 2);
+	}
+	
+	@Benchmark
+	public String skipTracks(SkippingGuild guild)
+	{
+		return guild.manager.skipTracks(1);
+	}
+	
+	@Benchmark
+	public MessageCreateData getQueuePage(Guild guild)
+	{
+		return guild.manager.getQueuePage(1);
+	}
+	
+	@Benchmark
+	public MessageCreateData getLastQueuePage(Guild guild)
+	{
+		return guild.manager.getQueuePage(Integer.MAX_VALUE);
+	}
+}
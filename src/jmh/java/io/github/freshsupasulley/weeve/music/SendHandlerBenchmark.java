@@ -0,0 +1,40 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The 20ms frame path: what JDA does every frame for every guild that's playing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SendHandlerBenchmark {
+	
+	/** Starved players have nothing ready, which is the missed frame path */
+	@Param({"false", "true"})
+	public boolean starved;
+	
+	private AudioPlayerSendHandler sendHandler;
+	
+	@Setup
+	public void setup()
+	{
+		sendHandler = new AudioPlayerSendHandler(new SyntheticAudioPlayer(starved), mixer -> {}, new FrameHealth());
+	}
+	
+	@Benchmark
+	public ByteBuffer provideFrame()
+	{
+		return sendHandler.canProvide() ? sendHandler.provide20MsAudio() : null;
+	}
+}
@@ -0,0 +1,176 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioItem;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.channel.middleman.AudioChannel;
+import net.dv8tion.jda.api.managers.AudioManager;
+import net.dv8tion.jda.api.sharding.ShardManager;
+
+/**
+ * Stand-ins for Discord and real sources, so benchmarks only measure weeve.
+ */
+public class Synthetic {
+	
+	public static final long GUILD_ID = 1, CHANNEL_ID = 2;
+	
+	/** Long enough that nothing gets prefetched during a benchmark */
+	private static final long TRACK_LENGTH = 24 * 60 * 60 * 1000L;
+	
+	private static final SourceManager SOURCE = new SourceManager();
+	
+	/**
+	 * @return shards with one guild and voice channel, whose audio connections go nowhere. Music managers connect like they normally would (without logging that the channel is
+	 *         gone every time)
+	 */
+	public static ShardManager shards()
+	{
+		AudioChannel channel = stub(AudioChannel.class, Map.of());
+		Guild guild = stub(Guild.class, Map.of("getChannelById", channel, "getAudioManager", stub(AudioManager.class, Map.of())));
+		return stub(ShardManager.class, Map.of("getGuildById", guild));
+	}
+	
+	/**
+	 * @param answers what methods return by name. Everything else returns null (or 0 and false)
+	 * @return an implementation of the interface that does nothing else
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, Map<String, Object> answers)
+	{
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) ->
+		{
+			Object answer = answers.get(method.getName());
+			Class<?> returned = method.getReturnType();
+			
+			if(answer == null && returned.isPrimitive() && returned != void.class)
+			{
+				// Default value of the primitive
+				return Array.get(Array.newInstance(returned, 1), 0);
+			}
+			
+			return answer;
+		});
+	}
+	
+	/**
+	 * @return a player manager that can encode and decode synthetic tracks
+	 */
+	public static AudioPlayerManager playerManager()
+	{
+		AudioPlayerManager manager = new DefaultAudioPlayerManager();
+		manager.registerSourceManager(SOURCE);
+		return manager;
+	}
+	
+	/**
+	 * @param title title of the track
+	 * @return a request for a silent track that plays until it's stopped
+	 */
+	public static AudioRequest request(String title)
+	{
+		return new AudioRequest(track(title), GUILD_ID, CHANNEL_ID);
+	}
+	
+	public static List<AudioRequest> requests(int count)
+	{
+		List<AudioRequest> requests = new ArrayList<AudioRequest>(count);
+		
+		for(int i = 0; i < count; i++)
+		{
+			requests.add(request("Track " + i));
+		}
+		
+		return requests;
+	}
+	
+	public static AudioTrack track(String title)
+	{
+		return new SilentTrack(new AudioTrackInfo(title, "Synthetic", TRACK_LENGTH, title, false, "https://example.com/" + title.replace(' ', '-')));
+	}
+	
+	/**
+	 * Never produces a frame, it just holds on to the player until it's stopped.
+	 */
+	private static class SilentTrack extends BaseAudioTrack {
+		
+		private SilentTrack(AudioTrackInfo info)
+		{
+			super(info);
+		}
+		
+		@Override
+		public void process(LocalAudioTrackExecutor executor) throws Exception
+		{
+			// Interrupted when stopped
+			Thread.sleep(Long.MAX_VALUE);
+		}
+		
+		@Override
+		protected AudioTrack makeShallowClone()
+		{
+			return new SilentTrack(trackInfo);
+		}
+		
+		@Override
+		public AudioSourceManager getSourceManager()
+		{
+			return SOURCE;
+		}
+	}
+	
+	/**
+	 * Rebuilds silent tracks from their info, like the real sources do.
+	 */
+	private static class SourceManager implements AudioSourceManager {
+		
+		@Override
+		public String getSourceName()
+		{
+			return "synthetic";
+		}
+		
+		@Override
+		public AudioItem loadItem(AudioPlayerManager manager, AudioReference reference)
+		{
+			return null;
+		}
+		
+		@Override
+		public boolean isTrackEncodable(AudioTrack track)
+		{
+			return true;
+		}
+		
+		@Override
+		public void encodeTrack(AudioTrack track, DataOutput output)
+		{
+		}
+		
+		@Override
+		public AudioTrack decodeTrack(AudioTrackInfo trackInfo, DataInput input)
+		{
+			return new SilentTrack(trackInfo);
+		}
+		
+		@Override
+		public void shutdown()
+		{
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventListener;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+/**
+ * Player that hands out the same Opus frame forever (or never, if it's starved), so the send handler can be measured on its own.
+ */
+public class SyntheticAudioPlayer implements AudioPlayer {
+	
+	/** About the size of a 20ms frame of music at Discord's bitrate */
+	private static final byte[] OPUS_FRAME = new byte[160];
+	
+	private final boolean starved;
+	private final AudioTrack track;
+	
+	/**
+	 * @param starved true to never have a frame ready while "playing", like a decoder that can't keep up
+	 */
+	public SyntheticAudioPlayer(boolean starved)
+	{
+		this.starved = starved;
+		this.track = Synthetic.track("Synthetic");
+	}
+	
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame)
+	{
+		if(starved)
+		{
+			return false;
+		}
+		
+		targetFrame.store(OPUS_FRAME, 0, OPUS_FRAME.length);
+		return true;
+	}
+	
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame, long timeout, TimeUnit unit)
+	{
+		return provide(targetFrame);
+	}
+	
+	@Override
+	public AudioFrame provide()
+	{
+		return starved ? null : new ImmutableAudioFrame(0, OPUS_FRAME, 100, StandardAudioDataFormats.DISCORD_OPUS);
+	}
+	
+	@Override
+	public AudioFrame provide(long timeout, TimeUnit unit)
+	{
+		return provide();
+	}
+	
+	@Override
+	public AudioTrack getPlayingTrack()
+	{
+		return track;
+	}
+	
+	@Override
+	public boolean isPaused()
+	{
+		return false;
+	}
+	
+	@Override
+	public void playTrack(AudioTrack track)
+	{
+	}
+	
+	@Override
+	public boolean startTrack(AudioTrack track, boolean noInterrupt)
+	{
+		return false;
+	}
+	
+	@Override
+	public void stopTrack()
+	{
+	}
+	
+	@Override
+	public int getVolume()
+	{
+		return 100;
+	}
+	
+	@Override
+	public void setVolume(int volume)
+	{
+	}
+	
+	@Override
+	public void setFilterFactory(PcmFilterFactory factory)
+	{
+	}
+	
+	@Override
+	public void setFrameBufferDuration(Integer duration)
+	{
+	}
+	
+	@Override
+	public void setPaused(boolean value)
+	{
+	}
+	
+	@Override
+	public void destroy()
+	{
+	}
+	
+	@Override
+	public void addListener(AudioEventListener listener)
+	{
+	}
+	
+	@Override
+	public void removeListener(AudioEventListener listener)
+	{
+	}
+	
+	@Override
+	public void checkCleanup(long threshold)
+	{
+	}
+}
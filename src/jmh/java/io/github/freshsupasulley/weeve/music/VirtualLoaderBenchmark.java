@@ -0,0 +1,19 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Load bursts on a virtual thread each, to compare against {@link LoaderBenchmark}. Needs the Java 21 build, so it's only run with
+ * {@code ./gradlew jmh -PjavaVersion=21}.
+ */
+public class VirtualLoaderBenchmark extends AbstractLoaderBenchmark {
+	
+	@Override
+	protected ExecutorService createLoaders()
+	{
+		if(!AudioExecutors.hasVirtualThreads())
+			throw new IllegalStateException("Virtual threads need Java 21, run with -PjavaVersion=21");
+		
+		return AudioExecutors.loaders(0, true);
+	}
+}
@@ -4,12 +4,13 @@ import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import io.github.freshsupasulley.weeve.music.AudioHandler;
 import io.github.freshsupasulley.weeve.music.GuildMusicManager;
-import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.GuildVoiceState;
@@ -19,7 +20,6 @@ import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.entities.channel.middleman.AudioChannel;
 import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
 import net.dv8tion.jda.api.events.ExceptionEvent;
-import net.dv8tion.jda.api.events.GatewayPingEvent;
 import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.api.events.guild.UnavailableGuildLeaveEvent;
 import net.dv8tion.jda.api.events.guild.voice.GuildVoiceUpdateEvent;
@@ -32,6 +32,7 @@ import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.managers.AudioManager;
 import net.dv8tion.jda.api.requests.CloseCode;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import net.dv8tion.jda.api.utils.FileUpload;
 import net.dv8tion.jda.api.utils.MarkdownSanitizer;
 
@@ -43,20 +44,27 @@ public class InputListener extends ListenerAdapter {
 	private final String ownerID;
 	
 	private final AudioHandler audioHandler;
-	private long disconnected;
+	/** When each shard got disconnected, by shard ID */
+	private final Map<Integer, Long> disconnected;
 	
 	/**
 	 * Creates a new InputListener instance.
 	 * 
-	 * @param jda     jda instance
+	 * @param shards  every shard. Their events all come through this one listener
 	 * @param ownerID ID of bot owner, can be null
 	 */
-	public InputListener(JDA jda, String ownerID)
+	public InputListener(ShardManager shards, String ownerID)
 	{
-		this.audioHandler = new AudioHandler();
+		this.audioHandler = new AudioHandler(shards);
+		this.disconnected = new ConcurrentHashMap<Integer, Long>();
 		this.ownerID = ownerID;
 	}
 	
+	public AudioHandler getAudioHandler()
+	{
+		return audioHandler;
+	}
+	
 	@Override
 	public void onSlashCommandInteraction(SlashCommandInteractionEvent event)
 	{
@@ -95,6 +103,26 @@ public class InputListener extends ListenerAdapter {
 				event.reply(audioHandler.getGuildMusicManager(guild).skipTracks(songs)).queue();
 				break;
 			}
+			case "remove":
+			{
+				event.reply(audioHandler.getGuildMusicManager(guild).removeTrack(event.getOption("position").getAsInt())).queue();
+				break;
+			}
+			case "move":
+			{
+				event.reply(audioHandler.getGuildMusicManager(guild).moveTrack(event.getOption("from").getAsInt(), event.getOption("to").getAsInt())).queue();
+				break;
+			}
+			case "shuffle":
+			{
+				event.reply(audioHandler.getGuildMusicManager(guild).shuffle()).queue();
+				break;
+			}
+			case "crossfade":
+			{
+				event.reply(audioHandler.getGuildMusicManager(guild).setCrossfade(event.getOption("seconds").getAsInt())).queue();
+				break;
+			}
 			case "stop":
 			{
 				audioHandler.getGuildMusicManager(guild).reset();
@@ -146,7 +174,7 @@ public class InputListener extends ListenerAdapter {
 			}
 			case "queue":
 			{
-				event.reply(audioHandler.getGuildMusicManager(guild).getQueueList()).queue();
+				event.reply(audioHandler.getGuildMusicManager(guild).getQueuePage(event.getOption("page", 1, OptionMapping::getAsInt))).queue();
 				break;
 			}
 			case "leave":
@@ -239,6 +267,31 @@ public class InputListener extends ListenerAdapter {
 				
 				break;
 			}
+			case "stats":
+			{
+				// Restrict to bot owner and DMs only
+				if(event.isFromGuild() || !user.getId().equals(ownerID))
+				{
+					event.reply(user.getId().equals(ownerID) ? "Use in DMs" : "Command only accessible to bot owner").setEphemeral(true).queue();
+					return;
+				}
+				
+				String guildID = event.getOption("guild", OptionMapping::getAsString);
+				
+				if(guildID == null)
+				{
+					event.reply(audioHandler.getStatistics()).queue();
+					break;
+				}
+				
+				try {
+					event.reply(audioHandler.getGuildStatistics(Long.parseLong(guildID))).queue();
+				} catch(NumberFormatException e) {
+					event.reply("`" + guildID + "` isn't a guild ID").queue();
+				}
+				
+				break;
+			}
 			// Both
 			case "clean-up":
 			{
@@ -288,16 +341,6 @@ public class InputListener extends ListenerAdapter {
 		audioHandler.handleButtonPress(event);
 	}
 	
-	/**
-	 * We need this for detecting inactivity
-	 */
-	@Override
-	public void onGatewayPing(GatewayPingEvent event)
-	{
-		// Make sure we're not in a call by ourselves
-		audioHandler.tick(event.getJDA());
-	}
-	
 	@Override
 	public void onGuildVoiceUpdate(GuildVoiceUpdateEvent event)
 	{
@@ -349,22 +392,23 @@ public class InputListener extends ListenerAdapter {
 	@Override
 	public void onSessionDisconnect(SessionDisconnectEvent event)
 	{
-		disconnected = System.currentTimeMillis();
+		disconnected.put(event.getJDA().getShardInfo().getShardId(), System.currentTimeMillis());
 		CloseCode code = event.getCloseCode();
-		Main.log.info("DISCONNECTED! Close code: " + (code == null ? "null" : code.getCode() + ". Meaning: " + code.getMeaning()) + ". Closed by discord: " + event.isClosedByServer());
+		Main.log.info("DISCONNECTED " + event.getJDA().getShardInfo() + "! Close code: " + (code == null ? "null" : code.getCode() + ". Meaning: " + code.getMeaning()) + ". Closed by discord: " + event.isClosedByServer());
 	}
 	
 	@Override
 	public void onSessionResume(SessionResumeEvent event)
 	{
-		Main.log.info("Reconnected!");
+		Main.log.info("Reconnected " + event.getJDA().getShardInfo() + "!");
 		
+		Long since = disconnected.remove(event.getJDA().getShardInfo().getShardId());
 		long notifyTime = 60000;
-		long disconnectTime = System.currentTimeMillis() - disconnected;
+		long disconnectTime = since == null ? 0 : System.currentTimeMillis() - since;
 		
 		if(disconnectTime > notifyTime)
 		{
-			Main.log.info("Bot was disconnected for " + disconnectTime / 1000 + " seconds");
+			Main.log.info(event.getJDA().getShardInfo() + " was disconnected for " + disconnectTime / 1000 + " seconds");
 		}
 	}
 	
@@ -13,6 +13,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,9 +22,11 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import io.github.freshsupasulley.weeve.music.AudioNode;
+import io.github.freshsupasulley.weeve.music.GuildMusicManager;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDA.Status;
-import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.OnlineStatus;
 import net.dv8tion.jda.api.entities.Activity;
 import net.dv8tion.jda.api.entities.Activity.ActivityType;
 import net.dv8tion.jda.api.entities.channel.concrete.PrivateChannel;
@@ -38,7 +41,9 @@ import net.dv8tion.jda.api.interactions.commands.build.CommandData;
 import net.dv8tion.jda.api.interactions.commands.build.Commands;
 import net.dv8tion.jda.api.interactions.commands.build.OptionData;
 import net.dv8tion.jda.api.requests.restaction.CommandListUpdateAction;
-import net.dv8tion.jda.internal.JDAImpl;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.ConcurrentSessionController;
 
 public class Main {
 	
@@ -47,7 +52,7 @@ public class Main {
 	public static final String ERROR_MESSAGE = "[**INTERNAL ERROR**] An unknown error has occured. Try again later.";
 	private static List<Command> commands;
 	
-	private static JDA jda;
+	private static ShardManager shards;
 	
 	/** True to use the test bot, false for production */
 	private static boolean TEST_BOT = true;
@@ -62,6 +67,9 @@ public class Main {
 	private static String ownerID = null;
 	private static boolean notifyErrors = false;
 	
+	/** Run options from the command line and tokens file (keys keep their leading dashes) */
+	private static Map<String, String> options = new HashMap<String, String>();
+	
 	static
 	{
 		// If running from jar, do not use test bot
@@ -90,16 +98,30 @@ public class Main {
 		
 		// JDA will reconnect after a very long period of downtime (I tested up to 3-4 hours)
 		// JDA will immediately fail if you try to create the bot when the internet is unavailable
-		JDABuilder builder = JDABuilder.createDefault(botToken).setAutoReconnect(true).setContextMap(null);
-		JDA jda = null;
+		// Shards log in as fast as Discord lets them (its max_concurrency), not one at a time. This is the default, but boot time depends on it
+		DefaultShardManagerBuilder builder = DefaultShardManagerBuilder.createDefault(botToken).setAutoReconnect(true).setContextEnabled(false).setSessionController(new ConcurrentSessionController());
+		
+		// -1 lets Discord recommend a shard count
+		builder.setShardsTotal(getOption("shards", -1, Integer::parseInt));
+		
+		// Each process can run a slice of the shards
+		int[] range = getOption("shard_range", null, Main::parseShardRange);
+		
+		if(range != null)
+		{
+			builder.setShards(range[0], range[1]);
+		}
+		
+		ShardManager shards = null;
 		int attempts = 0;
 		
-		while(jda == null)
+		while(shards == null)
 		{
 			attempts++;
 			
 			try {
-				jda = (JDAImpl) builder.build().awaitReady();
+				shards = builder.build();
+				awaitReady(shards);
 			} catch(ErrorResponseException t) {
 				if(t.getErrorCode() != -1) {
 					t.printStackTrace();
@@ -120,15 +142,16 @@ public class Main {
 		}
 		
 		// If still not connected
-		if(jda == null || jda.getStatus() != Status.CONNECTED)
+		if(shards == null || shards.getShards().stream().anyMatch(shard -> shard.getStatus() != Status.CONNECTED))
 		{
 			throw new IllegalStateException("Could not connect to JDA");
 		}
 		
-		Main.jda = jda;
+		Main.shards = shards;
+		log.info("Connected {} of {} shards", shards.getShards().size(), shards.getShardsTotal());
 		
 		try {
-			initialize(jda, notifyErrors);
+			initialize(shards, notifyErrors);
 			
 			// Notify if an owner was provided
 			if(ownerID != null)
@@ -230,7 +253,8 @@ public class Main {
 		// Notfy owner if enabled
 		if(Main.ownerID != null)
 		{
-			PrivateChannel channel = jda.retrieveUserById(ownerID).complete().openPrivateChannel().complete();
+			// Any connected shard can DM
+			PrivateChannel channel = shards.retrieveUserById(ownerID).complete().openPrivateChannel().complete();
 			
 			return channel.sendMessage(text).submit().handleAsync((message, throwable) ->
 			{
@@ -241,15 +265,52 @@ public class Main {
 		return CompletableFuture.completedFuture(false);
 	}
 	
+	/**
+	 * Waits for every shard to be ready. Shards are created one by one but start concurrently, so this takes about as long as the slowest one.
+	 */
+	private static void awaitReady(ShardManager shards) throws InterruptedException
+	{
+		while(shards.getShardsQueued() > 0)
+		{
+			Thread.sleep(100);
+		}
+		
+		for(JDA shard : shards.getShards())
+		{
+			shard.awaitReady();
+		}
+	}
+	
+	/**
+	 * Parses a shard range like <code>0-15</code> (inclusive).
+	 */
+	private static int[] parseShardRange(String range)
+	{
+		String[] split = range.split("-");
+		
+		if(split.length != 2)
+			throw new IllegalArgumentException("Not a shard range: " + range);
+		
+		return new int[] {Integer.parseInt(split[0].trim()), Integer.parseInt(split[1].trim())};
+	}
+	
+	/**
+	 * @return any of our shards. They're all the same bot
+	 */
+	private static JDA getAnyShard()
+	{
+		return shards.getShardCache().iterator().next();
+	}
+	
 	/**
 	 * Sets up the InputListener.
 	 * 
-	 * @param jda     connected JDA instance
+	 * @param shards  connected shards
 	 * @param ownerID optional ID of owner
 	 */
-	private void initialize(JDA jda, boolean notifyErrors)
+	private void initialize(ShardManager shards, boolean notifyErrors)
 	{
-		jda.getPresence().setPresence(Activity.of(ActivityType.PLAYING, "music"), false);
+		shards.setPresence(OnlineStatus.ONLINE, Activity.of(ActivityType.PLAYING, "music"));
 		
 		OptionData source = new OptionData(OptionType.STRING, "source", "Audio source");
 		
@@ -267,7 +328,11 @@ public class Main {
 			Commands.slash("skip", "Skip the song").addOptions(new OptionData(OptionType.INTEGER, "amount", "Number of songs to skip").setRequiredRange(1, 250)).setContexts(InteractionContextType.GUILD),
 			Commands.slash("forward", "Fast-forward the song").addOptions(new OptionData(OptionType.INTEGER, "hours", "Number of hours to skip", false).setMinValue(1), new OptionData(OptionType.INTEGER, "minutes", "Number of minutes to skip", false).setMinValue(1), new OptionData(OptionType.INTEGER, "seconds", "Number of seconds to skip", false).setMinValue(1)).setContexts(InteractionContextType.GUILD),
 			Commands.slash("loop", "Control looping").addOptions(new OptionData(OptionType.BOOLEAN, "loop", "Whether to turn looping on or off", true)).setContexts(InteractionContextType.GUILD),
-			Commands.slash("queue", "See queued songs").setContexts(InteractionContextType.GUILD),
+			Commands.slash("queue", "See queued songs").addOptions(new OptionData(OptionType.INTEGER, "page", "Page of the queue").setMinValue(1)).setContexts(InteractionContextType.GUILD),
+			Commands.slash("remove", "Remove a song from the queue").addOptions(new OptionData(OptionType.INTEGER, "position", "Position of the song in the queue (2 is on deck)", true).setMinValue(2)).setContexts(InteractionContextType.GUILD),
+			Commands.slash("move", "Move a song in the queue").addOptions(new OptionData(OptionType.INTEGER, "from", "Position of the song in the queue (2 is on deck)", true).setMinValue(2), new OptionData(OptionType.INTEGER, "to", "New position of the song", true).setMinValue(2)).setContexts(InteractionContextType.GUILD),
+			Commands.slash("shuffle", "Shuffle the queue").setContexts(InteractionContextType.GUILD),
+			Commands.slash("crossfade", "Fade songs into each other").addOptions(new OptionData(OptionType.INTEGER, "seconds", "How long songs overlap, 0 to turn it off", true).setRequiredRange(0, GuildMusicManager.MAX_CROSSFADE_SECONDS)).setContexts(InteractionContextType.GUILD),
 			Commands.slash("stop", "Stops playback").setContexts(InteractionContextType.GUILD),
 			Commands.slash("leave", "Leaves the call").setContexts(InteractionContextType.GUILD),
 			
@@ -275,12 +340,14 @@ public class Main {
 			Commands.slash("clean-up", "Deletes commands")
 		};
 		
-		CommandListUpdateAction action = jda.updateCommands().addCommands(commands);
+		// Commands are global, so any shard can register them
+		CommandListUpdateAction action = getAnyShard().updateCommands().addCommands(commands);
 		
 		// Add only if ownerID was supplied to try and help mask it
 		if(notifyErrors)
 		{
 			action.addCommands(Commands.slash("logs", "View files in running directory").setDefaultPermissions(DefaultMemberPermissions.DISABLED).addOption(OptionType.STRING, "path", "Path to explore").addOptions(new OptionData(OptionType.INTEGER, "page", "Page for file listings").setMinValue(1)));
+			action.addCommands(Commands.slash("stats", "View playback statistics").setDefaultPermissions(DefaultMemberPermissions.DISABLED).addOption(OptionType.STRING, "guild", "Guild ID to see audio health of"));
 		}
 		
 		// Update public commands
@@ -289,7 +356,11 @@ public class Main {
 		Main.commands = action.complete();
 		
 		// Create InputListener
-		jda.addEventListener(new InputListener(jda, ownerID));
+		InputListener listener = new InputListener(shards, ownerID);
+		
+		// Pick up the queues from before the last shutdown before anyone can change them
+		listener.getAudioHandler().restoreQueues();
+		shards.addEventListener(listener);
 	}
 	
 	public static String getCommandReference(String commandName)
@@ -321,14 +392,39 @@ public class Main {
 		return "</" + result.getFullCommandName() + ":" + result.getId() + ">";
 	}
 	
+	/**
+	 * Reads an optional run option, passed either as a command line argument (<code>--name=value</code>) or in the tokens file.
+	 * 
+	 * @param <T>      option type
+	 * @param name     option name, without the leading dashes
+	 * @param fallback returned if the option wasn't provided or couldn't be parsed
+	 * @param parser   converts the raw value
+	 * @return the parsed option, or the fallback
+	 */
+	public static <T> T getOption(String name, T fallback, Function<String, T> parser)
+	{
+		// Empty unless running through main (like in benchmarks), so everything falls back
+		String value = options.get("--" + name);
+		
+		if(value == null)
+			return fallback;
+		
+		try {
+			return parser.apply(value);
+		} catch(RuntimeException e) {
+			log.warn("Invalid value \"{}\" for option {}, using {}", value, name, fallback);
+			return fallback;
+		}
+	}
+	
 	public static String getBotName()
 	{
-		return jda.getSelfUser().getName();
+		return getAnyShard().getSelfUser().getName();
 	}
 	
 	public static String getBotID()
 	{
-		return jda.getSelfUser().getId();
+		return getAnyShard().getSelfUser().getId();
 	}
 	
 	private static String loadAsString(InputStream stream) throws IOException
@@ -376,7 +472,7 @@ public class Main {
 	public static void main(String[] args)
 	{
 		// Read command line arguments
-		String[] names = {"--token", "--test_token", "--owner_id", "--notify_errors", "--file"};
+		String[] names = {"--token", "--test_token", "--owner_id", "--notify_errors", "--file", "--search_cache_size", "--search_cache_ttl", "--prefetch_seconds", "--frame_buffer_ms", "--frame_slab_kb", "--audio_cache_dir", "--audio_cache_mb", "--queue_log_dir", "--queue_log_compact_mb", "--queue_log_checkpoint_ms", "--shards", "--shard_range", "--audio_node", "--audio_nodes", "--loader_threads", "--virtual_loaders", "--playback_threads", "--user_loads_per_minute", "--guild_loads_per_minute", "--source_loads_per_minute", "--load_max_wait_ms", "--source_trip_error_rate", "--source_open_ms", "--youtube_http_connect_ms", "--youtube_http_socket_ms", "--youtube_http_lease_ms", "--youtube_http_keep_alive_ms", "--youtube_http_max_total", "--youtube_http_max_per_route", "--soundcloud_http_connect_ms", "--soundcloud_http_socket_ms", "--soundcloud_http_lease_ms", "--soundcloud_http_keep_alive_ms", "--soundcloud_http_max_total", "--soundcloud_http_max_per_route", "--button_max_messages", "--button_ttl_ms"};
 		Map<String, String> argsMap = getArgs(args, names);
 		
 		File file = new File(argsMap.computeIfAbsent("--file", key -> "tokens.json"));
@@ -397,8 +493,8 @@ public class Main {
 				}
 			}
 		} catch(FileNotFoundException e) {
-			// It's only an error if there wasn't a token provided in the command line either
-			if(!argsMap.containsKey("--token"))
+			// It's only an error if there wasn't a token provided in the command line either (audio nodes don't need one)
+			if(!argsMap.containsKey("--token") && !argsMap.containsKey("--audio_node"))
 			{
 				log.error("Failed to find tokens file at {}. Create one and paste your bot token as a JSON name value pair {\"token\": \"insert_token_here\"}. Alternatively, pass --token=insert_token_here as a program argument.", file.getAbsolutePath());
 				return;
@@ -411,6 +507,22 @@ public class Main {
 			return;
 		}
 		
+		Main.options = argsMap;
+		
+		// Audio nodes only play audio for a bot, they don't log in
+		Integer nodePort = getOption("audio_node", null, Integer::parseInt);
+		
+		if(nodePort != null)
+		{
+			try {
+				AudioNode.run(nodePort);
+			} catch(IOException e) {
+				log.error("Failed to start the audio node on port {}", nodePort, e);
+			}
+			
+			return;
+		}
+		
 		String token = !TEST_BOT ? argsMap.get("--token") : argsMap.get("--test_token");
 		
 		// Require bot token
@@ -0,0 +1,487 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.format.OpusAudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioTrackExecutor;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Disk cache of played tracks, so popular tracks don't get downloaded from the source again for every guild and every loop.
+ * 
+ * <p>
+ * Tracks are recorded as they play: the Opus frames lavaplayer puts out are written to a file as they're buffered. Only tracks that played from start to end without seeking are
+ * kept. Once a track is cached, playing it again reads the frames back from a memory-mapped file instead of going to the source. Entries are keyed by source and identifier, and
+ * the least recently played ones are deleted once the cache goes over its byte budget.
+ * </p>
+ * 
+ * <p>
+ * File layout: a magic number, the key (short length prefixed UTF-8), then every frame as a short length followed by its bytes. Frames are 20ms each, so the frame index is the
+ * timecode.
+ * </p>
+ */
+public class AudioCache {
+	
+	static final int MAGIC = 0x57564143; // WVAC
+	private static final String EXTENSION = ".opus.cache";
+	/** Generous estimate of the size of a frame, used to skip tracks that would take up too much of the budget */
+	private static final int ESTIMATED_FRAME_BYTES = 200;
+	/** No single track gets more than this fraction of the budget */
+	private static final int MAX_TRACK_SHARE = 10;
+	
+	private final Path directory;
+	private final long maxBytes;
+	
+	/** Key to entry, access ordered so the eldest entry is the least recently played one */
+	private final LinkedHashMap<String, Entry> entries;
+	private long totalBytes;
+	/** Keys being recorded right now, so the same track isn't recorded twice at once */
+	private final Set<String> recording;
+	
+	private long hits, misses, savedBytes, evictions, recorded, abandoned;
+	
+	/**
+	 * @param directory where to keep cached tracks, or null to disable the cache
+	 * @param maxBytes  maximum size (bytes) of all cached tracks
+	 */
+	public AudioCache(Path directory, long maxBytes)
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.recording = ConcurrentHashMap.newKeySet();
+		
+		if(directory != null)
+		{
+			load();
+		}
+	}
+	
+	/**
+	 * Picks up whatever was cached before the last restart.
+	 */
+	private void load()
+	{
+		List<Entry> found = new ArrayList<Entry>();
+		
+		try {
+			Files.createDirectories(directory);
+			
+			// Recordings that were cut off by the last shutdown (or crash)
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "recording*.tmp"))
+			{
+				for(Path file : stream)
+				{
+					Main.log.debug("Deleting unfinished recording {}", file);
+					delete(file);
+				}
+			}
+			
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION))
+			{
+				for(Path file : stream)
+				{
+					try {
+						found.add(new Entry(readKey(file), file, Files.size(file), Files.getLastModifiedTime(file).toMillis()));
+					} catch(IOException e) {
+						Main.log.warn("Deleting unreadable cached track {}", file, e);
+						Files.deleteIfExists(file);
+					}
+				}
+			}
+		} catch(IOException e) {
+			Main.error("Failed to load the audio cache from " + directory, e);
+		}
+		
+		// Oldest first, so the most recently played end up at the back of the LRU order
+		found.sort(Comparator.comparingLong(entry -> entry.lastPlayed));
+		
+		synchronized(this)
+		{
+			for(Entry entry : found)
+			{
+				entries.put(entry.key, entry);
+				totalBytes += entry.size;
+			}
+			
+			evict();
+		}
+		
+		Main.log.info("Audio cache has {} tracks ({}MB) in {}", found.size(), totalBytes / 1024 / 1024, directory);
+	}
+	
+	private static String readKey(Path file) throws IOException
+	{
+		try(InputStream input = Files.newInputStream(file); DataInputStream data = new DataInputStream(input))
+		{
+			if(data.readInt() != MAGIC)
+				throw new IOException("Not a cached track");
+			
+			byte[] key = new byte[data.readUnsignedShort()];
+			data.readFully(key);
+			return new String(key, StandardCharsets.UTF_8);
+		}
+	}
+	
+	/**
+	 * Gets a playable track for a request, from the cache if it's there.
+	 * 
+	 * @param request the request
+	 * @return a track reading from disk, or the request's own track if it isn't cached
+	 */
+	public AudioTrack getTrack(AudioRequest request)
+	{
+		if(directory == null || request.getSourceManager() == null) return request.getAudioTrack();
+		
+		Entry entry;
+		
+		synchronized(this)
+		{
+			entry = entries.get(getKey(request.getSourceManager().getSourceName(), request.getInfo().identifier));
+		}
+		
+		if(entry == null) return request.getAudioTrack();
+		
+		try {
+			return new CachedAudioTrack(request.getInfo(), request.getSourceManager(), entry.file, entry.size);
+		} catch(IOException e) {
+			// Evicted since it was looked up
+			Main.log.debug("Cached <{}> is gone, playing it from the source", request.getInfo().uri, e);
+			return request.getAudioTrack();
+		}
+	}
+	
+	/**
+	 * Starts recording a track that just started, if it's worth caching. Call this right after the track started, before it plays any frames.
+	 * 
+	 * @param track the track
+	 */
+	public void record(AudioTrack track)
+	{
+		if(directory == null || track.getInfo().isStream || track.getSourceManager() == null) return;
+		
+		if(track instanceof CachedAudioTrack)
+		{
+			synchronized(this)
+			{
+				hits++;
+				savedBytes += ((CachedAudioTrack) track).getSize();
+			}
+			
+			touch(((CachedAudioTrack) track).getFile());
+			return;
+		}
+		
+		String key = getKey(track.getSourceManager().getSourceName(), track.getIdentifier());
+		
+		synchronized(this)
+		{
+			misses++;
+			
+			// Cached in the meantime (like a loop of a track that just got recorded)
+			if(entries.containsKey(key)) return;
+		}
+		
+		if(track.getDuration() / 20 * ESTIMATED_FRAME_BYTES > maxBytes / MAX_TRACK_SHARE) return;
+		
+		// Frames are recorded off the track's frame buffer, so it needs to be one of ours
+		AudioTrackExecutor executor = track instanceof InternalAudioTrack ? ((InternalAudioTrack) track).getActiveExecutor() : null;
+		
+		if(!(executor instanceof LocalAudioTrackExecutor) || !(((LocalAudioTrackExecutor) executor).getAudioBuffer() instanceof OffHeapFrameBuffer)) return;
+		
+		OffHeapFrameBuffer buffer = (OffHeapFrameBuffer) ((LocalAudioTrackExecutor) executor).getAudioBuffer();
+		
+		// Only Opus can be passed straight through when played back
+		if(!(buffer.getFormat() instanceof OpusAudioDataFormat) || !recording.add(key)) return;
+		
+		try {
+			Recorder recorder = new Recorder(key, track.getDuration(), buffer.getFormat());
+			
+			if(!buffer.attach(recorder))
+			{
+				// It's already played some frames, maybe next time
+				recorder.abort();
+			}
+		} catch(IOException e) {
+			recording.remove(key);
+			Main.log.warn("Failed to start recording <{}> for the audio cache", track.getInfo().uri, e);
+		}
+	}
+	
+	/**
+	 * Moves a finished recording into the cache.
+	 */
+	private synchronized void commit(String key, Path temp, long size)
+	{
+		Path file = directory.resolve(getFileName(key));
+		
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			Main.log.warn("Failed to move recording of {} into the audio cache", key, e);
+			delete(temp);
+			return;
+		}
+		
+		Entry old = entries.put(key, new Entry(key, file, size, System.currentTimeMillis()));
+		
+		if(old != null)
+		{
+			totalBytes -= old.size;
+		}
+		
+		totalBytes += size;
+		recorded++;
+		evict();
+	}
+	
+	/**
+	 * Deletes the least recently played tracks until the cache fits its budget.
+	 */
+	private synchronized void evict()
+	{
+		for(Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext() && totalBytes > maxBytes;)
+		{
+			Entry entry = iterator.next();
+			iterator.remove();
+			totalBytes -= entry.size;
+			evictions++;
+			
+			// Tracks that were already handed out mapped it when they were made, so they keep playing
+			delete(entry.file);
+		}
+	}
+	
+	/**
+	 * Marks a cached file as just played, so the order survives restarts.
+	 */
+	private void touch(Path file)
+	{
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch(IOException e) {
+			// It only matters for the order after a restart
+			Main.log.debug("Failed to touch {}", file, e);
+		}
+	}
+	
+	private static void delete(Path file)
+	{
+		try {
+			Files.deleteIfExists(file);
+		} catch(IOException e) {
+			Main.log.warn("Failed to delete {} from the audio cache", file, e);
+		}
+	}
+	
+	private static String getKey(String sourceName, String identifier)
+	{
+		return sourceName + ":" + identifier;
+	}
+	
+	/**
+	 * Identifiers can be whole URLs, so files are named after a hash of the key instead.
+	 */
+	private static String getFileName(String key)
+	{
+		try {
+			StringBuilder builder = new StringBuilder(64 + EXTENSION.length());
+			
+			for(byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)))
+			{
+				builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			
+			return builder.append(EXTENSION).toString();
+		} catch(NoSuchAlgorithmException e) {
+			// Every JVM has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		if(directory == null)
+		{
+			return "disabled";
+		}
+		
+		long total = hits + misses;
+		return entries.size() + " tracks, " + totalBytes / 1024 / 1024 + "/" + maxBytes / 1024 / 1024 + "MB, " + hits + " hits, " + misses + " misses" + (total == 0 ? "" : " (" + (100 * hits / total) + "% hit ratio)") + ", " + savedBytes / 1024 / 1024 + "MB saved, " + recorded + " recorded, " + abandoned + " recordings abandoned, " + evictions + " evictions";
+	}
+	
+	private static class Entry {
+		
+		private final String key;
+		private final Path file;
+		private final long size;
+		private final long lastPlayed;
+		
+		private Entry(String key, Path file, long size, long lastPlayed)
+		{
+			this.key = key;
+			this.file = file;
+			this.size = size;
+			this.lastPlayed = lastPlayed;
+		}
+	}
+	
+	/**
+	 * Writes the frames of one track to a temporary file as they're buffered. Frames come in on the track's decoding thread, never the audio thread.
+	 */
+	class Recorder {
+		
+		private final String key;
+		private final long duration;
+		private final long frameDuration;
+		private final Path temp;
+		private final FileChannel channel;
+		private final ByteBuffer out;
+		private final byte[] scratch;
+		
+		private long frames, lastTimecode;
+		private boolean done;
+		
+		private Recorder(String key, long duration, AudioDataFormat format) throws IOException
+		{
+			this.key = key;
+			this.duration = duration;
+			this.frameDuration = format.frameDuration();
+			this.temp = Files.createTempFile(directory, "recording", ".tmp");
+			this.channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.out = ByteBuffer.allocateDirect(64 * 1024);
+			this.scratch = new byte[format.maximumChunkSize()];
+			
+			byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+			out.putInt(MAGIC).putShort((short) keyBytes.length).put(keyBytes);
+		}
+		
+		/**
+		 * Records the next frame. Anything that isn't the very next frame (a seek, a rebuild) means this isn't a clean recording anymore.
+		 */
+		synchronized void record(AudioFrame frame)
+		{
+			if(done) return;
+			
+			// Timecodes have to go up exactly one frame at a time, starting from 0. Anything else means frames were skipped or repeated
+			long timecode = frame.getTimecode();
+			boolean next = frames == 0 ? timecode == 0 : timecode == lastTimecode + frameDuration;
+			
+			if(!next)
+			{
+				abort();
+				return;
+			}
+			
+			lastTimecode = timecode;
+			
+			int length = frame.getDataLength();
+			frame.getData(scratch, 0);
+			
+			try {
+				if(out.remaining() < 2 + length)
+				{
+					flush();
+				}
+				
+				out.putShort((short) length).put(scratch, 0, length);
+				frames++;
+			} catch(IOException e) {
+				Main.log.warn("Failed to record {} for the audio cache", key, e);
+				abort();
+			}
+		}
+		
+		private void flush() throws IOException
+		{
+			out.flip();
+			
+			while(out.hasRemaining())
+			{
+				channel.write(out);
+			}
+			
+			out.clear();
+		}
+		
+		/**
+		 * The track is done putting out frames. It's only cached if it played all the way through.
+		 */
+		synchronized void finish()
+		{
+			if(done) return;
+			
+			// Stopped tracks end early, those aren't worth anything. Every frame has to be there, give or take the last one
+			if(frames * frameDuration < duration - frameDuration)
+			{
+				abort();
+				return;
+			}
+			
+			done = true;
+			
+			try {
+				flush();
+				long size = channel.size();
+				channel.close();
+				commit(key, temp, size);
+			} catch(IOException e) {
+				Main.log.warn("Failed to finish recording {} for the audio cache", key, e);
+				delete(temp);
+			} finally {
+				recording.remove(key);
+			}
+		}
+		
+		/**
+		 * Throws the recording away.
+		 */
+		synchronized void abort()
+		{
+			if(done) return;
+			
+			done = true;
+			
+			try {
+				channel.close();
+			} catch(IOException e) {
+				// Deleting it anyway
+			}
+			
+			delete(temp);
+			recording.remove(key);
+			
+			synchronized(AudioCache.this)
+			{
+				abandoned++;
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Thread pools for loading and playing tracks. weeve is built for Java 11, so virtual threads are looked up at runtime and only used when running on Java 21 or newer.
+ */
+public class AudioExecutors {
+	
+	/** Loads waiting past this many are turned down instead of piling up (same as lavaplayer's) */
+	static final int LOADER_QUEUE_CAPACITY = 5000;
+	
+	private AudioExecutors()
+	{
+	}
+	
+	/**
+	 * @return true if this JVM has virtual threads
+	 */
+	public static boolean hasVirtualThreads()
+	{
+		return Runtime.version().feature() >= 21;
+	}
+	
+	/**
+	 * Creates the pool loads run on.
+	 * 
+	 * @param threads max loads running at once
+	 * @param virtual true to run every load on its own virtual thread instead (needs Java 21), which ignores {@code threads}
+	 * @return the pool
+	 */
+	public static ExecutorService loaders(int threads, boolean virtual)
+	{
+		if(virtual)
+		{
+			if(hasVirtualThreads())
+			{
+				try {
+					return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				} catch(ReflectiveOperationException e) {
+					Main.log.warn("Failed to create virtual threads, using {} loader threads", threads, e);
+				}
+			}
+			else
+			{
+				Main.log.warn("Virtual threads need Java 21 (running {}), using {} loader threads", Runtime.version(), threads);
+			}
+		}
+		
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(LOADER_QUEUE_CAPACITY), daemonThreads("weeve-loader"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Creates the pool tracks play on. Each playing track holds a thread the whole time it plays (it blocks on the frame buffer while it's full), so a limit caps how many
+	 * tracks play at once and the rest wait for one to end.
+	 * 
+	 * @param threads max tracks playing at once, 0 for no limit (lavaplayer's default)
+	 * @return the pool
+	 */
+	public static ExecutorService playback(int threads)
+	{
+		if(threads <= 0)
+		{
+			return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), daemonThreads("weeve-playback"));
+		}
+		
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), daemonThreads("weeve-playback"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * @return how busy a pool is, for the stats
+	 */
+	static String describe(ExecutorService executor)
+	{
+		if(!(executor instanceof ThreadPoolExecutor))
+			return "virtual threads";
+		
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+		int max = pool.getMaximumPoolSize();
+		return pool.getActiveCount() + "/" + (max == Integer.MAX_VALUE ? "unlimited" : max) + " threads busy, " + pool.getQueue().size() + " waiting, " + pool.getCompletedTaskCount() + " done";
+	}
+	
+	private static ThreadFactory daemonThreads(String name)
+	{
+		AtomicInteger count = new AtomicInteger();
+		
+		return runnable ->
+		{
+			Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+			thread.setName(name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -1,20 +1,31 @@
 package io.github.freshsupasulley.weeve.music;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import org.jetbrains.annotations.Nullable;
 
 import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
-import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
-import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
 import com.sedmelluq.discord.lavaplayer.tools.Units;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
 import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
@@ -33,8 +44,11 @@ import net.dv8tion.jda.api.interactions.Interaction;
 import net.dv8tion.jda.api.interactions.InteractionHook;
 import net.dv8tion.jda.api.interactions.components.buttons.Button;
 import net.dv8tion.jda.api.interactions.components.buttons.ButtonStyle;
+import net.dv8tion.jda.api.requests.restaction.interactions.ReplyCallbackAction;
 import net.dv8tion.jda.api.requests.restaction.WebhookMessageCreateAction;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import net.dv8tion.jda.api.utils.MarkdownSanitizer;
+import net.dv8tion.jda.api.utils.messages.MessageEditData;
 import net.dv8tion.jda.internal.interactions.component.ButtonImpl;
 
 public class AudioHandler {
@@ -42,23 +56,114 @@ public class AudioHandler {
 	// 1 hour before the bot leaves
 	public static final long IDLE_TIME = 60 * 1000 * 60;
 	
-	final AudioPlayerManager playerManager;
-	private final Map<Long, GuildMusicManager> musicManagers;
+	/** Max number of tracks to choose from in a search (per source) */
+	static final int MAX_SELECTION = 5;
 	
-	/** The default AudioSource. Rotates when one fails */
-	public static AudioSource DEFAULT = AudioSource.SOUNDCLOUD;
+	private final ShardManager shards;
+	final PooledAudioPlayerManager playerManager;
+	/** Loads run here instead of on lavaplayer's loader pool, so how many run at once (and on what threads) is up to us */
+	private final ExecutorService loaders;
 	
-	public AudioHandler()
+	/** Runs timed events (like leaving due to inactivity) so nothing has to poll for them */
+	private final ScheduledThreadPoolExecutor scheduler;
+	
+	/** Touched by JDA event threads, lavaplayer callbacks and the scheduler all at once */
+	private final ConcurrentHashMap<Long, GuildMusicManager> musicManagers;
+	private final AtomicLong createdManagers = new AtomicLong(), destroyedManagers = new AtomicLong();
+	
+	private final SearchCache searchCache;
+	private final ButtonActionStore buttonActions;
+	private final SingleFlight singleFlight;
+	private final RateLimiter rateLimiter;
+	private final long prefetchTime;
+	private final FrameArena frameArena;
+	private final AudioCache audioCache;
+	private final QueueJournal journal;
+	/** Where players play, or null to play in this process */
+	private final AudioNodes nodes;
+	private final AtomicLong sourceLoads = new AtomicLong(), sourceLoadNanos = new AtomicLong();
+	private final AtomicLong crossfades = new AtomicLong(), crossfadeFrames = new AtomicLong(), crossfadeNanos = new AtomicLong();
+	
+	/** Picks the default source and fails searches over to another one */
+	private final SourceHealth health;
+	private final Map<AudioSource, SourceHttp> http;
+	
+	public AudioHandler(ShardManager shards)
+	{
+		this(shards, true);
+	}
+	
+	/**
+	 * @param sources false for a bare handler that can't load anything: no sources are registered, no HTTP is configured and YouTube isn't linked. Benchmarks use this so
+	 *                they only measure weeve
+	 */
+	AudioHandler(ShardManager shards, boolean sources)
 	{
-		this.playerManager = new DefaultAudioPlayerManager();
+		this.shards = shards;
+		this.playerManager = new PooledAudioPlayerManager(AudioExecutors.playback(Main.getOption("playback_threads", 0, Integer::parseInt)));
+		this.loaders = AudioExecutors.loaders(Main.getOption("loader_threads", 10, Integer::parseInt), Main.getOption("virtual_loaders", false, Boolean::parseBoolean));
 		
-		// Add each audio source manager
-		for(AudioSource source : AudioSource.values())
+		// Buffered frames live off-heap in one shared arena instead of a heap array per track
+		this.frameArena = new FrameArena(Main.getOption("frame_slab_kb", 4096, Integer::parseInt) * 1024);
+		playerManager.setFrameBufferDuration(Main.getOption("frame_buffer_ms", 5000, Integer::parseInt));
+		playerManager.getConfiguration().setFrameBufferFactory((bufferDuration, format, stopping) -> new OffHeapFrameBuffer(frameArena, bufferDuration, format, stopping));
+		
+		if(sources)
+		{
+			// Add each audio source manager
+			for(AudioSource source : AudioSource.values())
+			{
+				playerManager.registerSourceManager(source.getManager());
+			}
+			
+			this.http = SourceHttp.configure();
+			
+			// Link with Google before anyone asks for YouTube, not when they do
+			((CustomYouTubeManager) AudioSource.YOUTUBE.getManager()).start();
+		}
+		else
+		{
+			this.http = Map.of();
+		}
+		
+		this.musicManagers = new ConcurrentHashMap<Long, GuildMusicManager>();
+		this.prefetchTime = Main.getOption("prefetch_seconds", 10, Integer::parseInt) * 1000L;
+		this.health = new SourceHealth(AudioSource.SOUNDCLOUD, Main.getOption("source_trip_error_rate", 0.5, Double::parseDouble), Main.getOption("source_open_ms", 30000L, Long::parseLong));
+		this.singleFlight = new SingleFlight();
+		this.buttonActions = new ButtonActionStore(Main.getOption("button_max_messages", 10000, Integer::parseInt), Main.getOption("button_ttl_ms", 15 * 60 * 1000L, Long::parseLong));
+		this.rateLimiter = new RateLimiter(Main.getOption("user_loads_per_minute", 20, Integer::parseInt), Main.getOption("guild_loads_per_minute", 60, Integer::parseInt), Main.getOption("source_loads_per_minute", 600, Integer::parseInt), Main.getOption("load_max_wait_ms", 10000L, Long::parseLong));
+		this.searchCache = new SearchCache(Main.getOption("search_cache_size", 500, Integer::parseInt), Main.getOption("search_cache_ttl", 10 * 60 * 1000L, Long::parseLong));
+		this.journal = new QueueJournal(Main.getOption("queue_log_dir", null, Path::of), playerManager, Main.getOption("queue_log_compact_mb", 16L, Long::parseLong) * 1024 * 1024);
+		this.nodes = Main.getOption("audio_nodes", null, addresses -> new AudioNodes(addresses, playerManager));
+		
+		// Frames from nodes never go through a local frame buffer, so there's nothing to record
+		this.audioCache = new AudioCache(nodes == null ? Main.getOption("audio_cache_dir", null, Path::of) : null, Main.getOption("audio_cache_mb", 1024L, Long::parseLong) * 1024 * 1024);
+		
+		if(nodes != null)
 		{
-			playerManager.registerSourceManager(source.getManager());
+			// Restored queues start playing right away, give the nodes a moment to come up
+			Main.log.info("Playing through audio nodes {}, connected to {}", nodes, nodes.awaitConnected(5000));
 		}
 		
-		this.musicManagers = new HashMap<Long, GuildMusicManager>();
+		this.scheduler = new ScheduledThreadPoolExecutor(1, runnable ->
+		{
+			Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+			thread.setName("weeve-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		// Idle timers get cancelled all the time, don't let them pile up in the queue
+		scheduler.setRemoveOnCancelPolicy(true);
+		
+		scheduler.scheduleAtFixedRate(rateLimiter::evictIdle, 1, 1, TimeUnit.MINUTES);
+		scheduler.scheduleAtFixedRate(buttonActions::evictExpired, 1, 1, TimeUnit.MINUTES);
+		
+		if(journal.isEnabled())
+		{
+			long checkpoint = Main.getOption("queue_log_checkpoint_ms", 10000L, Long::parseLong);
+			scheduler.scheduleAtFixedRate(this::checkpointPositions, checkpoint, checkpoint, TimeUnit.MILLISECONDS);
+		}
 		
 		// Not needed
 		// Apparently you need to call this after you add sources?
@@ -68,8 +173,6 @@ public class AudioHandler {
 	
 	public void handleSongRequest(@Nullable AudioSource desiredSource, boolean playNext, long userID, SlashCommandInteractionEvent event)
 	{
-		AudioSource source = desiredSource == null ? DEFAULT : desiredSource;
-		
 		// Get member audio channel
 		AudioChannel audioChannel;
 		
@@ -80,46 +183,332 @@ public class AudioHandler {
 			return;
 		}
 		
+		String query = event.getOption("query").getAsString();
+		boolean isSearch = isSearch(query);
+		GuildMusicManager manager = getGuildMusicManager(event.getGuild());
+		
+		// No source picked, ask all of them at once
+		if(isSearch && desiredSource == null)
+		{
+			event.deferReply(true).queue(hook -> searchEverywhere(hook, manager, playNext, query, audioChannel));
+			return;
+		}
+		
+		AudioSource source = desiredSource == null ? health.getDefault() : desiredSource;
+		
+		// If someone searched this recently, answer right away instead of deferring
+		List<AudioTrack> cached = isSearch ? searchCache.get(source, query) : null;
+		
+		if(cached != null)
+		{
+			List<Button> buttons = new ArrayList<Button>();
+			ReplyCallbackAction reply = event.reply(describeSelection(source, cached, playNext, buttons)).addActionRow(buttons).setEphemeral(true);
+			
+			// New search request button option
+			AudioSource alternativeSource = getAlternativeSource(source);
+			Button switchButton = alternativeSource == null ? null : createSwitchButton(alternativeSource);
+			
+			if(switchButton != null)
+			{
+				reply.addActionRow(switchButton);
+			}
+			
+			// We need the message itself to map the buttons to
+			reply.flatMap(InteractionHook::retrieveOriginal).queue(message ->
+			{
+				addSelectionActions(manager, message, buttons, cached, playNext, audioChannel);
+				
+				if(switchButton != null)
+				{
+					manager.addButtonAction(message, switchButton, new SearchRequest(isSearch, playNext, query, alternativeSource, audioChannel, manager));
+				}
+			}, failure -> Main.error("Failed to reply with cached results for " + query, failure));
+			
+			return;
+		}
+		
 		// Search for the video
-		event.deferReply(true).queue(hook ->
+		event.deferReply(true).queue(hook -> searchQuery(hook, manager, isSearch, playNext, query, source, audioChannel));
+	}
+	
+	/**
+	 * @param query search term or URL
+	 * @return true if the query is a search term, false if it's a link
+	 */
+	private boolean isSearch(String query)
+	{
+		try {
+			new URI(query).toURL();
+			return false;
+		} catch(Throwable t) {
+			Main.log.info("Processing {} as search query (error: {})", query, t.getMessage());
+			return true;
+		}
+	}
+	
+	/**
+	 * Builds the track selection message, creating a button for each of the first 5 tracks.
+	 * 
+	 * @param source   source the tracks came from
+	 * @param tracks   tracks to choose from
+	 * @param playNext if the selection will play next
+	 * @param buttons  filled with the selection buttons
+	 * @return message content
+	 */
+	private String describeSelection(AudioSource source, List<AudioTrack> tracks, boolean playNext, List<Button> buttons)
+	{
+		StringBuilder builder = new StringBuilder("**Select a track from " + source.getFancyName() + ":**");
+		
+		for(int i = 0; i < Math.min(tracks.size(), MAX_SELECTION); i++)
+		{
+			buttons.add(new ButtonImpl("" + i, "" + (i + 1), playNext ? ButtonStyle.SECONDARY : ButtonStyle.PRIMARY, false, null));
+			builder.append("\n" + describeTrack(i + 1, tracks.get(i)));
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * @param number what the track's button says
+	 * @param track  track to describe
+	 * @return the track's line in a selection message
+	 */
+	static String describeTrack(int number, AudioTrack track)
+	{
+		AudioTrackInfo info = track.getInfo();
+		return "**" + number + ":** " + MarkdownSanitizer.escape(info.title).replaceAll("http[s]?://[^\\s]+", "<$0>") + (info.length != Units.DURATION_MS_UNKNOWN ? " (**" + AudioHandler.parseDuration(info.length) + "**)" : "");
+	}
+	
+	/**
+	 * Maps the selection buttons of a sent message to their tracks.
+	 */
+	private void addSelectionActions(GuildMusicManager manager, Message message, List<Button> buttons, List<AudioTrack> tracks, boolean playNext, AudioChannel audioChannel)
+	{
+		// This only grabs the first 5 from the tracks
+		for(int i = 0; i < buttons.size(); i++)
+		{
+			manager.addButtonAction(message, buttons.get(i), new TrackSelected(playNext, tracks.get(i), audioChannel));
+		}
+	}
+	
+	private Button createSwitchButton(AudioSource alternativeSource)
+	{
+		return Button.success(alternativeSource.toString(), "Try " + alternativeSource.getFancyName());
+	}
+	
+	/**
+	 * Moves a search that failed to the healthiest source it hasn't tried, which pays for its own search like any other. Sources too busy to take it are skipped.
+	 * 
+	 * @param chosen source the user picked
+	 * @param tried  sources the search already went to. The one it moves to is added
+	 * @return the source it moved to, or null if there's none left
+	 */
+	@Nullable
+	private AudioSource failover(InteractionHook hook, GuildMusicManager manager, boolean playNext, String query, AudioSource chosen, AudioChannel audioChannel, Set<AudioSource> tried)
+	{
+		AudioSource next;
+		
+		while((next = health.pick(tried)) != null)
 		{
-			// Test if query is a search term
-			boolean isSearch = true;
-			String query = event.getOption("query").getAsString();
+			AudioSource source = next;
+			tried.add(source);
+			long wait = rateLimiter.acquireSource(source);
 			
-			try {
-				new URI(query).toURL();
-				isSearch = false;
-			} catch(Throwable t) {
-				Main.log.info("Processing {} as search query (error: {})", query, t.getMessage());
+			if(wait < 0)
+			{
+				Main.log.debug("{} is too busy to take over searching {}", source.getFancyName(), query);
+				continue;
 			}
 			
-			searchQuery(hook, getGuildMusicManager(event.getGuild()), isSearch, playNext, query, source, audioChannel);
-		});
+			if(wait > 0)
+			{
+				scheduler.schedule(() -> search(hook, manager, true, playNext, query, source, chosen, audioChannel, tried), wait, TimeUnit.MILLISECONDS);
+			}
+			else
+			{
+				search(hook, manager, true, playNext, query, source, chosen, audioChannel, tried);
+			}
+			
+			return source;
+		}
+		
+		return null;
 	}
 	
 	/**
-	 * Attempts to find a working alternative source to the provided one. If nothing was found, null is returned.
+	 * Finds the healthiest alternative to the provided source. If nothing was found, null is returned.
 	 * 
 	 * @param original source to find an alternative for
 	 * @return an alternative source, or null if none was found
 	 */
 	private AudioSource getAlternativeSource(AudioSource original)
 	{
-		for(AudioSource newSource = original; (newSource = AudioSource.values()[(newSource.ordinal() + 1) % AudioSource.values().length]) != original && newSource.canHandle();)
+		return health.pick(EnumSet.of(original));
+	}
+	
+	public void searchQuery(InteractionHook hook, GuildMusicManager manager, boolean isSearch, boolean playNext, String query, AudioSource source, AudioChannel audioChannel)
+	{
+		// Links can go to any source, only searches are known to hit this one
+		long wait = rateLimiter.acquire(hook.getInteraction().getUser().getIdLong(), manager.getGuildID(), isSearch ? source : null);
+		
+		if(wait < 0)
 		{
-			return newSource;
+			hook.editOriginal("You're requesting songs too fast. Give it a minute and try again.").queue();
+			return;
 		}
 		
-		return null;
+		if(wait > 0)
+		{
+			Main.log.debug("Holding a load for {}ms", wait);
+			scheduler.schedule(() -> search(hook, manager, isSearch, playNext, query, source, source, audioChannel, EnumSet.of(source)), wait, TimeUnit.MILLISECONDS);
+			return;
+		}
+		
+		search(hook, manager, isSearch, playNext, query, source, source, audioChannel, EnumSet.of(source));
 	}
 	
-	public void searchQuery(InteractionHook hook, GuildMusicManager manager, boolean isSearch, boolean playNext, String query, AudioSource source, AudioChannel audioChannel)
+	/**
+	 * Searches every source at once and merges what they find into one selection (see {@link FederatedSearch}), instead of making the user try one source after another.
+	 */
+	public void searchEverywhere(InteractionHook hook, GuildMusicManager manager, boolean playNext, String query, AudioChannel audioChannel)
+	{
+		// One request, so the user and guild only pay once. Each source still pays for its own search below
+		long wait = rateLimiter.acquire(hook.getInteraction().getUser().getIdLong(), manager.getGuildID(), null);
+		
+		if(wait < 0)
+		{
+			hook.editOriginal("You're requesting songs too fast. Give it a minute and try again.").queue();
+			return;
+		}
+		
+		// Cached answers cost nothing, so only sources that have to be asked go through their circuit (which might make this search its probe)
+		Map<AudioSource, List<AudioTrack>> cached = new EnumMap<AudioSource, List<AudioTrack>>(AudioSource.class);
+		Set<AudioSource> sources = EnumSet.noneOf(AudioSource.class);
+		
+		for(AudioSource source : AudioSource.values())
+		{
+			List<AudioTrack> tracks = source.canHandle() ? searchCache.get(source, query) : null;
+			
+			if(tracks != null)
+			{
+				cached.put(source, tracks);
+				sources.add(source);
+			}
+			// Skip sources that are failing, unless they all are
+			else if(health.allow(source))
+			{
+				sources.add(source);
+			}
+		}
+		
+		if(sources.isEmpty())
+		{
+			for(AudioSource source : AudioSource.values())
+			{
+				if(source.canHandle())
+				{
+					sources.add(source);
+				}
+			}
+		}
+		
+		if(sources.isEmpty())
+		{
+			hook.editOriginal("No audio could be found for `" + MarkdownSanitizer.sanitize(query) + "`").queue();
+			return;
+		}
+		
+		FederatedSearch search = new FederatedSearch(hook, manager, playNext, query, audioChannel, sources);
+		
+		for(AudioSource source : sources)
+		{
+			if(cached.containsKey(source))
+			{
+				search.found(source, cached.get(source));
+				continue;
+			}
+			
+			long sourceWait = rateLimiter.acquireSource(source);
+			
+			if(sourceWait < 0)
+			{
+				Main.log.debug("{} is too busy to search {}", source.getFancyName(), query);
+				search.failed(source, null);
+				continue;
+			}
+			
+			long delay = Math.max(wait, sourceWait);
+			
+			if(delay > 0)
+			{
+				scheduler.schedule(() -> searchSource(search, source, query), delay, TimeUnit.MILLISECONDS);
+			}
+			else
+			{
+				searchSource(search, source, query);
+			}
+		}
+	}
+	
+	/**
+	 * Searches one source for a {@link FederatedSearch}.
+	 */
+	private void searchSource(FederatedSearch search, AudioSource source, String query)
+	{
+		loadItem(source.getSearchPrefix() + query, new AudioLoadResultHandler()
+		{
+			@Override
+			public void trackLoaded(AudioTrack track)
+			{
+				search.found(source, List.of(track));
+			}
+			
+			@Override
+			public void playlistLoaded(AudioPlaylist playlist)
+			{
+				if(!playlist.getTracks().isEmpty())
+				{
+					searchCache.put(source, query, playlist.getTracks(), MAX_SELECTION);
+				}
+				
+				search.found(source, playlist.getTracks());
+			}
+			
+			@Override
+			public void noMatches()
+			{
+				search.found(source, List.of());
+			}
+			
+			@Override
+			public void loadFailed(FriendlyException exception)
+			{
+				// Credentials are only asked for when YouTube is picked on purpose, everything else still answered
+				Main.log.warn("Searching {} for {} failed ({})", source.getFancyName(), query, exception.getMessage());
+				search.failed(source, exception);
+			}
+		});
+	}
+	
+	/**
+	 * Loads the query. Searches that fail (or would go to a source that's failing) are moved to the next healthiest source right away, and the reply says so.
+	 * 
+	 * @param chosen source the user picked, {@code source} is a different one if the search was moved
+	 * @param tried  sources this request already went to, including {@code source}
+	 */
+	private void search(InteractionHook hook, GuildMusicManager manager, boolean isSearch, boolean playNext, String query, AudioSource source, AudioSource chosen, AudioChannel audioChannel, Set<AudioSource> tried)
 	{
 		AudioHandler handler = this;
 		
+		// If everything is failing, might as well try
+		if(isSearch && !health.allow(source) && failover(hook, manager, playNext, query, chosen, audioChannel, tried) != null)
+			return;
+		
+		// Someone who picked a source should know when the answer came from another one
+		String movedFrom = source == chosen ? "" : "*" + chosen.getFancyName() + " couldn't search right now, so " + source.getFancyName() + " did instead.*\n";
+		
 		// Apply source search prefix if query a search
-		playerManager.loadItem((isSearch ? source.getSearchPrefix() : "") + query, new AudioLoadResultHandler()
+		loadItem((isSearch ? source.getSearchPrefix() : "") + query, new AudioLoadResultHandler()
 		{
 			@Override
 			public void trackLoaded(AudioTrack track)
@@ -141,31 +530,21 @@ public class AudioHandler {
 					return;
 				}
 				
-				// Creates button selections
-				StringBuilder builder = new StringBuilder("**Select a track from " + source.getFancyName() + ":**");
-				ArrayList<Button> buttons = new ArrayList<Button>();
-				
-				for(int i = 0; i < Math.min(playlist.getTracks().size(), 5); i++)
+				if(isSearch)
 				{
-					AudioTrackInfo info = playlist.getTracks().get(i).getInfo();
-					buttons.add(new ButtonImpl("" + i, "" + (i + 1), playNext ? ButtonStyle.SECONDARY : ButtonStyle.PRIMARY, false, null));
-					builder.append("\n" + "**" + (i + 1) + ":** " + MarkdownSanitizer.escape(info.title).replaceAll("http[s]?://[^\\s]+", "<$0>") + (info.length != Units.DURATION_MS_UNKNOWN ? " (**" + AudioHandler.parseDuration(info.length) + "**)" : ""));
+					searchCache.put(source, query, playlist.getTracks(), MAX_SELECTION);
 				}
 				
-				attachAlternativeButton(hook.sendMessage(builder.toString()).addActionRow(buttons), message ->
-				{
-					// This only grabs the first 5 from the tracks
-					for(int i = 0; i < buttons.size(); i++)
-					{
-						manager.addButtonAction(message, buttons.get(i), new TrackSelected(playNext, playlist.getTracks().get(i), audioChannel));
-					}
-				});
+				// Creates button selections
+				ArrayList<Button> buttons = new ArrayList<Button>();
+				String content = movedFrom + describeSelection(source, playlist.getTracks(), playNext, buttons);
+				attachAlternativeButton(hook.sendMessage(content).addActionRow(buttons), message -> addSelectionActions(manager, message, buttons, playlist.getTracks(), playNext, audioChannel));
 			}
 			
 			@Override
 			public void noMatches()
 			{
-				attachAlternativeButton(hook.sendMessage("Nothing found by `" + MarkdownSanitizer.sanitize(query) + "`"), (message) -> {});
+				attachAlternativeButton(hook.sendMessage(movedFrom + "Nothing found by `" + MarkdownSanitizer.sanitize(query) + "`"), (message) -> {});
 			}
 			
 			@Override
@@ -177,18 +556,19 @@ public class AudioHandler {
 					return;
 				}
 				
-				// Rotate default if this was what was loaded
-				boolean rotated = false;
-				
-				// Only rotate if this wasn't a URL because they might've fucked up copying it
-				if(isSearch && source == AudioHandler.DEFAULT)
+				// Only count searches against the source. A URL might've just been copied wrong
+				if(isSearch)
 				{
-					rotated = true;
-					AudioHandler.DEFAULT = getAlternativeSource(source);
-					Main.log.warn("Rotated default audio source to {}", AudioHandler.DEFAULT);
+					AudioSource next = failover(hook, manager, playNext, query, chosen, audioChannel, tried);
+					
+					if(next != null)
+					{
+						Main.log.warn("Searching {} for {} failed ({}), moved to {}", source.getFancyName(), query, exception.getMessage(), next.getFancyName());
+						return;
+					}
 				}
 				
-				hook.sendMessage("No audio could be found for `" + MarkdownSanitizer.sanitize(query) + "`" + (rotated ? " (switched default source to **" + AudioHandler.DEFAULT.getFancyName() + "**)" : "")).setEphemeral(true).queue();
+				hook.sendMessage("No audio could be found for `" + MarkdownSanitizer.sanitize(query) + "`").setEphemeral(true).queue();
 				Main.error("Failed to load audio for " + query, exception);
 			}
 			
@@ -204,7 +584,7 @@ public class AudioHandler {
 				}
 				
 				// Otherwise, attach and queue
-				Button switchButton = Button.success(alternativeSource.toString(), "Try " + alternativeSource.getFancyName());
+				Button switchButton = createSwitchButton(alternativeSource);
 				preMessage.addActionRow(switchButton).setEphemeral(true).onSuccess(message ->
 				{
 					onSuccess.accept(message);
@@ -217,6 +597,14 @@ public class AudioHandler {
 	
 	public void handleButtonPress(ButtonInteractionEvent event)
 	{
+		// Flipping through the queue works from anywhere
+		if(event.getComponentId().startsWith(GuildMusicManager.QUEUE_BUTTON_PREFIX))
+		{
+			int page = Integer.parseInt(event.getComponentId().substring(GuildMusicManager.QUEUE_BUTTON_PREFIX.length()));
+			event.editMessage(MessageEditData.fromCreateData(getGuildMusicManager(event.getGuild()).getQueuePage(page))).queue();
+			return;
+		}
+		
 		// Currently, buttons require the user to be in an audio channel
 		AudioChannel audioChannel;
 		
@@ -259,28 +647,19 @@ public class AudioHandler {
 	 */
 	public void loadAndPlay(boolean playNext, String query, AudioChannel audioChannel, MessageChannel textChannel)
 	{
-		GuildMusicManager musicManager = getGuildMusicManager(audioChannel.getGuild());
-		
-		playerManager.loadItem(query, new AudioLoadResultHandler()
+		loadItem(query, new AudioLoadResultHandler()
 		{
 			@Override
 			public void trackLoaded(AudioTrack track)
 			{
-				if(musicManager.isPlaying())
-				{
-					textChannel.sendMessage(new RequestInfoBuilder().bold().showDuration().showLink().apply(track) + " " + (playNext ? "will play next" : "added to queue")).queue();
-				}
-				else
-				{
-					textChannel.sendMessage("Now playing " + new RequestInfoBuilder().bold().showDuration().showLink().apply(track)).queue();
-				}
-				
-				musicManager.queue(playNext, new AudioRequest(track, audioChannel), textChannel);
+				queueTrack(playNext, track, audioChannel, textChannel);
 			}
 			
 			@Override
 			public void playlistLoaded(AudioPlaylist playlist)
 			{
+				// Look the manager up once the load is done. The old one could've been evicted in the meantime
+				GuildMusicManager musicManager = getGuildMusicManager(audioChannel.getGuild());
 				AudioTrack firstTrack = playlist.getSelectedTrack();
 				
 				if(firstTrack == null)
@@ -288,7 +667,6 @@ public class AudioHandler {
 					firstTrack = playlist.getTracks().get(0);
 				}
 				
-				boolean flipOrder = playNext;
 				String suffix = " (first song of playlist **" + playlist.getName() + "** with **" + playlist.getTracks().size() + "** tracks)";
 				
 				if(musicManager.isPlaying())
@@ -298,16 +676,17 @@ public class AudioHandler {
 				else
 				{
 					textChannel.sendMessage("Now playing " + new RequestInfoBuilder().bold().showDuration().showLink().apply(firstTrack) + suffix).queue();
-					// No need to flip the order if nothing is playing
-					flipOrder = false;
 				}
 				
-				// Queue all tracks in playlist
-				for(int i = 0; i < playlist.getTracks().size(); i++)
+				// Queue all tracks in playlist in one go
+				List<AudioRequest> requests = new ArrayList<AudioRequest>(playlist.getTracks().size());
+				
+				for(AudioTrack track : playlist.getTracks())
 				{
-					int index = flipOrder ? playlist.getTracks().size() - i - 1 : i;
-					musicManager.queue(playNext, new AudioRequest(playlist.getTracks().get(index), audioChannel), textChannel);
+					requests.add(new AudioRequest(track, audioChannel));
 				}
+				
+				musicManager.queueAll(requests, playNext, textChannel);
 			}
 			
 			@Override
@@ -325,20 +704,224 @@ public class AudioHandler {
 	}
 	
 	/**
-	 * Gets the GuildMusicManager for a particular guild
+	 * Queues a track that was already resolved, without going back to the source for it.
+	 * 
+	 * @param playNext     bump this track to the top of the queue
+	 * @param track        the track. Must not have been played before (use {@link AudioTrack#makeClone()})
+	 * @param audioChannel {@linkplain AudioChannel} of member who made the request
+	 * @param textChannel  {@linkplain MessageChannel} for responding
+	 */
+	public void queueTrack(boolean playNext, AudioTrack track, AudioChannel audioChannel, MessageChannel textChannel)
+	{
+		// Look the manager up once the track is here. The old one could've been evicted in the meantime
+		GuildMusicManager musicManager = getGuildMusicManager(audioChannel.getGuild());
+		
+		if(musicManager.isPlaying())
+		{
+			textChannel.sendMessage(new RequestInfoBuilder().bold().showDuration().showLink().apply(track) + " " + (playNext ? "will play next" : "added to queue")).queue();
+		}
+		else
+		{
+			textChannel.sendMessage("Now playing " + new RequestInfoBuilder().bold().showDuration().showLink().apply(track)).queue();
+		}
+		
+		musicManager.queue(playNext, new AudioRequest(track, audioChannel), textChannel);
+	}
+	
+	/**
+	 * Loads an item from the sources. Everything that goes out to a source should come through here so it gets counted.
+	 * 
+	 * @param identifier    search (with its prefix) or URL
+	 * @param resultHandler handler for the result
 	 */
-	public GuildMusicManager getGuildMusicManager(Guild guild)
+	void loadItem(String identifier, AudioLoadResultHandler resultHandler)
 	{
-		GuildMusicManager musicManager = musicManagers.get(guild.getIdLong());
+		// The same load already in flight (like a viral song) is shared instead of going out again
+		singleFlight.load(identifier, resultHandler, this::loadFromSource);
+	}
+	
+	private void loadFromSource(String identifier, AudioLoadResultHandler resultHandler)
+	{
+		sourceLoads.incrementAndGet();
+		long start = System.nanoTime();
+		AudioSource searched = getSearchedSource(identifier);
 		
-		if(musicManager == null)
+		AudioLoadResultHandler handler = new AudioLoadResultHandler()
 		{
-			musicManager = new GuildMusicManager(playerManager);
-			musicManagers.put(guild.getIdLong(), musicManager);
-			guild.getAudioManager().setSendingHandler(musicManager.getSendHandler());
+			@Override
+			public void trackLoaded(AudioTrack track)
+			{
+				finished(false);
+				resultHandler.trackLoaded(track);
+			}
+			
+			@Override
+			public void playlistLoaded(AudioPlaylist playlist)
+			{
+				finished(false);
+				resultHandler.playlistLoaded(playlist);
+			}
+			
+			@Override
+			public void noMatches()
+			{
+				finished(false);
+				resultHandler.noMatches();
+			}
+			
+			@Override
+			public void loadFailed(FriendlyException exception)
+			{
+				finished(true);
+				resultHandler.loadFailed(exception);
+			}
+			
+			private void finished(boolean failed)
+			{
+				long elapsed = System.nanoTime() - start;
+				sourceLoadNanos.addAndGet(elapsed);
+				
+				// Finding nothing still means the source works
+				if(searched != null)
+				{
+					health.record(searched, elapsed, failed);
+				}
+				
+				Main.log.debug("Loaded {} from source in {}ms", identifier, elapsed / 1000000);
+			}
+		};
+		
+		try {
+			loaders.execute(() -> playerManager.loadItemSync(new AudioReference(identifier, null), handler));
+		} catch(RejectedExecutionException e) {
+			// Never reached the source, so don't hold it against it
+			resultHandler.loadFailed(new FriendlyException("Too many songs are loading right now. Try again in a bit.", FriendlyException.Severity.COMMON, e));
+		}
+	}
+	
+	/**
+	 * @param identifier what's being loaded
+	 * @return the source it searches, or null if it isn't a search
+	 */
+	@Nullable
+	private static AudioSource getSearchedSource(String identifier)
+	{
+		for(AudioSource source : AudioSource.values())
+		{
+			if(identifier.startsWith(source.getSearchPrefix()))
+			{
+				return source;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @param guildID ID of the guild
+	 * @return the guild, or null if the bot can't see it (anymore)
+	 */
+	@Nullable
+	Guild getGuild(long guildID)
+	{
+		// Goes straight to the shard the guild is on
+		return shards.getGuildById(guildID);
+	}
+	
+	/**
+	 * @param guildID the guild
+	 * @return the shard the guild is on, null if it isn't one of ours
+	 */
+	@Nullable
+	JDA getShard(long guildID)
+	{
+		// Discord's formula, see https://discord.com/developers/docs/topics/gateway#sharding
+		return shards.getShardById((int) ((guildID >>> 22) % shards.getShardsTotal()));
+	}
+	
+	/**
+	 * Brings back every guild's queue from the queue log, as it was before the last shutdown (or crash). Guilds are restored in parallel.
+	 */
+	public void restoreQueues()
+	{
+		long start = System.currentTimeMillis();
+		List<QueueJournal.RestoredGuild> restored;
+		
+		try {
+			restored = journal.replay();
+		} catch(IOException e) {
+			Main.error("Failed to replay the queue log, nothing will be logged", e);
+			return;
 		}
 		
-		return musicManager;
+		if(restored.isEmpty()) return;
+		
+		restored.parallelStream().forEach(guild ->
+		{
+			try {
+				Guild entity = getGuild(guild.getGuildID());
+				
+				// Kicked while we were down
+				if(entity == null)
+				{
+					journal.gone(guild.getGuildID());
+					return;
+				}
+				
+				getGuildMusicManager(entity).restore(guild);
+			} catch(Throwable t) {
+				Main.error("Failed to restore the queue of guild " + guild.getGuildID(), t);
+			}
+		});
+		
+		Main.log.info("Restored {} guilds in {}ms", restored.size(), System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Logs where every playing track is, so restoring doesn't start them over.
+	 */
+	private void checkpointPositions()
+	{
+		try {
+			for(GuildMusicManager manager : musicManagers.values())
+			{
+				manager.checkpoint();
+			}
+		} catch(Throwable t) {
+			// Exceptions cancel repeating tasks
+			Main.error("Failed to checkpoint track positions", t);
+		}
+	}
+	
+	/**
+	 * @return actions of the buttons on every search reply
+	 */
+	ButtonActionStore getButtonActions()
+	{
+		return buttonActions;
+	}
+	
+	/**
+	 * @return log every queue change goes to
+	 */
+	QueueJournal getJournal()
+	{
+		return journal;
+	}
+	
+	/**
+	 * Gets the GuildMusicManager for a particular guild, creating one if needed.
+	 */
+	public GuildMusicManager getGuildMusicManager(Guild guild)
+	{
+		return musicManagers.computeIfAbsent(guild.getIdLong(), guildID ->
+		{
+			GuildMusicManager musicManager = new GuildMusicManager(this, guildID);
+			createdManagers.incrementAndGet();
+			guild.getAudioManager().setSendingHandler(musicManager.getSendHandler());
+			guild.getAudioManager().setConnectionListener(musicManager.getHealth());
+			return musicManager;
+		});
 	}
 	
 	/**
@@ -352,55 +935,252 @@ public class AudioHandler {
 	}
 	
 	/**
-	 * Deletes the music manager from the list.
+	 * Deletes the music manager from the list and destroys its player.
 	 */
 	public void deleteMusicManager(long guildID)
 	{
-		GuildMusicManager musicManager = musicManagers.get(guildID);
+		destroy(musicManagers.remove(guildID));
+	}
+	
+	/**
+	 * Destroys a music manager that was already taken out of {@link #musicManagers}.
+	 * 
+	 * @param musicManager manager to destroy, can be null
+	 */
+	private void destroy(@Nullable GuildMusicManager musicManager)
+	{
+		if(musicManager != null && musicManager.destroy())
+		{
+			destroyedManagers.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * @return number of music managers currently registered
+	 */
+	public int getLiveManagers()
+	{
+		return musicManagers.size();
+	}
+	
+	/**
+	 * Managers that were created but are neither registered nor destroyed. Anything above 0 means an {@link AudioPlayer} got away from us.
+	 * 
+	 * @return number of leaked music managers
+	 */
+	public long getLeakedManagers()
+	{
+		return createdManagers.get() - destroyedManagers.get() - musicManagers.size();
+	}
+	
+	/**
+	 * @return human readable statistics for the operator
+	 */
+	public String getStatistics()
+	{
+		Map<GuildMusicManager.State, Integer> states = new EnumMap<GuildMusicManager.State, Integer>(GuildMusicManager.State.class);
 		
-		if(musicManager != null)
+		long provided = 0, missed = 0;
+		GuildMusicManager worst = null;
+		
+		for(GuildMusicManager manager : musicManagers.values())
 		{
-			musicManager.reset();
-			musicManagers.remove(guildID);
+			states.merge(manager.getState(), 1, Integer::sum);
+			
+			FrameHealth health = manager.getHealth();
+			provided += health.getProvidedFrames();
+			missed += health.getMissedFrames();
+			
+			if(worst == null || health.getMissedFrames() > worst.getHealth().getMissedFrames())
+			{
+				worst = manager;
+			}
 		}
+		
+		long loads = sourceLoads.get();
+		long mixed = crossfadeFrames.get();
+		long connected = shards.getShardCache().stream().filter(shard -> shard.getStatus() == JDA.Status.CONNECTED).count();
+		
+		return "**Shards**: " + connected + "/" + shards.getShardsRunning() + " connected (" + shards.getShardsTotal() + " total), " + (long) shards.getAverageGatewayPing() + "ms avg ping" //
+				+ "\n**Music managers**: " + getLiveManagers() + " live " + states + ", " + createdManagers.get() + " created, " + destroyedManagers.get() + " destroyed, " + getLeakedManagers() + " leaked" //
+				+ "\n**Search cache**: " + searchCache //
+				+ "\n**Frame arena**: " + frameArena //
+				+ "\n**Audio cache**: " + audioCache //
+				+ "\n**Queue log**: " + journal //
+				+ (nodes == null ? "" : "\n**Audio nodes**: " + nodes) //
+				+ "\n**Frames (live managers)**: " + provided + " provided, " + missed + " missed" + (worst == null || worst.getHealth().getMissedFrames() == 0 ? "" : " (worst is guild " + worst.getGuildID() + " with " + worst.getHealth().getMissedFrames() + ")") //
+				+ "\n**Button actions**: " + buttonActions //
+				+ "\n**Source HTTP**: " + http.values() //
+				+ "\n**Source loads**: " + loads + (loads == 0 ? "" : " (avg " + sourceLoadNanos.get() / loads / 1000000 + "ms)") + ", coalescing " + singleFlight //
+				+ "\n**Sources**: " + health //
+				+ "\n**Rate limits**: " + rateLimiter //
+				+ "\n**Loaders**: " + AudioExecutors.describe(loaders) //
+				+ "\n**Playback**: " + AudioExecutors.describe(playerManager.getPlaybackExecutor()) //
+				+ "\n**Crossfades**: " + crossfades.get() + ", " + mixed + " frames mixed" + (mixed == 0 ? "" : " (avg " + crossfadeNanos.get() / mixed / 1000 + "\u00B5s/frame, " + crossfadeNanos.get() / 1000000 + "ms total)");
+	}
+	
+	/**
+	 * Creates a player, on an audio node if there are any.
+	 * 
+	 * @param sibling player the new one goes with, so both end up on the same node. Null to pick a node by load
+	 * @return the player
+	 */
+	AudioPlayer createPlayer(@Nullable AudioPlayer sibling)
+	{
+		return nodes == null ? playerManager.createPlayer() : nodes.createPlayer(sibling);
+	}
+	
+	/**
+	 * @return the disk cache tracks are played from when possible
+	 */
+	public AudioCache getAudioCache()
+	{
+		return audioCache;
 	}
 	
 	public static String parseDuration(long duration)
 	{
-		if(duration == Units.DURATION_MS_UNKNOWN) return "?";
+		return appendDuration(new StringBuilder(8), duration).toString();
+	}
+	
+	/**
+	 * Same as {@link #parseDuration(long)}, but appends to a builder instead of making a new string.
+	 * 
+	 * @param builder  builder to append to
+	 * @param duration duration (millis)
+	 * @return the builder
+	 */
+	public static StringBuilder appendDuration(StringBuilder builder, long duration)
+	{
+		if(duration == Units.DURATION_MS_UNKNOWN) return builder.append('?');
 		
-		int seconds = (int) ((duration % 60000) / 1000);
-		int minutes = (int) ((duration % 3600000) / 60000);
-		int hours = (int) (duration / 3600000);
+		long seconds = (duration % 60000) / 1000;
+		long minutes = (duration % 3600000) / 60000;
+		long hours = duration / 3600000;
 		
-		return (hours != 0 ? String.format("%01d", hours) + ":" : "") + String.format("%0" + (hours == 0 ? "1" : "2") + "d", minutes) + ":" + String.format("%02d", seconds);
+		// h:mm:ss, or m:ss under an hour
+		if(hours != 0)
+		{
+			builder.append(hours).append(':');
+			if(minutes < 10) builder.append('0');
+		}
+		
+		builder.append(minutes).append(':');
+		if(seconds < 10) builder.append('0');
+		return builder.append(seconds);
+	}
+	
+	/**
+	 * Runs a task on the shared scheduler.
+	 * 
+	 * @param task  task to run
+	 * @param delay delay (millis) before running it
+	 * @return the pending task
+	 */
+	ScheduledFuture<?> schedule(Runnable task, long delay)
+	{
+		return scheduler.schedule(() ->
+		{
+			try {
+				task.run();
+			} catch(Throwable t) {
+				// Don't let it die silently inside the scheduler
+				Main.error("Scheduled task failed", t);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops the threads this handler started. The bot's handler lives as long as the process, this is for the ones benchmarks make.
+	 */
+	void shutdown()
+	{
+		scheduler.shutdownNow();
+		loaders.shutdownNow();
+		playerManager.shutdown();
 	}
 	
-	public void tick(JDA jda)
+	/**
+	 * @param guildID guild ID
+	 * @return audio health of the guild's music manager
+	 */
+	public String getGuildStatistics(long guildID)
 	{
-		Iterator<Entry<Long, GuildMusicManager>> iterator = musicManagers.entrySet().iterator();
+		GuildMusicManager manager = musicManagers.get(guildID);
 		
-		while(iterator.hasNext())
+		if(manager == null)
 		{
-			Entry<Long, GuildMusicManager> entry = iterator.next();
-			GuildMusicManager manager = entry.getValue();
+			return "Guild " + guildID + " has no music manager";
+		}
+		
+		JDA shard = getShard(guildID);
+		return "**Guild**: " + guildID + " (" + manager.getState() + ") on shard " + (shard == null ? "?" : shard.getShardInfo().getShardId() + " (" + shard.getStatus() + ")") + "\n" + manager.getHealth();
+	}
+	
+	/**
+	 * Tallies up what a finished crossfade cost.
+	 * 
+	 * @param frames frames that were mixed
+	 * @param nanos  time (nanos) spent mixing them
+	 */
+	void recordCrossfade(int frames, long nanos)
+	{
+		crossfades.incrementAndGet();
+		crossfadeFrames.addAndGet(frames);
+		crossfadeNanos.addAndGet(nanos);
+	}
+	
+	/**
+	 * @return how long (millis) before a track ends the next one starts buffering, 0 if disabled
+	 */
+	long getPrefetchTime()
+	{
+		return prefetchTime;
+	}
+	
+	/**
+	 * Schedules the music manager to leave the call once it's been idle for {@link #IDLE_TIME}. Cancel the returned future when it starts playing again.
+	 * 
+	 * @param guildID      guild of the manager
+	 * @param musicManager the manager to evict
+	 * @return the pending eviction
+	 */
+	ScheduledFuture<?> scheduleIdleEviction(long guildID, GuildMusicManager musicManager)
+	{
+		return scheduler.schedule(() -> evictIdle(guildID, musicManager), IDLE_TIME, TimeUnit.MILLISECONDS);
+	}
+	
+	private void evictIdle(long guildID, GuildMusicManager manager)
+	{
+		try {
+			JDA shard = getShard(guildID);
 			
-			// If this manager isn't playing anything AND it's been a fat sec since we've had to handle a request
-			// manager.getLeaveTime() != 0 is likely redundant
-			if(!manager.isPlaying() && manager.getLeaveTime() != 0 && System.currentTimeMillis() > manager.getLeaveTime())
+			// The shard is reconnecting, so there's no telling if the bot is still in a call. Wait it out instead of tearing things down blind
+			if(shard != null && shard.getStatus() != JDA.Status.CONNECTED)
 			{
-				// Check if the channel is empty
-				Guild guild = jda.getGuildById(entry.getKey());
-				
-				if(guild != null && guild.getAudioManager().isConnected())
-				{
-					// Check if its been a while since the last command
-					manager.sendToOrigin("Left due to inactivity");
-					guild.getAudioManager().closeAudioConnection();
-				}
-				
-				iterator.remove();
+				manager.armIdleTimer();
+				return;
 			}
+			
+			// Something could've started playing right as the timer went off
+			// Only the thread that actually removed it gets to tear it down
+			if(manager.isPlaying() || !musicManagers.remove(guildID, manager))
+			{
+				return;
+			}
+			
+			Guild guild = getGuild(guildID);
+			
+			if(guild != null && guild.getAudioManager().isConnected())
+			{
+				manager.sendToOrigin("Left due to inactivity");
+				guild.getAudioManager().closeAudioConnection();
+			}
+			
+			destroy(manager);
+		} catch(Throwable t) {
+			// Don't let it die silently inside the scheduler
+			Main.error("Failed to evict idle music manager of guild " + guildID, t);
 		}
 	}
 }
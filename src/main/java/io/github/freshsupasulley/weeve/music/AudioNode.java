@@ -0,0 +1,531 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.DecodedTrackHolder;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Worker process that does the heavy part of playback (loading, decoding and Opus encoding) for a bot running somewhere else on the same machine. It's the same jar started
+ * with {@code --audio_node=<port>}, and it never talks to Discord. The bot keeps the voice connections and plays the Opus frames it gets back through
+ * {@link RemoteAudioPlayer}s, so a CPU spike here can't stall the gateway or commands.
+ * 
+ * <p>
+ * Protocol: after a handshake, every message is a type, the ID of the player it's for and then the payload. The bot sends commands ({@link #PLAY}, {@link #SEEK} and so on), the
+ * node sends back frames and track events. The bot hands out credits for how many frames it has room for, so nothing more than that is ever buffered on its end.
+ * </p>
+ * 
+ * <p>
+ * Nodes never link with YouTube themselves. The bot sends its refresh token ({@link #TOKEN}) once it's linked, before anything plays from YouTube.
+ * </p>
+ */
+public class AudioNode {
+	
+	static final int MAGIC = 0x57564E31; // WVN1
+	
+	// Bot -> node
+	static final byte PLAY = 1, STOP = 2, PAUSE = 3, SEEK = 4, VOLUME = 5, CREDIT = 6, DESTROY = 7, TOKEN = 8;
+	// Node -> bot
+	static final byte FRAME = 20, EXCEPTION = 21, END = 22, LOAD = 23;
+	
+	/** Frames the bot buffers per player (1s), which is also how many it gives credit for after a play or seek */
+	static final int BUFFER_FRAMES = 50;
+	/** How often the node reports its load (ms) */
+	private static final long LOAD_INTERVAL = 1000;
+	
+	private final AudioPlayerManager playerManager;
+	private final OperatingSystemMXBean os;
+	
+	private AudioNode()
+	{
+		this.playerManager = new PooledAudioPlayerManager(AudioExecutors.playback(Main.getOption("playback_threads", 0, Integer::parseInt)));
+		this.os = ManagementFactory.getOperatingSystemMXBean();
+		
+		playerManager.setFrameBufferDuration(Main.getOption("frame_buffer_ms", 5000, Integer::parseInt));
+		
+		for(AudioSource source : AudioSource.values())
+		{
+			playerManager.registerSourceManager(source.getManager());
+		}
+		
+		// Tracks stream over the sources' HTTP clients too
+		SourceHttp.configure();
+	}
+	
+	/**
+	 * Runs a node until the process is killed. Only listens on the loopback address.
+	 * 
+	 * @param port port to listen on
+	 * @throws IOException if the port can't be bound
+	 */
+	public static void run(int port) throws IOException
+	{
+		AudioNode node = new AudioNode();
+		
+		try(ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()))
+		{
+			Main.log.info("Audio node listening on {}", server.getLocalSocketAddress());
+			
+			while(true)
+			{
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				node.new Session(socket).start();
+			}
+		}
+	}
+	
+	/**
+	 * Something written after the message header.
+	 */
+	interface Payload {
+		
+		void write(DataOutput out) throws IOException;
+	}
+	
+	/**
+	 * Builds a message.
+	 * 
+	 * @param type     message type
+	 * @param playerID player the message is for
+	 * @param payload  writes the rest of the message
+	 * @return the message
+	 */
+	static byte[] message(byte type, long playerID, Payload payload)
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			out.writeLong(playerID);
+			payload.write(out);
+			return bytes.toByteArray();
+		} catch(IOException e) {
+			// Can't happen writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @return CPU used by this node (0 to 1), or -1 if it's unknown
+	 */
+	private double getCpuLoad()
+	{
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+		{
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * One connected bot. A reader thread takes commands and a pump thread sends frames from every player that has credit.
+	 */
+	private class Session {
+		
+		private final Socket socket;
+		private final DataOutputStream out;
+		private final Map<Long, NodePlayer> players;
+		private volatile boolean open = true;
+		
+		private Session(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.players = new ConcurrentHashMap<Long, NodePlayer>();
+		}
+		
+		private void start()
+		{
+			Thread reader = new Thread(this::read, "weeve-node-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+		
+		private void read()
+		{
+			try(Socket socket = this.socket)
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				
+				if(in.readInt() != MAGIC)
+				{
+					Main.log.warn("Dropping {}, it's not a weeve bot", socket.getRemoteSocketAddress());
+					return;
+				}
+				
+				synchronized(out)
+				{
+					out.writeInt(MAGIC);
+					out.flush();
+				}
+				
+				Main.log.info("Bot connected from {}", socket.getRemoteSocketAddress());
+				
+				Thread pump = new Thread(this::pump, "weeve-node-pump");
+				pump.setDaemon(true);
+				pump.start();
+				
+				while(true)
+				{
+					handle(in.readByte(), in.readLong(), in);
+				}
+			} catch(EOFException e) {
+				Main.log.info("Bot disconnected");
+			} catch(IOException e) {
+				Main.log.warn("Lost the bot", e);
+			} finally {
+				open = false;
+				players.values().forEach(player -> player.player.destroy());
+				players.clear();
+			}
+		}
+		
+		private void handle(byte type, long playerID, DataInputStream in) throws IOException
+		{
+			// Not for any player
+			if(type == TOKEN)
+			{
+				String token = in.readUTF();
+				Main.log.info("Got the bot's YouTube link");
+				((CustomYouTubeManager) AudioSource.YOUTUBE.getManager()).useRefreshToken(token);
+				return;
+			}
+			
+			// Only a play brings a player to life. Anything else for a player that's gone (like credit that crossed paths with a destroy) is read and dropped
+			if(type == PLAY)
+			{
+				long seq = in.readLong();
+				long position = in.readLong();
+				byte[] encoded = new byte[in.readInt()];
+				in.readFully(encoded);
+				players.computeIfAbsent(playerID, NodePlayer::new).play(seq, position, encoded);
+				return;
+			}
+			
+			NodePlayer player = players.get(playerID);
+			
+			switch(type)
+			{
+				case STOP:
+					if(player != null) player.stop();
+					break;
+				case PAUSE:
+				{
+					boolean paused = in.readBoolean();
+					if(player != null) player.player.setPaused(paused);
+					break;
+				}
+				case SEEK:
+				{
+					long seq = in.readLong();
+					long position = in.readLong();
+					if(player != null) player.seek(seq, position);
+					break;
+				}
+				case VOLUME:
+				{
+					int volume = in.readInt();
+					if(player != null) player.player.setVolume(volume);
+					break;
+				}
+				case CREDIT:
+				{
+					long seq = in.readLong();
+					int frames = in.readInt();
+					if(player != null) player.credit(seq, frames);
+					break;
+				}
+				case DESTROY:
+					if(player != null)
+					{
+						players.remove(playerID);
+						player.player.destroy();
+					}
+					break;
+				default:
+					throw new IOException("Unknown message type " + type);
+			}
+		}
+		
+		/**
+		 * Sends frames as long as there's credit for them. Sleeps a little when nothing had anything to send.
+		 */
+		private void pump()
+		{
+			MutableAudioFrame frame = new MutableAudioFrame();
+			frame.setBuffer(ByteBuffer.allocate(4096));
+			byte[] data = new byte[4096];
+			long nextLoad = 0;
+			
+			try {
+				while(open)
+				{
+					boolean sent = false;
+					
+					for(NodePlayer player : players.values())
+					{
+						sent |= player.pump(frame, data);
+					}
+					
+					if(System.currentTimeMillis() >= nextLoad)
+					{
+						nextLoad = System.currentTimeMillis() + LOAD_INTERVAL;
+						int playing = (int) players.values().stream().filter(player -> player.player.getPlayingTrack() != null && !player.player.isPaused()).count();
+						double cpu = getCpuLoad();
+						send(message(LOAD, 0, out -> { out.writeInt(players.size()); out.writeInt(playing); out.writeDouble(cpu); }), false);
+						sent = true;
+					}
+					
+					if(sent)
+					{
+						synchronized(out)
+						{
+							out.flush();
+						}
+					}
+					else
+					{
+						Thread.sleep(5);
+					}
+				}
+			} catch(InterruptedException e) {
+				Main.log.warn("Audio node pump was interrupted");
+			} catch(IOException e) {
+				// The reader notices too and cleans up
+				Main.log.debug("Failed to send frames", e);
+			}
+		}
+		
+		private void send(byte[] message, boolean flush) throws IOException
+		{
+			synchronized(out)
+			{
+				out.write(message);
+				if(flush) out.flush();
+			}
+		}
+		
+		/**
+		 * Sends a track event right away. Events come from lavaplayer threads, where there's nobody to tell about a failed write.
+		 */
+		private void sendEvent(byte[] message)
+		{
+			try {
+				send(message, true);
+			} catch(IOException e) {
+				Main.log.debug("Failed to send a track event", e);
+			}
+		}
+		
+		/**
+		 * A player on this node, mirroring a {@link RemoteAudioPlayer} on the bot.
+		 * 
+		 * <p>
+		 * Lock order is {@link #pumping}, then the player's own lock, then this. The player fires events at us under its lock, so this is never held while calling into it.
+		 * </p>
+		 */
+		private class NodePlayer extends AudioEventAdapter {
+			
+			private final long id;
+			private final AudioPlayer player;
+			/** Held while frames are pumped, and while a play or seek switches what they're tagged with, so no frame gets the wrong seq */
+			private final Object pumping = new Object();
+			
+			// Guarded by this
+			/** What the bot is playing on this player. Events for any other track are old news */
+			private AudioTrack current;
+			/** Bumped by the bot on every play and seek, so it can tell old frames apart */
+			private long seq;
+			private int credits;
+			
+			private NodePlayer(long id)
+			{
+				this.id = id;
+				this.player = playerManager.createPlayer();
+				player.addListener(this);
+			}
+			
+			private void play(long seq, long position, byte[] encoded) throws IOException
+			{
+				DecodedTrackHolder holder = playerManager.decodeTrack(new MessageInput(new ByteArrayInputStream(encoded)));
+				AudioTrack track = holder == null ? null : holder.decodedTrack;
+				
+				if(track != null && position > 0)
+				{
+					track.setPosition(position);
+				}
+				
+				synchronized(pumping)
+				{
+					// Current first, so events of the new track (even ones fired by starting it) go out with the new seq and the old track's end is dropped
+					synchronized(this)
+					{
+						this.seq = seq;
+						this.credits = BUFFER_FRAMES;
+						this.current = track;
+					}
+					
+					// Nothing is pumped until the new track is in, so leftover frames of the old one can't go out with the new seq
+					player.startTrack(track, false);
+				}
+				
+				if(track == null)
+				{
+					// The bot was built with a source this node doesn't have
+					sendEvent(message(EXCEPTION, id, out -> { out.writeLong(seq); out.writeUTF("This audio node can't play that track"); out.writeByte(FriendlyException.Severity.COMMON.ordinal()); }));
+					sendEvent(message(END, id, out -> { out.writeLong(seq); out.writeByte(AudioTrackEndReason.LOAD_FAILED.ordinal()); }));
+				}
+			}
+			
+			private void stop()
+			{
+				synchronized(this)
+				{
+					current = null;
+				}
+				
+				player.stopTrack();
+			}
+			
+			private void seek(long seq, long position)
+			{
+				synchronized(pumping)
+				{
+					AudioTrack track;
+					
+					synchronized(this)
+					{
+						this.seq = seq;
+						this.credits = BUFFER_FRAMES;
+						track = current;
+					}
+					
+					if(track != null)
+					{
+						track.setPosition(position);
+					}
+				}
+			}
+			
+			private synchronized void credit(long seq, int frames)
+			{
+				// Credit for frames of an old track came in after the play reset it
+				if(seq == this.seq)
+				{
+					credits = Math.min(BUFFER_FRAMES, credits + frames);
+				}
+			}
+			
+			/**
+			 * @return true if anything was sent
+			 */
+			private boolean pump(MutableAudioFrame frame, byte[] data) throws IOException
+			{
+				boolean sent = false;
+				
+				synchronized(pumping)
+				{
+					while(true)
+					{
+						long seq;
+						
+						// Take the credit up front, providing can't happen under this lock
+						synchronized(this)
+						{
+							if(credits <= 0) break;
+							
+							credits--;
+							seq = this.seq;
+						}
+						
+						// Providing the last frame fires the track end, which sends its own message after the frames
+						if(!player.provide(frame))
+						{
+							synchronized(this)
+							{
+								if(seq == this.seq) credits++;
+							}
+							
+							break;
+						}
+						
+						int length = frame.getDataLength();
+						frame.getData(data, 0);
+						
+						synchronized(out)
+						{
+							out.writeByte(FRAME);
+							out.writeLong(id);
+							out.writeLong(seq);
+							out.writeLong(frame.getTimecode());
+							out.writeShort(length);
+							out.write(data, 0, length);
+						}
+						
+						sent = true;
+					}
+				}
+				
+				return sent;
+			}
+			
+			@Override
+			public void onTrackException(AudioPlayer player, AudioTrack track, FriendlyException exception)
+			{
+				long seq;
+				
+				synchronized(this)
+				{
+					if(track != current) return;
+					seq = this.seq;
+				}
+				
+				String message = exception.getMessage() == null ? "Unknown error" : exception.getMessage();
+				sendEvent(message(EXCEPTION, id, out -> { out.writeLong(seq); out.writeUTF(message); out.writeByte(exception.severity.ordinal()); }));
+			}
+			
+			@Override
+			public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason)
+			{
+				long seq;
+				
+				synchronized(this)
+				{
+					if(track != current) return;
+					current = null;
+					seq = this.seq;
+				}
+				
+				sendEvent(message(END, id, out -> { out.writeLong(seq); out.writeByte(endReason.ordinal()); }));
+			}
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * The {@link AudioNode}s this bot plays through. Each node is one connection that reconnects on its own if the node goes away. New players go to whichever connected node is
+ * playing the least.
+ */
+public class AudioNodes {
+	
+	/** How long to wait before reconnecting to a node (ms) */
+	private static final long RECONNECT_DELAY = 5000;
+	
+	private final AudioPlayerManager playerManager;
+	private final List<Node> nodes;
+	private final AtomicLong playerIDs = new AtomicLong();
+	
+	/**
+	 * @param addresses     nodes to connect to, as a comma separated list of <i>host:port</i>
+	 * @param playerManager encodes tracks to send to the nodes. The nodes need the same sources
+	 */
+	public AudioNodes(String addresses, AudioPlayerManager playerManager)
+	{
+		this.playerManager = playerManager;
+		this.nodes = new ArrayList<Node>();
+		
+		for(String address : addresses.split(","))
+		{
+			int colon = address.lastIndexOf(':');
+			
+			if(colon == -1)
+				throw new IllegalArgumentException("Audio node " + address + " needs a port (host:port)");
+			
+			nodes.add(new Node(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim())));
+		}
+		
+		nodes.forEach(Node::start);
+	}
+	
+	/**
+	 * Creates a player that plays on a node.
+	 * 
+	 * @param sibling player to keep it on the same node as (like a guild's standby player), or null to pick by load
+	 * @return the player
+	 */
+	public RemoteAudioPlayer createPlayer(@Nullable AudioPlayer sibling)
+	{
+		Node preferred = sibling instanceof RemoteAudioPlayer ? ((RemoteAudioPlayer) sibling).getNode() : null;
+		return new RemoteAudioPlayer(this, playerIDs.incrementAndGet(), pick(preferred));
+	}
+	
+	/**
+	 * Picks the node a player should play on.
+	 * 
+	 * @param preferred node to use if it's still connected, or null
+	 * @return the connected node playing the least (CPU breaks ties), or null if none are connected
+	 */
+	@Nullable
+	Node pick(@Nullable Node preferred)
+	{
+		if(preferred != null && preferred.connected) return preferred;
+		
+		Node best = null;
+		
+		for(Node node : nodes)
+		{
+			if(!node.connected) continue;
+			
+			if(best == null || node.getPlaying() < best.getPlaying() || (node.getPlaying() == best.getPlaying() && node.cpu < best.cpu))
+			{
+				best = node;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Encodes a track so a node can rebuild it.
+	 * 
+	 * @param track track to encode
+	 * @return the encoded track
+	 * @throws IOException if the track's source can't encode it
+	 */
+	byte[] encode(AudioTrack track) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		MessageOutput output = new MessageOutput(bytes);
+		playerManager.encodeTrack(output, track);
+		output.finish();
+		return bytes.toByteArray();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return nodes.stream().map(Node::toString).collect(Collectors.joining(", "));
+	}
+	
+	/**
+	 * Connection to one node. A thread per node reads what comes back (and reconnects when it breaks), and another writes, so players never wait on the socket.
+	 */
+	class Node {
+		
+		private final String host;
+		private final int port;
+		private final Map<Long, RemoteAudioPlayer> players;
+		private final LinkedBlockingQueue<byte[]> outgoing;
+		
+		private volatile boolean connected;
+		/** YouTube refresh token this connection was sent, null if none yet */
+		private volatile String sentToken;
+		private volatile int nodePlayers, nodePlaying;
+		private volatile double cpu = -1;
+		private final AtomicLong frames = new AtomicLong(), connects = new AtomicLong();
+		
+		private Node(String host, int port)
+		{
+			this.host = host;
+			this.port = port;
+			this.players = new ConcurrentHashMap<Long, RemoteAudioPlayer>();
+			this.outgoing = new LinkedBlockingQueue<byte[]>();
+		}
+		
+		private void start()
+		{
+			Thread reader = new Thread(this::run, "weeve-node-" + host + ":" + port);
+			reader.setDaemon(true);
+			reader.start();
+		}
+		
+		/**
+		 * @return how many players on this node have something playing, as far as this bot knows
+		 */
+		private int getPlaying()
+		{
+			return (int) players.values().stream().filter(RemoteAudioPlayer::isActive).count();
+		}
+		
+		boolean isConnected()
+		{
+			return connected;
+		}
+		
+		/**
+		 * @return how many times it connected. A new connection may be a new node process that knows nothing about our players
+		 */
+		long getConnects()
+		{
+			return connects.get();
+		}
+		
+		void register(RemoteAudioPlayer player)
+		{
+			players.put(player.getID(), player);
+		}
+		
+		void unregister(RemoteAudioPlayer player)
+		{
+			players.remove(player.getID());
+		}
+		
+		/**
+		 * Queues a message for the node. Dropped if it isn't connected, the players were already told it's gone.
+		 */
+		void send(byte[] message)
+		{
+			if(connected)
+			{
+				outgoing.add(message);
+			}
+		}
+		
+		/**
+		 * Sends the node the YouTube refresh token this bot is linked with, if it hasn't been sent since it last changed. Called before every play, so a node never plays YouTube
+		 * unlinked once the bot is linked.
+		 */
+		void syncYouTubeToken()
+		{
+			String token = ((CustomYouTubeManager) AudioSource.YOUTUBE.getManager()).getOauth2RefreshToken();
+			
+			if(token == null || token.equals(sentToken)) return;
+			
+			sentToken = token;
+			send(AudioNode.message(AudioNode.TOKEN, 0, out -> out.writeUTF(token)));
+		}
+		
+		private void run()
+		{
+			while(true)
+			{
+				try(Socket socket = new Socket())
+				{
+					socket.connect(new InetSocketAddress(host, port), (int) RECONNECT_DELAY);
+					socket.setTcpNoDelay(true);
+					
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					out.writeInt(AudioNode.MAGIC);
+					out.flush();
+					
+					if(in.readInt() != AudioNode.MAGIC)
+						throw new IOException("Not an audio node");
+					
+					outgoing.clear();
+					sentToken = null;
+					connected = true;
+					connects.incrementAndGet();
+					Main.log.info("Connected to audio node {}:{}", host, port);
+					syncYouTubeToken();
+					
+					Thread writer = new Thread(() -> write(socket, out), "weeve-node-writer-" + host + ":" + port);
+					writer.setDaemon(true);
+					writer.start();
+					
+					try {
+						while(true)
+						{
+							read(in);
+						}
+					} finally {
+						writer.interrupt();
+					}
+				} catch(IOException e) {
+					if(connected)
+					{
+						Main.error("Lost audio node " + host + ":" + port, e);
+					}
+					else
+					{
+						Main.log.debug("Can't reach audio node {}:{}", host, port, e);
+					}
+				} finally {
+					if(connected)
+					{
+						connected = false;
+						players.values().forEach(RemoteAudioPlayer::nodeLost);
+					}
+				}
+				
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+		}
+		
+		private void write(Socket socket, DataOutputStream out)
+		{
+			try {
+				while(true)
+				{
+					out.write(outgoing.take());
+					
+					// Write everything that piled up before flushing
+					for(byte[] message = outgoing.poll(); message != null; message = outgoing.poll())
+					{
+						out.write(message);
+					}
+					
+					out.flush();
+				}
+			} catch(InterruptedException e) {
+				// Connection is done
+			} catch(IOException e) {
+				// Makes the reader notice
+				try {
+					socket.close();
+				} catch(IOException ignored) {
+				}
+			}
+		}
+		
+		private void read(DataInputStream in) throws IOException
+		{
+			byte type = in.readByte();
+			RemoteAudioPlayer player = players.get(in.readLong());
+			
+			switch(type)
+			{
+				case AudioNode.FRAME:
+				{
+					long seq = in.readLong();
+					long timecode = in.readLong();
+					byte[] data = new byte[in.readUnsignedShort()];
+					in.readFully(data);
+					frames.incrementAndGet();
+					if(player != null) player.onFrame(seq, timecode, data);
+					break;
+				}
+				case AudioNode.EXCEPTION:
+				{
+					long seq = in.readLong();
+					String message = in.readUTF();
+					FriendlyException.Severity severity = FriendlyException.Severity.values()[in.readByte()];
+					if(player != null) player.onException(seq, new FriendlyException(message, severity, null));
+					break;
+				}
+				case AudioNode.END:
+				{
+					long seq = in.readLong();
+					AudioTrackEndReason reason = AudioTrackEndReason.values()[in.readByte()];
+					if(player != null) player.onEnd(seq, reason);
+					break;
+				}
+				case AudioNode.LOAD:
+					nodePlayers = in.readInt();
+					nodePlaying = in.readInt();
+					cpu = in.readDouble();
+					break;
+				default:
+					throw new IOException("Unknown message type " + type);
+			}
+		}
+		
+		@Override
+		public String toString()
+		{
+			return host + ":" + port + " (" + (connected ? "up" : "down") + ", " + players.size() + " players, " + nodePlaying + "/" + nodePlayers + " playing on node" + (cpu < 0 ? "" : ", " + Math.round(cpu * 100) + "% CPU") + ", " + frames.get() + " frames, " + connects.get() + " connects)";
+		}
+	}
+	
+	/**
+	 * Waits a little for a node to connect. Handy at startup, before the first guild plays anything.
+	 * 
+	 * @param timeout how long to wait (ms)
+	 * @return the nodes that connected in time
+	 */
+	public List<String> awaitConnected(long timeout)
+	{
+		long end = System.currentTimeMillis() + timeout;
+		
+		try {
+			while(nodes.stream().noneMatch(node -> node.connected) && System.currentTimeMillis() < end)
+			{
+				TimeUnit.MILLISECONDS.sleep(50);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		return Collections.unmodifiableList(nodes.stream().filter(node -> node.connected).map(node -> node.host + ":" + node.port).collect(Collectors.toList()));
+	}
+}
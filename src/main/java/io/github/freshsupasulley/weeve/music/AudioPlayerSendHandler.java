@@ -1,6 +1,8 @@
 package io.github.freshsupasulley.weeve.music;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
@@ -12,27 +14,119 @@ import net.dv8tion.jda.api.audio.AudioSendHandler;
  */
 public class AudioPlayerSendHandler implements AudioSendHandler {
 	
-	private final AudioPlayer audioPlayer;
+	/** Swapped when the next track was buffered on another player */
+	private volatile AudioPlayer audioPlayer;
 	private final ByteBuffer buffer;
 	private final MutableAudioFrame frame;
 	
-	public AudioPlayerSendHandler(AudioPlayer audioPlayer)
+	/** Set only while two players are crossfading, frames are passed straight through otherwise */
+	private final AtomicReference<CrossfadeMixer> mixer;
+	/** Gets every mixer once it's done (or cancelled) */
+	private final Consumer<CrossfadeMixer> crossfadeListener;
+	/** Mixed frame for the next {@link #provide20MsAudio()}, only set by the audio thread */
+	private ByteBuffer mixed;
+	
+	private final FrameHealth health;
+	
+	public AudioPlayerSendHandler(AudioPlayer audioPlayer, Consumer<CrossfadeMixer> crossfadeListener, FrameHealth health)
 	{
 		this.audioPlayer = audioPlayer;
-		this.buffer = ByteBuffer.allocate(1024);
+		// Direct, so JDA can send it without another copy
+		this.buffer = ByteBuffer.allocateDirect(1024);
 		this.frame = new MutableAudioFrame();
 		this.frame.setBuffer(buffer);
+		this.mixer = new AtomicReference<CrossfadeMixer>();
+		this.crossfadeListener = crossfadeListener;
+		this.health = health;
+	}
+	
+	/**
+	 * Switches over to another player.
+	 * 
+	 * @param audioPlayer player to pull frames from from now on
+	 */
+	public void setAudioPlayer(AudioPlayer audioPlayer)
+	{
+		this.audioPlayer = audioPlayer;
+	}
+	
+	/**
+	 * Pulls frames through a mixer until it's done, then goes back to passing frames through. Cancels the crossfade in progress, if there is one.
+	 * 
+	 * @param crossfade the mixer
+	 */
+	public void crossfade(CrossfadeMixer crossfade)
+	{
+		finish(mixer.getAndSet(crossfade));
+	}
+	
+	/**
+	 * Stops the crossfade in progress, if there is one.
+	 */
+	public void cancelCrossfade()
+	{
+		finish(mixer.getAndSet(null));
+	}
+	
+	private void finish(CrossfadeMixer crossfade)
+	{
+		if(crossfade != null)
+		{
+			crossfade.close();
+			crossfadeListener.accept(crossfade);
+		}
 	}
 	
 	@Override
 	public boolean canProvide()
 	{
-		return audioPlayer.provide(frame);
+		long start = System.nanoTime();
+		CrossfadeMixer crossfade = mixer.get();
+		
+		if(crossfade != null)
+		{
+			mixed = crossfade.provide();
+			
+			if(mixed != null)
+			{
+				health.recordProvided(System.nanoTime() - start, crossfade.wasMixed());
+				return true;
+			}
+			
+			// Done mixing. Don't finish it twice if it was cancelled in the meantime
+			if(mixer.compareAndSet(crossfade, null))
+			{
+				finish(crossfade);
+			}
+		}
+		
+		AudioPlayer player = audioPlayer;
+		
+		if(player.provide(frame))
+		{
+			health.recordProvided(System.nanoTime() - start, false);
+			return true;
+		}
+		
+		// Something should be playing but there was no frame ready
+		if(player.getPlayingTrack() != null && !player.isPaused())
+		{
+			health.recordMissed(System.nanoTime() - start);
+		}
+		
+		return false;
 	}
 	
 	@Override
 	public ByteBuffer provide20MsAudio()
 	{
+		if(mixed != null)
+		{
+			ByteBuffer result = mixed;
+			mixed = null;
+			return result;
+		}
+		
 		return buffer.flip();
 	}
 	
@@ -41,4 +135,4 @@ public class AudioPlayerSendHandler implements AudioSendHandler {
 	{
 		return true;
 	}
-}
\ No newline at end of file
+}
@@ -1,32 +1,205 @@
 package io.github.freshsupasulley.weeve.music;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.tools.Units;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 
+import io.github.freshsupasulley.weeve.Main;
 import net.dv8tion.jda.api.entities.channel.middleman.AudioChannel;
 
+/**
+ * A queued track. Queues can get huge (whole playlists), so this only keeps what's needed to show the track and to rebuild it later. The full {@link AudioTrack} is only resolved
+ * shortly before it plays.
+ */
 public class AudioRequest {
 	
-	private AudioTrack track;
-	private AudioChannel audioChannel;
+	/** Most sources encode nothing past the info, those all share this */
+	private static final byte[] NO_DETAILS = new byte[0];
+	
+	private final AudioSourceManager sourceManager;
+	private final AudioTrackInfo info;
+	/** What the source encodes for the track past its info (like the container it's in), null if it can't be rebuilt */
+	private final byte[] details;
+	private final long guildID, channelID;
+	
+	/** Resolved track, null until it's close to playing */
+	private volatile AudioTrack track;
+	/** How this shows up in the queue, rendered the first time it's shown */
+	private volatile String queueLine;
 	
 	public AudioRequest(AudioTrack track, AudioChannel audioChannel)
 	{
-		this.track = track;
-		this.audioChannel = audioChannel;
+		// Don't hold on to the JDA entity, it goes stale anyway
+		this(track, audioChannel.getGuild().getIdLong(), audioChannel.getIdLong());
+	}
+	
+	AudioRequest(AudioTrack track, long guildID, long channelID)
+	{
+		this.sourceManager = track.getSourceManager();
+		
+		// Only keep the parts we show. Authors repeat a lot in playlists so share them
+		AudioTrackInfo original = track.getInfo();
+		this.info = new AudioTrackInfo(original.title, original.author == null ? null : original.author.intern(), original.length, original.identifier, original.isStream, original.uri, null, null);
+		
+		this.guildID = guildID;
+		this.channelID = channelID;
+		this.details = encodeDetails(track);
+		
+		// Tracks that can't be rebuilt are kept around instead
+		if(details == null)
+		{
+			this.track = track;
+		}
+	}
+	
+	/**
+	 * @return what the source encodes for the track past its info, or null if it doesn't come from a source or the source can't encode it
+	 */
+	private byte[] encodeDetails(AudioTrack track)
+	{
+		if(sourceManager == null) return null;
+		
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			sourceManager.encodeTrack(track, new DataOutputStream(bytes));
+			return bytes.size() == 0 ? NO_DETAILS : bytes.toByteArray();
+		} catch(IOException | RuntimeException e) {
+			Main.log.debug("Can't encode <{}>, keeping the whole track", info.uri, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @return ID of the guild this was requested in
+	 */
+	public long getGuildID()
+	{
+		return guildID;
+	}
+	
+	/**
+	 * @return ID of the audio channel of the member who made the request
+	 */
+	public long getChannelID()
+	{
+		return channelID;
+	}
+	
+	/**
+	 * @return source the track came from, null if it doesn't come from one
+	 */
+	public AudioSourceManager getSourceManager()
+	{
+		return sourceManager;
 	}
 	
-	public AudioChannel getAudioChannel()
+	/**
+	 * @return true if the track is rebuilt from the source when it's needed, instead of being kept whole
+	 */
+	public boolean canRebuild()
 	{
-		return audioChannel;
+		return details != null;
 	}
 	
+	/**
+	 * @return info about the track, without resolving it
+	 */
+	public AudioTrackInfo getInfo()
+	{
+		return info;
+	}
+	
+	/**
+	 * Gets how this request is shown in the queue (title, duration and link). Nothing in it depends on where it is in the queue, so it's rendered once and kept.
+	 * 
+	 * @return the rendered line
+	 */
+	public String getQueueLine()
+	{
+		String line = queueLine;
+		
+		if(line == null)
+		{
+			queueLine = line = new RequestInfoBuilder().showDuration().showLink().apply(this);
+		}
+		
+		return line;
+	}
+	
+	/**
+	 * Gets the full track, resolving it first if needed. Resolving is done locally through the source manager, there's no round trip to the source.
+	 * 
+	 * @return the playable track
+	 */
 	public AudioTrack getAudioTrack()
 	{
-		return track;
+		AudioTrack resolved = track;
+		
+		if(resolved == null)
+		{
+			track = resolved = rebuild();
+		}
+		
+		return resolved;
+	}
+	
+	/**
+	 * Builds a fresh track from the source manager without keeping it. Only works if {@link #canRebuild()}.
+	 * 
+	 * @return the new track, or null if it couldn't be built (the source doesn't recognize it anymore)
+	 */
+	AudioTrack rebuild()
+	{
+		try {
+			return sourceManager.decodeTrack(info, new DataInputStream(new ByteArrayInputStream(details)));
+		} catch(IOException | RuntimeException e) {
+			Main.error("Failed to resolve " + info.uri, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Resolves the track ahead of time.
+	 */
+	public void resolve()
+	{
+		getAudioTrack();
+	}
+	
+	/**
+	 * Drops the resolved track, like after it was started somewhere else. A track can only be played once, so the next {@link #getAudioTrack()} gives a fresh one.
+	 */
+	public void release()
+	{
+		AudioTrack resolved = track;
+		
+		// Clone the tracks that can't be rebuilt instead
+		track = !canRebuild() && resolved != null ? resolved.makeClone() : null;
+	}
+	
+	/**
+	 * Drops the resolved track if it can be rebuilt later, like when it isn't up next anymore.
+	 */
+	public void compact()
+	{
+		if(canRebuild())
+		{
+			track = null;
+		}
 	}
 	
-	public void openAudioConnection()
+	/**
+	 * @return duration (millis) of the track, or {@link Units#DURATION_MS_UNKNOWN} if it's a stream
+	 */
+	public long getDuration()
 	{
-		audioChannel.getGuild().getAudioManager().openAudioConnection(audioChannel);
+		return info.isStream ? Units.DURATION_MS_UNKNOWN : info.length;
 	}
 }
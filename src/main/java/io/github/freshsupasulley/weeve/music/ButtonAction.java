@@ -14,5 +14,13 @@ public interface ButtonAction {
 		});
 	}
 	
+	/**
+	 * @return roughly how many bytes this action keeps alive while it waits to be pressed
+	 */
+	default long getRetainedSize()
+	{
+		return 64;
+	}
+	
 	public void fire(InteractionHook hook, Button button, AudioHandler handler);
 }
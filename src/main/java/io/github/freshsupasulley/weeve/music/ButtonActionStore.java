@@ -0,0 +1,183 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * What each button of every search reply does, keyed by message ID, across all guilds. Replies nobody clicks would otherwise hold on to their tracks forever, so entries expire
+ * after a while (around when Discord stops letting the reply be edited anyway) and the oldest are dropped past a max size.
+ */
+public class ButtonActionStore {
+	
+	private final int maxSize;
+	private final long ttl;
+	
+	/** Insertion ordered, so the eldest entry is also the first to expire */
+	private final LinkedHashMap<String, Message> entries;
+	/** Message IDs of each guild, so a guild's entries can be dropped without going through everyone's */
+	private final Map<Long, Set<String>> guilds;
+	private long retained, expired, evicted;
+	
+	/**
+	 * @param maxSize maximum number of messages to keep actions for
+	 * @param ttl     time (millis) a message's buttons keep working
+	 */
+	public ButtonActionStore(int maxSize, long ttl)
+	{
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.guilds = new HashMap<Long, Set<String>>();
+		this.entries = new LinkedHashMap<String, Message>()
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Message> eldest)
+			{
+				if(size() > ButtonActionStore.this.maxSize)
+				{
+					retained -= eldest.getValue().size;
+					unindex(eldest.getKey(), eldest.getValue());
+					evicted++;
+					return true;
+				}
+				
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Maps a button of a message to an action.
+	 * 
+	 * @param guildID   guild the message was sent in
+	 * @param messageID ID of the message
+	 * @param buttonID  ID of the button
+	 * @param action    what pressing it does
+	 * @return false if the button was already mapped (it's replaced)
+	 */
+	public synchronized boolean put(long guildID, String messageID, String buttonID, ButtonAction action)
+	{
+		Message entry = entries.get(messageID);
+		
+		if(entry == null)
+		{
+			entry = new Message(guildID);
+			entries.put(messageID, entry);
+			guilds.computeIfAbsent(guildID, id -> new HashSet<String>()).add(messageID);
+		}
+		
+		ButtonAction previous = entry.actions.put(buttonID, action);
+		long size = action.getRetainedSize() - (previous == null ? 0 : previous.getRetainedSize());
+		entry.size += size;
+		retained += size;
+		return previous == null;
+	}
+	
+	/**
+	 * Takes the actions of a message out of the store, since only one of its buttons can be pressed.
+	 * 
+	 * @param messageID ID of the message
+	 * @return the message's actions by button ID, or null if there's none (or they expired)
+	 */
+	@Nullable
+	public synchronized Map<String, ButtonAction> remove(String messageID)
+	{
+		Message entry = entries.remove(messageID);
+		
+		if(entry == null) return null;
+		
+		retained -= entry.size;
+		unindex(messageID, entry);
+		
+		if(entry.isExpired(System.currentTimeMillis()))
+		{
+			expired++;
+			return null;
+		}
+		
+		return entry.actions;
+	}
+	
+	/**
+	 * Drops the actions of every message in a guild (like when its queue is reset).
+	 * 
+	 * @param guildID ID of the guild
+	 */
+	public synchronized void removeGuild(long guildID)
+	{
+		Set<String> messageIDs = guilds.remove(guildID);
+		
+		if(messageIDs == null) return;
+		
+		for(String messageID : messageIDs)
+		{
+			retained -= entries.remove(messageID).size;
+		}
+	}
+	
+	/**
+	 * Drops every expired entry. They're the oldest, so this stops at the first one that isn't.
+	 */
+	public synchronized void evictExpired()
+	{
+		long now = System.currentTimeMillis();
+		
+		for(Iterator<Map.Entry<String, Message>> iterator = entries.entrySet().iterator(); iterator.hasNext();)
+		{
+			Map.Entry<String, Message> entry = iterator.next();
+			
+			if(!entry.getValue().isExpired(now)) break;
+			
+			retained -= entry.getValue().size;
+			unindex(entry.getKey(), entry.getValue());
+			expired++;
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * Takes a message that's leaving the store out of its guild's index.
+	 */
+	private void unindex(String messageID, Message entry)
+	{
+		Set<String> messageIDs = guilds.get(entry.guildID);
+		
+		if(messageIDs != null && messageIDs.remove(messageID) && messageIDs.isEmpty())
+		{
+			guilds.remove(entry.guildID);
+		}
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return entries.size() + "/" + maxSize + " messages (~" + retained / 1024 + " KB), " + expired + " expired, " + evicted + " evicted";
+	}
+	
+	private class Message {
+		
+		private final long guildID, created;
+		private final Map<String, ButtonAction> actions;
+		/** Estimated bytes its actions hold on to */
+		private long size;
+		
+		private Message(long guildID)
+		{
+			this.guildID = guildID;
+			this.created = System.currentTimeMillis();
+			this.actions = new HashMap<String, ButtonAction>();
+		}
+		
+		private boolean isExpired(long now)
+		{
+			return now - created > ttl;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioProcessingContext;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+/**
+ * Track played back from the {@link AudioCache}. The recorded Opus frames are read straight out of a memory-mapped file and handed to the frame buffer, so nothing is
+ * downloaded or decoded. Seeking just jumps to another frame.
+ * 
+ * <p>
+ * The file is mapped as soon as the track is made, so the cache evicting it in the meantime (like while it's prefetched) doesn't pull it out from under the track.
+ * </p>
+ */
+public class CachedAudioTrack extends BaseAudioTrack {
+	
+	private final AudioSourceManager sourceManager;
+	private final Path file;
+	private final long size;
+	/** The whole recording. Shared with clones, each play reads through its own view */
+	private final ByteBuffer data;
+	
+	/** Frame to play next. Written by seeks, which happen on the same thread as reads */
+	private int nextFrame;
+	
+	/**
+	 * @param info          info of the original track
+	 * @param sourceManager source the original track came from
+	 * @param file          the recording
+	 * @param size          size (bytes) of the recording
+	 * @throws IOException if the recording can't be mapped (like when it was just evicted)
+	 */
+	public CachedAudioTrack(AudioTrackInfo info, AudioSourceManager sourceManager, Path file, long size) throws IOException
+	{
+		this(info, sourceManager, file, size, map(file));
+	}
+	
+	private CachedAudioTrack(AudioTrackInfo info, AudioSourceManager sourceManager, Path file, long size, ByteBuffer data)
+	{
+		super(info);
+		this.sourceManager = sourceManager;
+		this.file = file;
+		this.size = size;
+		this.data = data;
+	}
+	
+	/**
+	 * Maps a recording. The mapping stays valid after the channel is closed (or the file is deleted).
+	 */
+	private static ByteBuffer map(Path file) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+	
+	@Override
+	public void process(LocalAudioTrackExecutor executor) throws Exception
+	{
+		int[] offsets = index(data);
+		AudioProcessingContext context = executor.getProcessingContext();
+		
+		// Reused for every frame, the frame buffer copies it out right away
+		byte[] scratch = new byte[context.outputFormat.maximumChunkSize()];
+		MutableAudioFrame frame = new MutableAudioFrame();
+		frame.setBuffer(ByteBuffer.allocate(scratch.length));
+		frame.setFormat(context.outputFormat);
+		frame.setVolume(100);
+		
+		long frameDuration = context.outputFormat.frameDuration();
+		ByteBuffer reader = data.duplicate();
+		
+		executor.executeProcessingLoop(() ->
+		{
+			for(; nextFrame < offsets.length; nextFrame++)
+			{
+				int offset = offsets[nextFrame];
+				int length = data.getShort(offset) & 0xFFFF;
+				
+				reader.position(offset + 2);
+				reader.get(scratch, 0, length);
+				frame.setTimecode(nextFrame * frameDuration);
+				frame.store(scratch, 0, length);
+				context.frameBuffer.consume(frame);
+			}
+		}, position -> nextFrame = (int) Math.min(offsets.length, Math.max(0, position / frameDuration)));
+	}
+	
+	/**
+	 * Finds where every frame starts.
+	 */
+	private static int[] index(ByteBuffer data)
+	{
+		ByteBuffer reader = data.duplicate();
+		
+		if(reader.getInt() != AudioCache.MAGIC)
+			throw new IllegalStateException("Not a cached track");
+		
+		// Skip the key
+		reader.position(reader.position() + 2 + (reader.getShort(reader.position()) & 0xFFFF));
+		
+		int[] offsets = new int[16384];
+		int count = 0;
+		
+		while(reader.remaining() >= 2)
+		{
+			int length = reader.getShort(reader.position()) & 0xFFFF;
+			
+			// Cut off at the end, don't play half a frame
+			if(reader.remaining() < 2 + length) break;
+			
+			if(count == offsets.length)
+			{
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			
+			offsets[count++] = reader.position();
+			reader.position(reader.position() + 2 + length);
+		}
+		
+		return Arrays.copyOf(offsets, count);
+	}
+	
+	@Override
+	protected AudioTrack makeShallowClone()
+	{
+		return new CachedAudioTrack(trackInfo, sourceManager, file, size, data);
+	}
+	
+	@Override
+	public AudioSourceManager getSourceManager()
+	{
+		return sourceManager;
+	}
+	
+	/**
+	 * @return the recording
+	 */
+	public Path getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * @return size (bytes) of the recording, which is roughly what wasn't downloaded
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+}
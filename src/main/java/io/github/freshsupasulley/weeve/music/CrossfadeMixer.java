@@ -0,0 +1,193 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusDecoder;
+import com.sedmelluq.discord.lavaplayer.natives.opus.OpusEncoder;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+/**
+ * Fades one player out and another one in. Both players put out Opus, so every frame of the overlap gets decoded, mixed and re-encoded. This only exists for the length of the
+ * overlap, outside of it frames are passed through untouched.
+ * 
+ * <p>
+ * The audio thread provides frames while anyone may close it, so both are synchronized.
+ * </p>
+ */
+public class CrossfadeMixer implements AutoCloseable {
+	
+	// Discord's Opus format, which is what lavaplayer puts out by default
+	private static final int SAMPLE_RATE = 48000, CHANNELS = 2, FRAME_SIZE = 960;
+	private static final int MAX_FRAME_BYTES = 4096;
+	/** Same as lavaplayer's default encoding quality */
+	private static final int ENCODING_QUALITY = 10;
+	
+	private final AudioPlayer outgoing, incoming;
+	private final int totalFrames;
+	private int mixedFrames;
+	private long mixNanos;
+	private boolean finished;
+	/** If the last frame provided was actually mixed, or just passed through */
+	private boolean lastMixed;
+	private boolean closed;
+	
+	private final OpusDecoder outgoingDecoder, incomingDecoder;
+	private final OpusEncoder encoder;
+	
+	// Natives only work with direct buffers
+	private final ByteBuffer outgoingData, incomingData, output;
+	private final ShortBuffer outgoingPcm, incomingPcm, mixedPcm;
+	private final MutableAudioFrame outgoingFrame, incomingFrame;
+	
+	/**
+	 * @param outgoing    player to fade out
+	 * @param incoming    player to fade in
+	 * @param totalFrames length of the overlap in 20ms frames
+	 */
+	public CrossfadeMixer(AudioPlayer outgoing, AudioPlayer incoming, int totalFrames)
+	{
+		this.outgoing = outgoing;
+		this.incoming = incoming;
+		this.totalFrames = totalFrames;
+		
+		this.outgoingDecoder = new OpusDecoder(SAMPLE_RATE, CHANNELS);
+		this.incomingDecoder = new OpusDecoder(SAMPLE_RATE, CHANNELS);
+		this.encoder = new OpusEncoder(SAMPLE_RATE, CHANNELS, ENCODING_QUALITY);
+		
+		this.outgoingData = ByteBuffer.allocateDirect(MAX_FRAME_BYTES);
+		this.incomingData = ByteBuffer.allocateDirect(MAX_FRAME_BYTES);
+		this.output = ByteBuffer.allocateDirect(MAX_FRAME_BYTES);
+		this.outgoingPcm = allocatePcm();
+		this.incomingPcm = allocatePcm();
+		this.mixedPcm = allocatePcm();
+		
+		this.outgoingFrame = new MutableAudioFrame();
+		this.outgoingFrame.setBuffer(outgoingData);
+		this.incomingFrame = new MutableAudioFrame();
+		this.incomingFrame.setBuffer(incomingData);
+	}
+	
+	private static ShortBuffer allocatePcm()
+	{
+		return ByteBuffer.allocateDirect(FRAME_SIZE * CHANNELS * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+	}
+	
+	/**
+	 * Provides the next frame of the overlap.
+	 * 
+	 * @return the Opus frame to send, or null if the overlap is over (or there's nothing to send this time)
+	 */
+	public synchronized ByteBuffer provide()
+	{
+		if(finished)
+		{
+			return null;
+		}
+		
+		long start = System.nanoTime();
+		lastMixed = false;
+		boolean hasIncoming = incoming.provide(incomingFrame);
+		boolean hasOutgoing = outgoing.provide(outgoingFrame);
+		
+		// Outgoing track ran out (or the overlap is over, or providing ended up closing us), send whatever the incoming one has as is
+		if(closed || !hasOutgoing || mixedFrames >= totalFrames)
+		{
+			finished = true;
+			return hasIncoming ? incomingData.flip() : null;
+		}
+		
+		// Incoming track isn't ready yet, keep the outgoing one going
+		if(!hasIncoming)
+		{
+			return outgoingData.flip();
+		}
+		
+		outgoingDecoder.decode(outgoingData.flip(), outgoingPcm);
+		incomingDecoder.decode(incomingData.flip(), incomingPcm);
+		
+		// Linear fade across the whole overlap
+		float progress = (mixedFrames + 0.5f) / totalFrames;
+		mixedPcm.clear();
+		
+		for(int i = 0; i < FRAME_SIZE * CHANNELS; i++)
+		{
+			int outgoingSample = i < outgoingPcm.limit() ? outgoingPcm.get(i) : 0;
+			int incomingSample = i < incomingPcm.limit() ? incomingPcm.get(i) : 0;
+			int mixed = Math.round(outgoingSample * (1 - progress) + incomingSample * progress);
+			mixedPcm.put(i, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed)));
+		}
+		
+		encoder.encode(mixedPcm, FRAME_SIZE, output);
+		lastMixed = true;
+		mixedFrames++;
+		mixNanos += System.nanoTime() - start;
+		return output;
+	}
+	
+	/**
+	 * @return true if the overlap is over
+	 */
+	public synchronized boolean isFinished()
+	{
+		return finished;
+	}
+	
+	/**
+	 * @return true if the last frame provided was re-encoded, false if it was passed through as is
+	 */
+	public synchronized boolean wasMixed()
+	{
+		return lastMixed;
+	}
+	
+	/**
+	 * @return the player being faded out
+	 */
+	public AudioPlayer getOutgoing()
+	{
+		return outgoing;
+	}
+	
+	/**
+	 * @return the player being faded in
+	 */
+	public AudioPlayer getIncoming()
+	{
+		return incoming;
+	}
+	
+	/**
+	 * @return number of frames that were actually mixed and re-encoded
+	 */
+	public synchronized int getMixedFrames()
+	{
+		return mixedFrames;
+	}
+	
+	/**
+	 * @return time (nanos) spent providing, decoding, mixing and encoding mixed frames
+	 */
+	public synchronized long getMixNanos()
+	{
+		return mixNanos;
+	}
+	
+	/**
+	 * Ends the overlap and frees the native codecs. Safe to call from any thread, and more than once.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		finished = true;
+		
+		if(closed) return;
+		
+		closed = true;
+		outgoingDecoder.close();
+		incomingDecoder.close();
+		encoder.close();
+	}
+}
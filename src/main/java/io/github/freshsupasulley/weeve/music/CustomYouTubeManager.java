@@ -1,6 +1,11 @@
 package io.github.freshsupasulley.weeve.music;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -19,110 +24,222 @@ import dev.lavalink.youtube.http.RefreshTokenQueryResponse;
 import io.github.freshsupasulley.weeve.Main;
 import net.dv8tion.jda.api.interactions.components.buttons.Button;
 
+/**
+ * YouTube source that links itself with a Google account through the OAuth device flow. Polling for the link and keeping the access token fresh both happen in the background
+ * (see {@link #start()}), so loads never wait on Google for anything but the load itself.
+ */
 public class CustomYouTubeManager extends YoutubeAudioSourceManager {
 	
-	// OAuth information
-	private long lastOauthCheck, interval;
-	private String userCode, deviceCode;
+	/** Google access tokens last an hour, refresh well before that */
+	private static final long TOKEN_REFRESH = TimeUnit.MINUTES.toMillis(30);
+	/** What to poll at if Google doesn't say */
+	private static final long DEFAULT_POLL_INTERVAL = 5000;
+	/** Search prefixes of every other source (like scsearch:) */
+	private static final Pattern OTHER_SEARCH = Pattern.compile("^[a-z]+search:");
+	
+	private ScheduledExecutorService oauth;
+	/** False if the refresh token comes from somewhere else (see {@link #useRefreshToken(String)}), so there's no linking here */
+	private volatile boolean link;
+	
+	// OAuth information. Only the OAuth thread writes these
+	private volatile String userCode;
+	private String deviceCode;
+	private long interval, lastOauthCheck, lastRefresh;
 	
 	public CustomYouTubeManager(@NotNull Client... clients)
 	{
 		super(clients);
 	}
 	
-	@Override
-	public @Nullable AudioItem loadItem(@NotNull AudioPlayerManager manager, @NotNull AudioReference reference)
+	/**
+	 * Starts linking with Google (or keeping the link alive) in the background. Call once at boot.
+	 */
+	public void start()
 	{
-		// Return null if this isn't a YouTube request
-		try(HttpInterface httpInterface = httpInterfaceManager.getInterface())
+		start(true);
+	}
+	
+	private synchronized void start(boolean link)
+	{
+		if(oauth != null) return;
+		
+		this.link = link;
+		oauth = Executors.newSingleThreadScheduledExecutor(runnable ->
 		{
-			Router router = getRouter(httpInterface, reference.identifier);
-			
-			if(router == null)
+			Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+			thread.setName("weeve-youtube-oauth");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		// Ticks often so it can follow whatever poll interval Google asks for, it only goes out to Google when something's due
+		oauth.scheduleWithFixedDelay(this::tick, 0, 1, TimeUnit.SECONDS);
+	}
+	
+	private void tick()
+	{
+		try {
+			if(getOauth2RefreshToken() == null)
+			{
+				if(link)
+				{
+					pollDeviceCode();
+				}
+			}
+			else if(System.currentTimeMillis() - lastRefresh > TOKEN_REFRESH)
 			{
-				Main.log.debug("YouTube can't handle this audio reference, exiting");
-				return null;
+				// The first refresh also fetches the access token for a refresh token that was set some other way
+				lastRefresh = System.currentTimeMillis();
+				getOauth2Handler().refreshAccessToken(true);
+				Main.log.debug("Refreshed YouTube access token");
 			}
-		} catch(IOException e)
+		} catch(Exception e) {
+			// Keep ticking, a scheduled task that throws never runs again
+			Main.log.warn("YouTube OAuth failed: {}", e.getMessage());
+		}
+	}
+	
+	private void pollDeviceCode()
+	{
+		// If we never logged in before
+		if(this.userCode == null)
 		{
-			throw ExceptionTools.toRuntimeException(e);
+			Main.log.info("Starting oauth");
+			
+			// Start OAuth
+			JsonObject object = this.getOauth2Handler().fetchDeviceCode();
+			this.deviceCode = object.getString("device_code");
+			this.interval = object.getLong("interval") * 1000; // to ms
+			this.userCode = object.getString("user_code");
+			return;
 		}
 		
-		// First check if we are authenticated with YouTube
-		// If we don't have a refresh token yet
-		if(getOauth2RefreshToken() == null)
+		// Check if it came in the mail today
+		if(System.currentTimeMillis() - lastOauthCheck <= (interval == 0 ? DEFAULT_POLL_INTERVAL : interval)) return;
+		
+		this.lastOauthCheck = System.currentTimeMillis();
+		
+		// Check if authenticated
+		try
 		{
-			// If we never logged in before
-			if(this.userCode == null)
+			Main.log.debug("Checking if oauth is completed");
+			RefreshTokenQueryResponse response = this.getOauth2Handler().getRefreshTokenByDeviceCode(deviceCode);
+			String error = response.getError();
+			
+			// If we don't have the code yet
+			if(error != null)
 			{
-				Main.log.info("Starting oauth");
-				
-				// Start OAuth
-				JsonObject object = this.getOauth2Handler().fetchDeviceCode();
-				this.userCode = object.getString("user_code");
-				this.deviceCode = object.getString("device_code");
-				this.interval = object.getLong("interval") * 1000; // to ms
+				switch(error)
+				{
+					case "authorization_pending":
+						// Still waiting
+						break;
+					case "slow_down":
+						interval += DEFAULT_POLL_INTERVAL;
+						break;
+					default:
+						// Error occurred. Restart login
+						throw new IOException(error);
+				}
 			}
 			else
 			{
-				// Check if it came in the mail today
-				// If we are already in a state of checking and we can check again
-				if(System.currentTimeMillis() - lastOauthCheck > (interval == 0 ? 5000 : interval))
+				// Success!
+				Main.log.info("Linked with YouTube");
+				JsonObject json = response.getJsonObject();
+				this.getOauth2Handler().updateTokens(json);
+				
+				// Manually set the refresh token to toggle enable flag
+				this.getOauth2Handler().setRefreshToken(json.getString("refresh_token"), true);
+				
+				// The access token we just got is fresh
+				this.lastRefresh = System.currentTimeMillis();
+			}
+		} catch(IOException | JsonParserException e)
+		{
+			Main.log.warn("Failed to link with Google");
+			Main.log.warn(e.getMessage());
+			this.userCode = null;
+			this.deviceCode = null;
+		}
+	}
+	
+	/**
+	 * Uses a refresh token that was linked somewhere else, like on an audio node, which gets the bot's. Nothing is linked here (nobody would see the code), the access token is
+	 * just kept fresh in the background.
+	 * 
+	 * @param refreshToken the refresh token
+	 */
+	public void useRefreshToken(String refreshToken)
+	{
+		// Only sets it. The access token comes from the OAuth thread, or the first load that needs it
+		getOauth2Handler().setRefreshToken(refreshToken, true);
+		start(false);
+		
+		synchronized(this)
+		{
+			// Refresh on the next tick
+			oauth.execute(() -> lastRefresh = 0);
+		}
+	}
+	
+	@Override
+	public @Nullable AudioItem loadItem(@NotNull AudioPlayerManager manager, @NotNull AudioReference reference)
+	{
+		// Return null if this isn't a YouTube request. The base class finds its router again anyway, so skip it when we can tell from the identifier alone
+		if(!mightBeYouTube(reference.identifier)) return null;
+		
+		// First check if we are authenticated with YouTube
+		if(getOauth2RefreshToken() == null)
+		{
+			// Something we couldn't rule out cheaply, find out for sure before asking for credentials
+			try(HttpInterface httpInterface = httpInterfaceManager.getInterface())
+			{
+				if(getRouter(httpInterface, reference.identifier) == null)
 				{
-					this.lastOauthCheck = System.currentTimeMillis();
-					
-					// Check if authenticated
-					try
-					{
-						Main.log.info("Checking if oauth is completed");
-						RefreshTokenQueryResponse response = this.getOauth2Handler().getRefreshTokenByDeviceCode(deviceCode);
-						String error = response.getError();
-						
-						// If we don't have the code yet
-						if(error != null)
-						{
-							switch(error)
-							{
-								case "authorization_pending":
-								case "slow_down":
-									// Still waiting
-									Main.log.info("Still waiting on response");
-									break;
-								default:
-									// Error occurred. Restart login
-									throw new IOException(error);
-							}
-						}
-						else
-						{
-							// Success!
-							Main.log.info("Linked with YouTube");
-							JsonObject json = response.getJsonObject();
-							this.getOauth2Handler().updateTokens(json);
-							
-							// Manually set the refresh token to toggle enable flag
-							this.getOauth2Handler().setRefreshToken(json.getString("refresh_token"), true);
-						}
-					} catch(IOException | JsonParserException e)
-					{
-						Main.log.warn("Failed to link with Google");
-						Main.log.warn(e.getMessage());
-						this.userCode = null;
-						this.deviceCode = null;
-					}
+					Main.log.debug("YouTube can't handle this audio reference, exiting");
+					return null;
 				}
+			} catch(IOException e)
+			{
+				throw ExceptionTools.toRuntimeException(e);
 			}
 			
-			// Check again if we have code
-			if(getOauth2RefreshToken() == null)
+			String userCode = this.userCode;
+			
+			if(userCode == null)
 			{
-				throw new NoCredentialsException((event) -> event.sendMessage("__To start using **YouTube**__:\nLink " + Main.getBotName() + " with a burner Google account. Go to <https://www.google.com/device> and enter code **" + userCode + "**.\n*You only need to do this once!*").addActionRow(Button.link("https://www.google.com/device", "Link")));
+				throw new NoCredentialsException((event) -> event.sendMessage("**YouTube** isn't linked yet. Try again in a bit."));
 			}
+			
+			throw new NoCredentialsException((event) -> event.sendMessage("__To start using **YouTube**__:\nLink " + Main.getBotName() + " with a burner Google account. Go to <https://www.google.com/device> and enter code **" + userCode + "**.\n*You only need to do this once!*").addActionRow(Button.link("https://www.google.com/device", "Link")));
 		}
 		
 		return super.loadItem(manager, reference);
 	}
 	
+	/**
+	 * Rules out identifiers that are obviously for another source (their searches and links), without going through the routers.
+	 * 
+	 * @param identifier identifier of the reference
+	 * @return false if YouTube definitely can't handle it
+	 */
+	static boolean mightBeYouTube(String identifier)
+	{
+		if(identifier.startsWith(SEARCH_PREFIX) || identifier.startsWith(MUSIC_SEARCH_PREFIX)) return true;
+		if(OTHER_SEARCH.matcher(identifier).find()) return false;
+		
+		// Shorthands like bare video IDs are up to the routers
+		if(!identifier.startsWith("http://") && !identifier.startsWith("https://")) return true;
+		
+		try {
+			String host = URI.create(identifier).getHost();
+			return host == null || host.endsWith("youtube.com") || host.endsWith("youtu.be") || host.endsWith("youtube-nocookie.com");
+		} catch(IllegalArgumentException e) {
+			return true;
+		}
+	}
+	
 	/**
 	 * @return true if YouTube has the appropriate credentials to start handling requests, false otherwise
 	 */
@@ -130,4 +247,18 @@ public class CustomYouTubeManager extends YoutubeAudioSourceManager {
 	{
 		return getOauth2RefreshToken() != null;
 	}
+	
+	@Override
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			if(oauth != null)
+			{
+				oauth.shutdownNow();
+			}
+		}
+		
+		super.shutdown();
+	}
 }
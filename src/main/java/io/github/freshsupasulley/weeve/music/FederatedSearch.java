@@ -0,0 +1,171 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+import io.github.freshsupasulley.weeve.Main;
+import net.dv8tion.jda.api.entities.channel.middleman.AudioChannel;
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.interactions.components.ActionRow;
+import net.dv8tion.jda.api.interactions.components.buttons.Button;
+import net.dv8tion.jda.api.interactions.components.buttons.ButtonStyle;
+import net.dv8tion.jda.api.utils.MarkdownSanitizer;
+import net.dv8tion.jda.internal.interactions.component.ButtonImpl;
+
+/**
+ * A search that went out to every source at once, merged into one selection. The selection shows up as soon as the fastest source answers and is edited as the slower ones come
+ * in. Sources are listed in the order they answered, so the buttons someone is about to press don't move around.
+ */
+public class FederatedSearch {
+	
+	private final InteractionHook hook;
+	private final GuildMusicManager manager;
+	private final boolean playNext;
+	private final String query;
+	private final AudioChannel audioChannel;
+	private final long start;
+	
+	// Guarded by this
+	/** What each source came back with (up to a selection's worth), in the order they answered */
+	private final Map<AudioSource, List<AudioTrack>> answered;
+	private final Set<AudioSource> pending, failed;
+	private FriendlyException lastFailure;
+	
+	/**
+	 * @param hook    hook of the deferred reply the selection goes in
+	 * @param sources sources the search is going out to
+	 */
+	public FederatedSearch(InteractionHook hook, GuildMusicManager manager, boolean playNext, String query, AudioChannel audioChannel, Set<AudioSource> sources)
+	{
+		this.hook = hook;
+		this.manager = manager;
+		this.playNext = playNext;
+		this.query = query;
+		this.audioChannel = audioChannel;
+		this.start = System.nanoTime();
+		this.answered = new LinkedHashMap<AudioSource, List<AudioTrack>>();
+		this.pending = EnumSet.copyOf(sources);
+		this.failed = EnumSet.noneOf(AudioSource.class);
+	}
+	
+	/**
+	 * @param source source that answered
+	 * @param tracks what it found, empty if nothing
+	 */
+	public synchronized void found(AudioSource source, List<AudioTrack> tracks)
+	{
+		if(!pending.remove(source)) return;
+		
+		answered.put(source, new ArrayList<AudioTrack>(tracks.subList(0, Math.min(tracks.size(), AudioHandler.MAX_SELECTION))));
+		update(source);
+	}
+	
+	/**
+	 * @param source    source that couldn't search
+	 * @param exception why, or null if it was never asked (like it was too busy)
+	 */
+	public synchronized void failed(AudioSource source, @Nullable FriendlyException exception)
+	{
+		if(!pending.remove(source)) return;
+		
+		answered.put(source, List.of());
+		failed.add(source);
+		
+		if(exception != null)
+		{
+			lastFailure = exception;
+		}
+		
+		update(source);
+	}
+	
+	/**
+	 * Edits the selection to include what the source just answered with. Done under the lock so edits go out in the same order the answers came in.
+	 */
+	private void update(AudioSource source)
+	{
+		if(answered.size() == 1)
+		{
+			Main.log.debug("{} answered {} first in {}ms", source.getFancyName(), query, (System.nanoTime() - start) / 1000000);
+		}
+		
+		boolean empty = answered.values().stream().allMatch(List::isEmpty);
+		
+		// Nobody found anything
+		if(pending.isEmpty() && empty)
+		{
+			if(failed.containsAll(answered.keySet()))
+			{
+				hook.editOriginal("No audio could be found for `" + MarkdownSanitizer.sanitize(query) + "`").queue();
+				
+				if(lastFailure != null)
+				{
+					Main.error("Failed to load audio for " + query, lastFailure);
+				}
+			}
+			else
+			{
+				hook.editOriginal("Nothing found by `" + MarkdownSanitizer.sanitize(query) + "`").queue();
+			}
+			
+			return;
+		}
+		
+		StringBuilder builder = new StringBuilder(empty ? "**Searching...**" : "**Select a track:**");
+		List<ActionRow> rows = new ArrayList<ActionRow>();
+		List<Button> added = List.of();
+		int number = 0;
+		
+		for(Map.Entry<AudioSource, List<AudioTrack>> entry : answered.entrySet())
+		{
+			List<AudioTrack> tracks = entry.getValue();
+			builder.append("\n__" + entry.getKey().getFancyName() + "__" + (!tracks.isEmpty() ? "" : failed.contains(entry.getKey()) ? " *(couldn't search)*" : " *(nothing found)*"));
+			
+			// Numbered across every source, so each button has its own ID
+			List<Button> buttons = new ArrayList<Button>();
+			
+			for(AudioTrack track : tracks)
+			{
+				buttons.add(new ButtonImpl("" + number, "" + (number + 1), playNext ? ButtonStyle.SECONDARY : ButtonStyle.PRIMARY, false, null));
+				builder.append("\n" + AudioHandler.describeTrack(++number, track));
+			}
+			
+			if(!buttons.isEmpty())
+			{
+				rows.add(ActionRow.of(buttons));
+			}
+			
+			if(entry.getKey() == source)
+			{
+				added = buttons;
+			}
+		}
+		
+		for(AudioSource waiting : pending)
+		{
+			builder.append("\n*Searching " + waiting.getFancyName() + "...*");
+		}
+		
+		// Only the new buttons need mapping, the rest were mapped by earlier edits
+		List<Button> buttons = added;
+		List<AudioTrack> tracks = answered.get(source);
+		
+		hook.editOriginal(builder.toString()).setComponents(rows).queue(message ->
+		{
+			for(int i = 0; i < buttons.size(); i++)
+			{
+				manager.addButtonAction(message, buttons.get(i), new TrackSelected(playNext, tracks.get(i), audioChannel));
+			}
+		}, failure -> Main.log.debug("Couldn't edit the selection for {} (a track was probably already picked)", query, failure));
+	}
+}
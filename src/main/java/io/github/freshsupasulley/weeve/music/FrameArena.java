@@ -0,0 +1,129 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Hands out fixed-size blocks of off-heap memory for {@link OffHeapFrameBuffer}s. Blocks are carved out of large direct slabs and recycled, so buffered audio never touches
+ * the heap and slabs are only allocated when every block is in use.
+ * 
+ * <p>
+ * Lavaplayer never tells a frame buffer it's done with it. Buffers give their block back once they play out, and a {@link Cleaner} catches the ones that got dropped without
+ * playing out (like stopped tracks).
+ * </p>
+ */
+public class FrameArena {
+	
+	private static final Cleaner CLEANER = Cleaner.create();
+	
+	private final int slabSize;
+	/** Free blocks of each block size */
+	private final Map<Integer, ConcurrentLinkedQueue<ByteBuffer>> free;
+	
+	private final AtomicLong slabs = new AtomicLong(), reservedBytes = new AtomicLong(), leasedBlocks = new AtomicLong(), leasedBytes = new AtomicLong();
+	
+	/**
+	 * @param slabSize size (bytes) of each slab allocated from the OS
+	 */
+	public FrameArena(int slabSize)
+	{
+		this.slabSize = slabSize;
+		this.free = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+	}
+	
+	/**
+	 * Leases a block. It goes back to the arena when {@link Lease#release()} is called, or when {@code owner} is garbage collected.
+	 * 
+	 * @param size  size (bytes) of the block
+	 * @param owner object the block belongs to
+	 * @return the lease
+	 */
+	public Lease lease(int size, Object owner)
+	{
+		ConcurrentLinkedQueue<ByteBuffer> blocks = free.computeIfAbsent(size, key -> new ConcurrentLinkedQueue<ByteBuffer>());
+		ByteBuffer block = blocks.poll();
+		
+		if(block == null)
+		{
+			block = allocate(size, blocks);
+		}
+		
+		leasedBlocks.incrementAndGet();
+		leasedBytes.addAndGet(size);
+		
+		Lease lease = new Lease(block, blocks);
+		CLEANER.register(owner, lease::release);
+		return lease;
+	}
+	
+	/**
+	 * Allocates a new slab, keeps one block of it and puts the rest up for grabs.
+	 */
+	private ByteBuffer allocate(int size, ConcurrentLinkedQueue<ByteBuffer> blocks)
+	{
+		// Blocks bigger than a slab get a slab to themselves
+		int count = Math.max(1, slabSize / size);
+		ByteBuffer slab = ByteBuffer.allocateDirect(count * size);
+		
+		slabs.incrementAndGet();
+		reservedBytes.addAndGet(slab.capacity());
+		Main.log.debug("Allocated a {}KB frame slab for {} blocks of {} bytes", slab.capacity() / 1024, count, size);
+		
+		for(int i = 1; i < count; i++)
+		{
+			blocks.add(slab.duplicate().position(i * size).limit((i + 1) * size).slice());
+		}
+		
+		return slab.limit(size).slice();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return slabs.get() + " slabs (" + reservedBytes.get() / 1024 + "KB off-heap), " + leasedBlocks.get() + " blocks (" + leasedBytes.get() / 1024 + "KB) in use";
+	}
+	
+	/**
+	 * A block on loan from the arena.
+	 */
+	public class Lease {
+		
+		private final ByteBuffer block;
+		private final ConcurrentLinkedQueue<ByteBuffer> home;
+		private final AtomicBoolean released = new AtomicBoolean();
+		
+		private Lease(ByteBuffer block, ConcurrentLinkedQueue<ByteBuffer> home)
+		{
+			this.block = block;
+			this.home = home;
+		}
+		
+		/**
+		 * @return the block. Don't touch it after releasing
+		 */
+		public ByteBuffer getBlock()
+		{
+			return block;
+		}
+		
+		/**
+		 * Gives the block back. Only the first call does anything.
+		 */
+		public void release()
+		{
+			if(released.compareAndSet(false, true))
+			{
+				leasedBlocks.decrementAndGet();
+				leasedBytes.addAndGet(-block.capacity());
+				home.add(block);
+			}
+		}
+	}
+}
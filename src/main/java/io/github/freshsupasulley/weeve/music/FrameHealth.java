@@ -0,0 +1,77 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.dv8tion.jda.api.audio.hooks.ConnectionListener;
+import net.dv8tion.jda.api.audio.hooks.ConnectionStatus;
+
+/**
+ * Keeps track of how well a guild's audio is flowing. The send handler reports every frame it's asked for, and JDA reports the voice connection's ping and status.
+ * 
+ * <p>
+ * A missed frame is one JDA asked for while a track was playing, which means the decoder couldn't keep up. Frames asked for while nothing plays aren't counted.
+ * </p>
+ */
+public class FrameHealth implements ConnectionListener {
+	
+	private final AtomicLong passthroughFrames = new AtomicLong(), mixedFrames = new AtomicLong(), missedFrames = new AtomicLong();
+	/** Time (micros) each frame took to provide */
+	private final LatencyHistogram provideLatency = new LatencyHistogram("\u00B5s");
+	/** Voice connection ping (ms) */
+	private final LatencyHistogram ping = new LatencyHistogram("ms");
+	private volatile ConnectionStatus status = ConnectionStatus.NOT_CONNECTED;
+	
+	/**
+	 * @param nanos time (nanos) it took to provide the frame
+	 * @param mixed true if the frame was re-encoded by a {@link CrossfadeMixer}, false if it was passed through
+	 */
+	void recordProvided(long nanos, boolean mixed)
+	{
+		(mixed ? mixedFrames : passthroughFrames).incrementAndGet();
+		provideLatency.record(nanos / 1000);
+	}
+	
+	/**
+	 * @param nanos time (nanos) it took to find out there was no frame
+	 */
+	void recordMissed(long nanos)
+	{
+		missedFrames.incrementAndGet();
+		provideLatency.record(nanos / 1000);
+	}
+	
+	public long getProvidedFrames()
+	{
+		return passthroughFrames.get() + mixedFrames.get();
+	}
+	
+	public long getMissedFrames()
+	{
+		return missedFrames.get();
+	}
+	
+	@Override
+	public void onPing(long ping)
+	{
+		this.ping.record(ping);
+	}
+	
+	@Override
+	public void onStatusChange(ConnectionStatus status)
+	{
+		this.status = status;
+	}
+	
+	@Override
+	public String toString()
+	{
+		long provided = getProvidedFrames(), missed = getMissedFrames();
+		// Frames are 20ms, so this is roughly how much audio got dropped
+		String missedRatio = provided + missed == 0 ? "" : String.format(" (%.2f%%)", missed * 100D / (provided + missed));
+		
+		return "**Connection**: " + status //
+				+ "\n**Frames**: " + provided + " provided (" + passthroughFrames.get() + " passthrough, " + mixedFrames.get() + " re-encoded), " + missed + " missed" + missedRatio //
+				+ "\n**Provide latency**: " + provideLatency //
+				+ "\n**Voice ping**: " + ping;
+	}
+}
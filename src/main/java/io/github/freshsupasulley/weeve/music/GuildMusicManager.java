@@ -1,62 +1,162 @@
 package io.github.freshsupasulley.weeve.music;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
-import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.tools.Units;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
 
 import io.github.freshsupasulley.weeve.Main;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.middleman.AudioChannel;
+import net.dv8tion.jda.api.entities.channel.middleman.GuildMessageChannel;
 import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
 import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
 import net.dv8tion.jda.api.interactions.components.buttons.Button;
+import net.dv8tion.jda.api.utils.messages.MessageCreateBuilder;
+import net.dv8tion.jda.api.utils.messages.MessageCreateData;
 
 /**
  * Handles all music management for a guild.
  */
 public class GuildMusicManager extends AudioEventAdapter {
 	
-	private final AudioPlayer player;
+	/**
+	 * Lifecycle of a manager. Once {@link #DESTROYED}, the player is gone and the manager can't be brought back.
+	 */
+	public enum State
+	{
+		/** Created, but nothing has been played yet */
+		CREATED,
+		/** Playing (or was told to play) in a voice channel */
+		CONNECTED,
+		/** Nothing is playing anymore, waiting to be evicted */
+		IDLE,
+		/** Player was torn down, this manager is dead */
+		DESTROYED;
+	}
+	
+	private final AudioHandler handler;
+	private final long guildID;
 	private final AudioPlayerSendHandler sendHandler;
+	private final FrameHealth health;
+	
+	/** The player we're listening to. Swaps with the standby when a prefetched track takes over */
+	private volatile AudioPlayer player;
+	
+	// Prefetching (guarded by this). Never call into a player while holding the lock, players fire events at us under their own locks
+	/** Buffers the next track (paused) before the playing one ends, created when first needed */
+	private AudioPlayer standby;
+	/** The request the standby is buffering */
+	private AudioRequest prefetched;
+	private ScheduledFuture<?> prefetchTimer;
+	/** Fires when the playing track should start fading into the prefetched one */
+	private ScheduledFuture<?> crossfadeTimer;
+	/** True while the standby is fading out the previous track, so it can't prefetch */
+	private boolean crossfading;
 	
-	private long leaveTime;
+	/** How long (millis) tracks overlap, 0 to just play them back to back */
+	private volatile long crossfade;
+	
+	private final AtomicReference<State> state;
+	/** Fires when the bot has been idle for too long, null while playing */
+	private ScheduledFuture<?> idleTimer;
+	
+	/** Positions shown to users start here. 1 is the playing track, 2 is on deck */
+	private static final int QUEUE_OFFSET = 2;
+	/** Tracks per page of the queue. Links make lines long, so this has to stay small enough to fit in a message */
+	private static final int QUEUE_PAGE_SIZE = 8;
+	/** Queue page buttons have the page they go to after this */
+	public static final String QUEUE_BUTTON_PREFIX = "queue:";
+	/** Number of queued tracks to keep fully resolved */
+	private static final int RESOLVE_AHEAD = 2;
+	/** What the last {@link #resolveAhead()} resolved (guarded by itself), so whatever isn't up next anymore goes back to being compact */
+	private final List<AudioRequest> resolvedAhead = new ArrayList<AudioRequest>(RESOLVE_AHEAD);
+	/** How long (millis) before a crossfade starts the next track has to be buffering */
+	private static final long CROSSFADE_LEAD = 3000;
+	public static final int MAX_CROSSFADE_SECONDS = 12;
 	
 	// Scheduler
-	private final LinkedBlockingDeque<AudioRequest> queue;
-	private boolean loop;
+	private final TrackQueue queue;
+	private volatile boolean loop;
 	
 	/** Stores the last channel someone sent a message in */
 	private MessageChannel messageChannel;
 	
-//	private Map<String, List<AudioTrack>> requestMap;
-	private Map<String, Map<String, ButtonAction>> requestMap;
-	
-	public GuildMusicManager(AudioPlayerManager manager)
+	public GuildMusicManager(AudioHandler handler, long guildID)
 	{
-		this.player = manager.createPlayer();
+		this.handler = handler;
+		this.guildID = guildID;
+		this.player = handler.createPlayer(null);
 		this.player.addListener(this);
-		this.sendHandler = new AudioPlayerSendHandler(player);
-		this.queue = new LinkedBlockingDeque<AudioRequest>();
-		this.requestMap = new HashMap<String, Map<String, ButtonAction>>();
+		this.health = new FrameHealth();
+		this.sendHandler = new AudioPlayerSendHandler(player, this::onCrossfadeEnd, health);
+		this.queue = new TrackQueue();
+		this.state = new AtomicReference<State>(State.CREATED);
+		
+		// Managers that never get to play anything should still go away eventually
+		armIdleTimer();
+	}
+	
+	public long getGuildID()
+	{
+		return guildID;
 	}
 	
 	/**
-	 * @return time (millis) when the bot should leave the call.
+	 * @return current lifecycle state
 	 */
-	public long getLeaveTime()
+	public State getState()
 	{
-		return leaveTime;
+		return state.get();
+	}
+	
+	/**
+	 * Moves to a new state, unless this manager was already destroyed.
+	 */
+	private void setState(State newState)
+	{
+		state.getAndUpdate(old -> old == State.DESTROYED ? old : newState);
+	}
+	
+	/**
+	 * (Re)starts the countdown until the bot leaves the call due to inactivity.
+	 */
+	synchronized void armIdleTimer()
+	{
+		if(getState() == State.DESTROYED) return;
+		
+		cancelIdleTimer();
+		idleTimer = handler.scheduleIdleEviction(guildID, this);
+	}
+	
+	/**
+	 * Stops the inactivity countdown, if there is one.
+	 */
+	private synchronized void cancelIdleTimer()
+	{
+		if(idleTimer != null)
+		{
+			idleTimer.cancel(false);
+			idleTimer = null;
+		}
 	}
 	
 	public void addButtonAction(Message message, Button button, ButtonAction action)
 	{
-		if(requestMap.computeIfAbsent(message.getId(), key -> new HashMap<String, ButtonAction>()).put(button.getId(), action) != null)
+		if(!handler.getButtonActions().put(guildID, message.getId(), button.getId(), action))
 		{
 			Main.log.error("Another button action mapping was already made for button ID " + button.getId() + " of " + action);
 		}
@@ -64,7 +164,7 @@ public class GuildMusicManager extends AudioEventAdapter {
 	
 	public void runButtonAction(String messageID, ButtonInteractionEvent event, AudioHandler handler)
 	{
-		Map<String, ButtonAction> result = requestMap.remove(messageID);
+		Map<String, ButtonAction> result = handler.getButtonActions().remove(messageID);
 		
 		if(result == null)
 		{
@@ -77,10 +177,24 @@ public class GuildMusicManager extends AudioEventAdapter {
 		action.fire(event.getHook(), event.getButton(), handler);
 	}
 	
+	@Override
+	public void onTrackStart(AudioPlayer player, AudioTrack track)
+	{
+		// Standby tracks too, they're buffering from the start
+		handler.getAudioCache().record(track);
+		
+		if(player == this.player)
+		{
+			schedulePrefetch(track);
+		}
+	}
+	
 	@Override
 	public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason)
 	{
-		leaveTime = System.currentTimeMillis() + AudioHandler.IDLE_TIME;
+		// Nothing to do for a dead player (destroy() stops the playing track)
+		// Standby tracks ending (replaced, stopped, cleaned up) aren't our business either
+		if(getState() == State.DESTROYED || player != this.player) return;
 		
 		// Only start the next track if the end reason is suitable for it (FINISHED or LOAD_FAILED)
 		if(endReason.mayStartNext)
@@ -88,6 +202,7 @@ public class GuildMusicManager extends AudioEventAdapter {
 			if(loop)
 			{
 				player.startTrack(track.makeClone(), false);
+				handler.getJournal().position(guildID, 0);
 				// This makes short tracks susceptible to causing spam
 //				sendToOrigin("Loop **" + ++loops + "** of " + new RequestInfoBuilder().bold().apply(track));
 			}
@@ -96,11 +211,25 @@ public class GuildMusicManager extends AudioEventAdapter {
 				nextTrack();
 			}
 		}
+		
+		// Start counting down if that was the last of it
+		if(!isPlaying())
+		{
+			armIdleTimer();
+		}
 	}
 	
 	@Override
 	public void onTrackException(AudioPlayer player, AudioTrack track, FriendlyException exception)
 	{
+		// The prefetched track failed. It gets another shot (and reports the error) when it's actually played
+		if(player != this.player)
+		{
+			Main.log.warn("Failed to prefetch <{}>: {}", track.getInfo().uri, exception.getMessage());
+			discardPrefetch();
+			return;
+		}
+		
 		Main.error("Error loading <" + track.getInfo().uri + ">", exception);
 		sendToOrigin("Error loading " + new RequestInfoBuilder().bold().apply(track) + " [(link)](<" + track.getInfo().uri + ">): `" + exception.getMessage() + "`");
 		nextTrack();
@@ -115,22 +244,158 @@ public class GuildMusicManager extends AudioEventAdapter {
 	 */
 	public void queue(boolean playNext, AudioRequest track, MessageChannel textChannel)
 	{
-		leaveTime = 0;
+		queueAll(Collections.singletonList(track), playNext, textChannel);
+	}
+	
+	/**
+	 * Adds a batch of tracks to the queue in one go, keeping their order. If nothing is playing, the first one starts immediately.
+	 * 
+	 * @param tracks      the tracks, in the order they should play
+	 * @param playNext    true if the batch should be inserted to the top of the queue, false to the back
+	 * @param textChannel origin text channel
+	 */
+	public void queueAll(List<AudioRequest> tracks, boolean playNext, MessageChannel textChannel)
+	{
+		if(tracks.isEmpty()) return;
+		
+		if(getState() == State.DESTROYED)
+		{
+			Main.log.warn("Tried to queue {} track(s) on a destroyed music manager", tracks.size());
+			return;
+		}
+		
+		cancelIdleTimer();
 		this.messageChannel = textChannel;
 		
-		// If queue is empty, immediately start it. Otherwise, add to queue
-		if(player.startTrack(track.getAudioTrack(), true))
+		// The whole batch goes in as one block so no one sees (or polls) half of it
+		// Logged under the same lock so the log sees changes in the same order as the queue
+		synchronized(queue)
 		{
-			track.openAudioConnection();
+			int index = playNext ? 0 : queue.size();
+			queue.addAll(index, tracks);
+			handler.getJournal().queued(guildID, index, tracks);
 		}
-		else if(playNext)
+		
+		// Only start once it's all in, so a track that fails or ends right away still finds the rest of the batch behind it
+		startIfIdle();
+		refreshPrefetch();
+		resolveAhead();
+	}
+	
+	/**
+	 * Starts the first queued track if nothing is playing. Requests that can't be loaded are skipped.
+	 */
+	private void startIfIdle()
+	{
+		AudioRequest next;
+		AudioTrack track;
+		
+		while(true)
 		{
-			queue.addFirst(track);
+			synchronized(queue)
+			{
+				if(isPlaying() || queue.isEmpty()) return;
+				
+				next = queue.poll();
+				handler.getJournal().removedFirst(guildID, 1);
+				handler.getJournal().playing(guildID, next, getTextChannelID());
+			}
+			
+			track = loadTrack(next);
+			
+			if(track != null) break;
+			
+			synchronized(queue)
+			{
+				// Unless something else started in the meantime, it's not playing
+				if(!isPlaying())
+				{
+					handler.getJournal().stopped(guildID);
+				}
+			}
 		}
-		else
+		
+		// Don't hold the queue lock for this, the player fires events back at us under its own lock
+		if(!player.startTrack(track, true))
+		{
+			// Someone else started a track in the meantime, put it back on top
+			synchronized(queue)
+			{
+				queue.addAll(0, List.of(next));
+				handler.getJournal().queued(guildID, 0, List.of(next));
+			}
+			
+			return;
+		}
+		
+		setState(State.CONNECTED);
+		connect(next);
+	}
+	
+	/**
+	 * Gets the track to play for a request. If it can't be built (the source couldn't decode it), that's reported and it should be skipped.
+	 * 
+	 * @return the track, or null if it can't be played
+	 */
+	private AudioTrack loadTrack(AudioRequest request)
+	{
+		AudioTrack track = handler.getAudioCache().getTrack(request);
+		
+		if(track == null)
 		{
-			queue.offer(track);
+			Main.log.warn("Couldn't rebuild <{}>, skipping it", request.getInfo().uri);
+			sendToOrigin("Error loading " + new RequestInfoBuilder().bold().apply(request) + " [(link)](<" + request.getInfo().uri + ">), skipping it");
 		}
+		
+		return track;
+	}
+	
+	/**
+	 * Resolves the next few tracks so they're ready to go. Everything further back stays compact.
+	 */
+	private void resolveAhead()
+	{
+		List<AudioRequest> ahead = new ArrayList<AudioRequest>(RESOLVE_AHEAD);
+		Iterator<AudioRequest> iterator = queue.iterator();
+		
+		for(int i = 0; i < RESOLVE_AHEAD && iterator.hasNext(); i++)
+		{
+			AudioRequest request = iterator.next();
+			request.resolve();
+			ahead.add(request);
+		}
+		
+		synchronized(resolvedAhead)
+		{
+			// Started, removed or pushed further back since. Started ones already have their track, so they're done with this one
+			for(AudioRequest request : resolvedAhead)
+			{
+				if(!ahead.contains(request))
+				{
+					request.compact();
+				}
+			}
+			
+			resolvedAhead.clear();
+			resolvedAhead.addAll(ahead);
+		}
+	}
+	
+	/**
+	 * Joins the audio channel the request was made from.
+	 */
+	private void connect(AudioRequest request)
+	{
+		Guild guild = handler.getGuild(guildID);
+		AudioChannel channel = guild == null ? null : guild.getChannelById(AudioChannel.class, request.getChannelID());
+		
+		if(channel == null)
+		{
+			Main.log.warn("Audio channel {} of guild {} is gone, can't connect", request.getChannelID(), guildID);
+			return;
+		}
+		
+		guild.getAudioManager().openAudioConnection(channel);
 	}
 	
 	/**
@@ -141,20 +406,339 @@ public class GuildMusicManager extends AudioEventAdapter {
 	private boolean nextTrack()
 	{
 		boolean isPlaying = isPlaying();
-		AudioRequest next = queue.poll();
+		
+		// Requests that can't be loaded are skipped
+		while(true)
+		{
+			if(startNext())
+				return isPlaying;
+		}
+	}
+	
+	/**
+	 * Takes the next request off the queue and plays it, or stops the player if there's none.
+	 * 
+	 * @return false if the request couldn't be loaded, so the one after it should go instead
+	 */
+	private boolean startNext()
+	{
+		AudioRequest next;
+		
+		synchronized(queue)
+		{
+			next = queue.poll();
+			handler.getJournal().removedFirst(guildID, next == null ? 0 : 1);
+			
+			// Logged with the poll, so nothing else that changes the queue can get logged in between
+			if(next == null)
+			{
+				handler.getJournal().stopped(guildID);
+			}
+			else
+			{
+				handler.getJournal().playing(guildID, next, getTextChannelID());
+			}
+		}
+		
+		// Cut off whatever is still fading out
+		sendHandler.cancelCrossfade();
 		
 		// If there is no more tracks, stop player
 		if(next == null)
 		{
+			discardPrefetch();
 			player.startTrack(null, false);
+			setState(State.IDLE);
+			armIdleTimer();
 		}
 		else
 		{
-			player.startTrack(next.getAudioTrack(), false);
-			next.openAudioConnection();
+			AudioPlayer outgoing = swapToStandby(next, false);
+			
+			if(outgoing != null)
+			{
+				// The standby has been buffering this one, just switch over
+				handOff(null);
+				player.setPaused(false);
+				outgoing.stopTrack();
+				schedulePrefetch(player.getPlayingTrack());
+			}
+			else
+			{
+				discardPrefetch();
+				AudioTrack track = loadTrack(next);
+				
+				if(track == null) return false;
+				
+				player.startTrack(track, false);
+			}
+			
+			setState(State.CONNECTED);
+			connect(next);
+			resolveAhead();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Counts down until the next track should start buffering.
+	 * 
+	 * @param track the playing track
+	 */
+	private void schedulePrefetch(AudioTrack track)
+	{
+		long crossfade = this.crossfade;
+		// Crossfading needs the next track buffered before the overlap starts
+		long prefetchTime = crossfade > 0 ? Math.max(handler.getPrefetchTime(), crossfade + CROSSFADE_LEAD) : handler.getPrefetchTime();
+		
+		if(prefetchTime <= 0 || track == null || track.getInfo().isStream) return;
+		
+		long remaining = track.getDuration() - track.getPosition();
+		
+		synchronized(this)
+		{
+			if(getState() == State.DESTROYED) return;
+			
+			cancelTimers();
+			prefetchTimer = handler.schedule(this::prefetch, Math.max(0, remaining - prefetchTime));
+			
+			// Too little left to fade out, it'll just end
+			if(crossfade > 0 && remaining > crossfade)
+			{
+				crossfadeTimer = handler.schedule(this::beginCrossfade, remaining - crossfade);
+			}
+		}
+	}
+	
+	private synchronized void cancelTimers()
+	{
+		if(prefetchTimer != null)
+		{
+			prefetchTimer.cancel(false);
+			prefetchTimer = null;
+		}
+		
+		if(crossfadeTimer != null)
+		{
+			crossfadeTimer.cancel(false);
+			crossfadeTimer = null;
+		}
+	}
+	
+	/**
+	 * Starts the next queued track on the standby player, paused. It resolves the stream and fills its frame buffer so it's ready the moment the playing track ends.
+	 */
+	private void prefetch()
+	{
+		AudioRequest next;
+		AudioPlayer warm;
+		
+		synchronized(this)
+		{
+			prefetchTimer = null;
+			
+			// Looping plays the same track again, nothing to prefetch
+			// While crossfading, the standby is still busy with the outgoing track. It prefetches once it's done
+			if(loop || crossfading || prefetched != null || getState() == State.DESTROYED) return;
+			
+			TrackQueue.Snapshot snapshot = queue.snapshot();
+			if(snapshot.isEmpty()) return;
+			
+			if(standby == null)
+			{
+				standby = handler.createPlayer(player);
+				standby.addListener(this);
+			}
+			
+			next = snapshot.get(0);
+			warm = standby;
+			prefetched = next;
+		}
+		
+		Main.log.debug("Prefetching <{}>", next.getInfo().uri);
+		warm.setPaused(true);
+		warm.startTrack(handler.getAudioCache().getTrack(next), false);
+	}
+	
+	/**
+	 * Makes the standby the playing player if it buffered the right request. This only swaps them around, the send handler keeps pulling from the outgoing one until
+	 * {@link #handOff(CrossfadeMixer)} is called (without holding any locks).
+	 * 
+	 * @param next      request that should play now
+	 * @param crossfade true if the outgoing player is kept going to fade it out
+	 * @return the player that was playing before, or null if the standby can't be used
+	 */
+	private synchronized AudioPlayer swapToStandby(AudioRequest next, boolean crossfade)
+	{
+		// The queue could've changed since, or the standby got cleaned up
+		if(prefetched != next || standby == null || standby.getPlayingTrack() == null)
+		{
+			return null;
+		}
+		
+		AudioPlayer outgoing = player;
+		player = standby;
+		standby = outgoing;
+		prefetched = null;
+		
+		if(crossfade)
+		{
+			crossfading = true;
 		}
 		
-		return isPlaying;
+		return outgoing;
+	}
+	
+	/**
+	 * Points the send handler at the player {@link #swapToStandby(AudioRequest, boolean)} swapped in. Must not be called while holding the queue lock or this: a new mixer cuts off
+	 * the old one, which stops its outgoing track right here.
+	 * 
+	 * @param mixer mixer fading out the player that was playing before, or null to just switch over
+	 */
+	private void handOff(CrossfadeMixer mixer)
+	{
+		// Mixer goes in first so the outgoing track doesn't skip a frame
+		if(mixer != null)
+		{
+			sendHandler.crossfade(mixer);
+		}
+		
+		// Whatever is playing by now, in case another swap got in first
+		AudioPlayer current = player;
+		sendHandler.setAudioPlayer(current);
+		
+		// That swap already moved on from these two, so there's nothing to fade
+		if(mixer != null && current != mixer.getIncoming())
+		{
+			sendHandler.cancelCrossfade();
+		}
+	}
+	
+	/**
+	 * Starts fading the playing track into the prefetched one, which comes off the queue right away.
+	 */
+	private void beginCrossfade()
+	{
+		AudioRequest next;
+		AudioPlayer outgoing, incoming;
+		
+		synchronized(this)
+		{
+			crossfadeTimer = null;
+			if(crossfade <= 0 || loop || crossfading || getState() == State.DESTROYED) return;
+		}
+		
+		// Only take it off the queue if it's the one the standby buffered
+		synchronized(queue)
+		{
+			if(queue.isEmpty()) return;
+			
+			next = queue.get(0);
+			
+			synchronized(this)
+			{
+				outgoing = swapToStandby(next, true);
+				incoming = player;
+			}
+			
+			// Otherwise the track just ends like normal
+			if(outgoing == null) return;
+			
+			queue.poll();
+			handler.getJournal().removedFirst(guildID, 1);
+			handler.getJournal().playing(guildID, next, getTextChannelID());
+		}
+		
+		// The mixer allocates its codecs, so it's only made once the locks are let go
+		handOff(new CrossfadeMixer(outgoing, incoming, (int) (crossfade / 20)));
+		Main.log.debug("Crossfading into <{}>", next.getInfo().uri);
+		player.setPaused(false);
+		schedulePrefetch(player.getPlayingTrack());
+		setState(State.CONNECTED);
+		connect(next);
+		resolveAhead();
+	}
+	
+	/**
+	 * Called (on any thread) once a crossfade is over or got cut off.
+	 */
+	private void onCrossfadeEnd(CrossfadeMixer mixer)
+	{
+		handler.recordCrossfade(mixer.getMixedFrames(), mixer.getMixNanos());
+		mixer.getOutgoing().stopTrack();
+		
+		synchronized(this)
+		{
+			crossfading = false;
+		}
+		
+		// Prefetching was held off until the standby was free again
+		schedulePrefetch(player.getPlayingTrack());
+	}
+	
+	/**
+	 * Sets how long tracks overlap.
+	 * 
+	 * @param seconds overlap in seconds, 0 to turn crossfading off
+	 * @return response to command
+	 */
+	public String setCrossfade(int seconds)
+	{
+		long millis = seconds * 1000L;
+		
+		if(crossfade == millis)
+		{
+			return "Crossfade is already " + (seconds == 0 ? "off" : "**" + seconds + "s**");
+		}
+		
+		crossfade = millis;
+		// Reschedule around the playing track
+		schedulePrefetch(player.getPlayingTrack());
+		return seconds == 0 ? "Crossfade turned off. Tracks play back to back." : "Tracks now crossfade for **" + seconds + "s**";
+	}
+	
+	/**
+	 * Call after the queue changed. If something else is on deck now, whatever the standby buffered is dropped and the new one is buffered instead, right away if it's already
+	 * time to.
+	 */
+	private void refreshPrefetch()
+	{
+		TrackQueue.Snapshot snapshot = queue.snapshot();
+		AudioRequest onDeck = snapshot.isEmpty() ? null : snapshot.get(0);
+		
+		synchronized(this)
+		{
+			// Still the right one, or the timer hasn't fired yet and picks whatever is on deck when it does
+			if(prefetched == onDeck || (prefetched == null && prefetchTimer != null)) return;
+		}
+		
+		discardPrefetch();
+		schedulePrefetch(player.getPlayingTrack());
+	}
+	
+	/**
+	 * Stops whatever the standby is buffering.
+	 */
+	private void discardPrefetch()
+	{
+		AudioRequest request;
+		AudioPlayer warm;
+		
+		synchronized(this)
+		{
+			cancelTimers();
+			request = prefetched;
+			warm = standby;
+			prefetched = null;
+		}
+		
+		if(request != null)
+		{
+			// The standby used up its track, so the request needs a fresh one
+			request.release();
+			warm.stopTrack();
+		}
 	}
 	
 	/**
@@ -165,13 +749,13 @@ public class GuildMusicManager extends AudioEventAdapter {
 	 */
 	public String skipTracks(int amount)
 	{
-		int skipped = 0;
+		int skipped;
 		
-		// (amount - 1) to skip the playing track
-		// Fuck while loops :sunglasses:
-		for(; skipped < (amount - 1) && !queue.isEmpty(); skipped++)
+		synchronized(queue)
 		{
-			queue.pop();
+			// (amount - 1) to skip the playing track
+			skipped = queue.removeFirst(amount - 1);
+			handler.getJournal().removedFirst(guildID, skipped);
 		}
 		
 		// NEW BEHAVIOR:
@@ -237,48 +821,163 @@ public class GuildMusicManager extends AudioEventAdapter {
 		
 		// Skip the time
 		track.setPosition(position);
+		handler.getJournal().position(guildID, position);
+		schedulePrefetch(track);
 		return "Skipped to **" + AudioHandler.parseDuration(position) + "**/" + AudioHandler.parseDuration(track.getDuration()) + " of playing track";
 	}
 	
 	/**
-	 * @return list of all queued songs, including the playing song
+	 * Removes a track from the queue.
+	 * 
+	 * @param position position of the track, as shown in {@link #getQueuePage(int)}
+	 * @return response to command
 	 */
-	public String getQueueList()
+	public String removeTrack(int position)
 	{
-		StringBuilder builder = new StringBuilder();
+		AudioRequest removed;
 		
-		if(!isPlaying())
+		synchronized(queue)
+		{
+			int index = position - QUEUE_OFFSET;
+			
+			if(index < 0 || index >= queue.size())
+			{
+				return "There's no track at position **" + position + "**";
+			}
+			
+			removed = queue.remove(index);
+			handler.getJournal().removed(guildID, index);
+		}
+		
+		refreshPrefetch();
+		resolveAhead();
+		return "Removed " + new RequestInfoBuilder().bold().apply(removed);
+	}
+	
+	/**
+	 * Moves a track to another position in the queue.
+	 * 
+	 * @param from position of the track, as shown in {@link #getQueuePage(int)}
+	 * @param to   position it should end up at
+	 * @return response to command
+	 */
+	public String moveTrack(int from, int to)
+	{
+		AudioRequest moved;
+		TrackQueue.Snapshot snapshot;
+		
+		synchronized(queue)
+		{
+			int size = queue.size();
+			
+			if(from - QUEUE_OFFSET < 0 || from - QUEUE_OFFSET >= size)
+			{
+				return "There's no track at position **" + from + "**";
+			}
+			
+			// Moving past the end means the end
+			to = Math.min(to, size + QUEUE_OFFSET - 1);
+			moved = queue.move(from - QUEUE_OFFSET, to - QUEUE_OFFSET);
+			handler.getJournal().moved(guildID, from - QUEUE_OFFSET, to - QUEUE_OFFSET);
+			snapshot = queue.snapshot();
+		}
+		
+		refreshPrefetch();
+		resolveAhead();
+		return "Moved " + new RequestInfoBuilder().bold().apply(moved) + " to **#" + to + "**" + describeStart(snapshot, to - QUEUE_OFFSET);
+	}
+	
+	/**
+	 * Shuffles the queue. The playing track isn't affected.
+	 * 
+	 * @return response to command
+	 */
+	public String shuffle()
+	{
+		if(queue.isEmpty())
+		{
+			return "No tracks queued";
+		}
+		
+		// Seeded so the queue log can replay the exact same shuffle
+		long seed = ThreadLocalRandom.current().nextLong();
+		
+		synchronized(queue)
+		{
+			queue.shuffle(new Random(seed));
+			handler.getJournal().shuffled(guildID, seed);
+		}
+		
+		refreshPrefetch();
+		resolveAhead();
+		return "Shuffled **" + queue.size() + "** track" + (queue.size() == 1 ? "" : "s");
+	}
+	
+	/**
+	 * Renders one page of the queue, with the playing song on top.
+	 * 
+	 * @param page page to show, starting at 1. Pages past the end show the last one
+	 * @return the message, with buttons to flip through pages if there's more than one
+	 */
+	public MessageCreateData getQueuePage(int page)
+	{
+		// Work off a snapshot so nothing moves around while we're printing
+		TrackQueue.Snapshot snapshot = queue.snapshot();
+		AudioTrack playing = getCurrentRequest();
+		
+		int pages = Math.max(1, (snapshot.size() + QUEUE_PAGE_SIZE - 1) / QUEUE_PAGE_SIZE);
+		page = Math.max(1, Math.min(page, pages));
+		
+		StringBuilder builder = new StringBuilder(1024);
+		
+		if(playing == null)
 		{
 			builder.append("The queue is empty");
 		}
 		else
 		{
-			builder.append("\u266A " + new RequestInfoBuilder().bold().showDuration().showLink().showPosition().apply(getCurrentRequest()));
+			builder.append("\u266A ").append(new RequestInfoBuilder().bold().showDuration().showLink().showPosition().apply(playing));
 			
-			if(!queue.isEmpty())
+			if(!snapshot.isEmpty())
 			{
-				builder.append("\n**On deck**: " + new RequestInfoBuilder().showDuration().showLink().apply(queue.peek().getAudioTrack()));
-				int request = 1;
+				int from = (page - 1) * QUEUE_PAGE_SIZE;
+				int to = Math.min(snapshot.size(), from + QUEUE_PAGE_SIZE);
+				
+				// When the first track on the page starts. Each line after that just adds on, until a stream gets in the way
+				long start = playing.getInfo().isStream ? Units.DURATION_MS_UNKNOWN : snapshot.getStartTime(from);
+				
+				if(start != Units.DURATION_MS_UNKNOWN)
+				{
+					start += playing.getDuration() - playing.getPosition();
+				}
 				
-				for(AudioRequest sample : queue)
+				for(int index = from; index < to; index++)
 				{
+					AudioRequest request = snapshot.get(index);
+					
 					// Special text for on deck
-					if(request == 1)
+					if(index == 0)
+					{
+						builder.append("\n**On deck**: ");
+					}
+					else
 					{
-						request++;
-						continue;
+						builder.append("\n**#").append(index + QUEUE_OFFSET).append("**: ");
 					}
 					
-					builder.append("\n**#" + ++request + "**: " + new RequestInfoBuilder().showDuration().showLink().apply(sample.getAudioTrack()));
+					builder.append(request.getQueueLine());
 					
-					// If we've already printed 10 tracks, and there's more to print
-					if(request > 8 && queue.size() > request)
+					if(start != Units.DURATION_MS_UNKNOWN)
 					{
-						// Add back the request = 1 start
-						builder.append("\n\t*... " + (queue.size() - request + 1) + " more*");
-						break;
+						AudioHandler.appendDuration(builder.append(" - starts in **"), start).append("**");
+						start = request.getDuration() == Units.DURATION_MS_UNKNOWN ? Units.DURATION_MS_UNKNOWN : start + request.getDuration();
 					}
 				}
+				
+				if(pages > 1)
+				{
+					builder.append("\n\t*Page ").append(page).append(" of ").append(pages).append(", ").append(snapshot.size()).append(" tracks queued*");
+				}
 			}
 			else
 			{
@@ -286,10 +985,119 @@ public class GuildMusicManager extends AudioEventAdapter {
 			}
 		}
 		
-		String result = builder.toString();
-		if(result.length() > Message.MAX_CONTENT_LENGTH)
-			result = result.substring(0, Message.MAX_CONTENT_LENGTH - 3) + "...";
-		return result;
+		if(builder.length() > Message.MAX_CONTENT_LENGTH)
+		{
+			builder.setLength(Message.MAX_CONTENT_LENGTH - 3);
+			builder.append("...");
+		}
+		
+		MessageCreateBuilder message = new MessageCreateBuilder().setContent(builder.toString());
+		
+		if(pages > 1)
+		{
+			// The page lives in the button ID, so these never expire
+			message.addActionRow(Button.secondary(QUEUE_BUTTON_PREFIX + (page - 1), "Prev").withDisabled(page == 1), Button.secondary(QUEUE_BUTTON_PREFIX + (page + 1), "Next").withDisabled(page == pages));
+		}
+		
+		return message.build();
+	}
+	
+	/**
+	 * Estimates when a queued track will start playing.
+	 * 
+	 * @param snapshot the queue
+	 * @param index    index of the track in the queue
+	 * @return text to append to the track, empty if it can't be estimated (like when a stream is in the way)
+	 */
+	private String describeStart(TrackQueue.Snapshot snapshot, int index)
+	{
+		AudioTrack playing = getCurrentRequest();
+		
+		if(playing == null || playing.getInfo().isStream)
+		{
+			return "";
+		}
+		
+		long before = snapshot.getStartTime(index);
+		
+		if(before == Units.DURATION_MS_UNKNOWN)
+		{
+			return "";
+		}
+		
+		return " - starts in **" + AudioHandler.parseDuration(playing.getDuration() - playing.getPosition() + before) + "**";
+	}
+	
+	/**
+	 * Picks up where the guild left off before a restart. Nothing new is logged, the queue log already has all of it.
+	 * 
+	 * @param restored the guild as the queue log remembers it
+	 */
+	void restore(QueueJournal.RestoredGuild restored)
+	{
+		Guild guild = handler.getGuild(guildID);
+		
+		if(guild != null && restored.getTextChannelID() != 0)
+		{
+			messageChannel = guild.getChannelById(GuildMessageChannel.class, restored.getTextChannelID());
+		}
+		
+		loop = restored.isLoop();
+		AudioRequest playing = restored.getPlaying();
+		
+		AudioTrack track = playing == null ? null : loadTrack(playing);
+		
+		if(track != null)
+		{
+			// Tracks that haven't started yet just remember where to start
+			if(!track.getInfo().isStream)
+			{
+				track.setPosition(restored.getPosition());
+			}
+			
+			if(player.startTrack(track, true))
+			{
+				cancelIdleTimer();
+				setState(State.CONNECTED);
+				connect(playing);
+			}
+		}
+		
+		synchronized(queue)
+		{
+			queue.addAll(queue.size(), restored.getQueue());
+		}
+		
+		// The playing track couldn't be brought back, move on to the next one (this one gets logged)
+		if(!isPlaying() && !queue.isEmpty())
+		{
+			cancelIdleTimer();
+			nextTrack();
+		}
+		
+		resolveAhead();
+	}
+	
+	/**
+	 * Logs the position of the playing track.
+	 */
+	void checkpoint()
+	{
+		AudioTrack track = player.getPlayingTrack();
+		
+		if(track != null && !track.getInfo().isStream)
+		{
+			handler.getJournal().position(guildID, track.getPosition());
+		}
+	}
+	
+	/**
+	 * @return ID of the channel messages go to, 0 if there is none yet
+	 */
+	private long getTextChannelID()
+	{
+		MessageChannel channel = messageChannel;
+		return channel == null ? 0 : channel.getIdLong();
 	}
 	
 	/**
@@ -325,12 +1133,18 @@ public class GuildMusicManager extends AudioEventAdapter {
 		}
 		else
 		{
+			handler.getJournal().loop(guildID, toggle);
+			
 			// Sets loop = toggle, and if looping is now off
 			if(!(this.loop = toggle))
 			{
+				// Something new plays after this one again
+				schedulePrefetch(player.getPlayingTrack());
 				return "Looping turned off";
 			}
 			
+			// Whatever was buffered won't play next anymore
+			discardPrefetch();
 			return "Looping turned on. Skipping the track will stop the loop.";
 		}
 	}
@@ -340,10 +1154,57 @@ public class GuildMusicManager extends AudioEventAdapter {
 	 */
 	public void reset()
 	{
-		requestMap.clear();
-		queue.clear();
+		handler.getButtonActions().removeGuild(guildID);
+		
+		synchronized(queue)
+		{
+			queue.clear();
+			handler.getJournal().reset(guildID);
+		}
+		
+		discardPrefetch();
 		player.startTrack(null, false);
+		sendHandler.cancelCrossfade();
+		loop = false;
+		setState(State.IDLE);
+		armIdleTimer();
+	}
+	
+	/**
+	 * Resets and tears down the underlying {@link AudioPlayer}. This manager can't be used afterwards.
+	 * 
+	 * @return true if this call destroyed the manager, false if it was already destroyed
+	 */
+	public boolean destroy()
+	{
+		if(state.getAndSet(State.DESTROYED) == State.DESTROYED)
+		{
+			return false;
+		}
+		
+		cancelIdleTimer();
+		discardPrefetch();
+		sendHandler.cancelCrossfade();
+		handler.getButtonActions().removeGuild(guildID);
+		queue.clear();
 		loop = false;
+		player.destroy();
+		handler.getJournal().gone(guildID);
+		
+		AudioPlayer warm;
+		
+		synchronized(this)
+		{
+			warm = standby;
+			standby = null;
+		}
+		
+		if(warm != null)
+		{
+			warm.destroy();
+		}
+		
+		return true;
 	}
 	
 	/**
@@ -354,6 +1215,14 @@ public class GuildMusicManager extends AudioEventAdapter {
 		return sendHandler;
 	}
 	
+	/**
+	 * @return how well audio has been flowing
+	 */
+	public FrameHealth getHealth()
+	{
+		return health;
+	}
+	
 	public void sendToOrigin(String message)
 	{
 		if(messageChannel != null)
@@ -0,0 +1,78 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram with power-of-two buckets. Recording never allocates, so it's safe to call on the audio thread every 20ms.
+ */
+public class LatencyHistogram {
+	
+	/** Bucket n counts values below 2^n, the last one catches everything else */
+	private static final int BUCKETS = 24;
+	
+	private final String unit;
+	private final AtomicLongArray buckets;
+	private final AtomicLong count = new AtomicLong(), max = new AtomicLong();
+	
+	/**
+	 * @param unit unit of recorded values, only used for printing
+	 */
+	public LatencyHistogram(String unit)
+	{
+		this.unit = unit;
+		this.buckets = new AtomicLongArray(BUCKETS);
+	}
+	
+	/**
+	 * @param value value to record, negative values count as 0
+	 */
+	public void record(long value)
+	{
+		value = Math.max(0, value);
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+		count.incrementAndGet();
+		max.accumulateAndGet(value, Math::max);
+	}
+	
+	public long getCount()
+	{
+		return count.get();
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound of the bucket the percentile falls in, or -1 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = count.get();
+		if(total == 0) return -1;
+		
+		long target = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		
+		for(int i = 0; i < BUCKETS - 1; i++)
+		{
+			seen += buckets.get(i);
+			
+			if(seen >= target)
+			{
+				return 1L << i;
+			}
+		}
+		
+		return max.get();
+	}
+	
+	@Override
+	public String toString()
+	{
+		if(count.get() == 0)
+		{
+			return "no samples";
+		}
+		
+		return "p50 < " + getPercentile(50) + unit + ", p99 < " + getPercentile(99) + unit + ", max " + max.get() + unit;
+	}
+}
@@ -0,0 +1,562 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.track.playback.AbstractAudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameRebuilder;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.TerminatorAudioFrame;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Frame buffer that keeps its frames in a block leased from a shared {@link FrameArena} instead of on the heap. Works like lavaplayer's non-allocating buffer: frames are laid
+ * out back to back in a ring, and a frame that doesn't fit at the end starts over at the front.
+ * 
+ * <p>
+ * The block is only leased while there's something in it. It goes back to the arena when the buffer is cleared (a seek) and for good once the track stops or plays out.
+ * </p>
+ */
+public class OffHeapFrameBuffer extends AbstractAudioFrameBuffer {
+	
+	private final FrameArena arena;
+	private final int blockSize;
+	private final AtomicBoolean stopping;
+	
+	// Guarded by the synchronizer
+	private FrameArena.Lease lease;
+	/** Ring of frame data, null while nothing is leased */
+	private ByteBuffer ring;
+	/** Set once the track stopped or played out, nothing is leased after that */
+	private boolean finished;
+	
+	private final int[] frameOffsets, frameSizes;
+	private final long[] frameTimecodes;
+	private final int worstCaseFrameCount;
+	private int firstFrame, frameCount;
+	
+	/** Frames are copied through these, the off-heap ring can't be handed to lavaplayer directly */
+	private final byte[] inScratch, outScratch;
+	
+	/** Gets every frame that comes in, for the {@link AudioCache} */
+	private volatile AudioCache.Recorder recorder;
+	/** True once anything was provided, at which point it's too late to start recording */
+	private boolean provided;
+	
+	/**
+	 * @param arena          arena to lease the ring from
+	 * @param bufferDuration how much audio (millis) to buffer
+	 * @param format         format of the frames
+	 * @param stopping       set when the track is being stopped
+	 */
+	public OffHeapFrameBuffer(FrameArena arena, int bufferDuration, AudioDataFormat format, AtomicBoolean stopping)
+	{
+		super(format);
+		this.arena = arena;
+		this.stopping = stopping;
+		
+		int maximumFrameCount = bufferDuration / (int) format.frameDuration() + 1;
+		this.blockSize = format.expectedChunkSize() * maximumFrameCount;
+		this.frameOffsets = new int[maximumFrameCount];
+		this.frameSizes = new int[maximumFrameCount];
+		this.frameTimecodes = new long[maximumFrameCount];
+		this.worstCaseFrameCount = blockSize / format.maximumChunkSize();
+		this.inScratch = new byte[format.maximumChunkSize()];
+		this.outScratch = new byte[format.maximumChunkSize()];
+	}
+	
+	@Override
+	public int getRemainingCapacity()
+	{
+		synchronized(synchronizer)
+		{
+			if(frameCount == 0)
+			{
+				return worstCaseFrameCount;
+			}
+			
+			int lastFrame = wrappedFrameIndex(firstFrame + frameCount - 1);
+			int head = frameOffsets[firstFrame];
+			int tail = frameOffsets[lastFrame] + frameSizes[lastFrame];
+			int maximumFrameSize = format.maximumChunkSize();
+			
+			if(head < tail)
+			{
+				return (blockSize - tail) / maximumFrameSize + head / maximumFrameSize;
+			}
+			
+			return (head - tail) / maximumFrameSize;
+		}
+	}
+	
+	@Override
+	public int getFullCapacity()
+	{
+		return worstCaseFrameCount;
+	}
+	
+	/**
+	 * @return format of the buffered frames
+	 */
+	public AudioDataFormat getFormat()
+	{
+		return format;
+	}
+	
+	/**
+	 * Starts sending every frame that comes in to a recorder, starting with everything buffered so far.
+	 * 
+	 * @param recorder the recorder
+	 * @return false if frames were already played out, so the recording can't start at the beginning
+	 */
+	boolean attach(AudioCache.Recorder recorder)
+	{
+		synchronized(synchronizer)
+		{
+			if(provided || finished)
+			{
+				return false;
+			}
+			
+			// Catch up on what's buffered. The recorder itself notices if a frame slips through the cracks
+			MutableAudioFrame frame = new MutableAudioFrame();
+			frame.setBuffer(ByteBuffer.allocate(format.maximumChunkSize()));
+			
+			for(int i = 0; i < frameCount; i++)
+			{
+				int index = wrappedFrameIndex(firstFrame + i);
+				ring.clear();
+				ring.position(frameOffsets[index]);
+				ring.get(outScratch, 0, frameSizes[index]);
+				frame.setTimecode(frameTimecodes[index]);
+				frame.store(outScratch, 0, frameSizes[index]);
+				recorder.record(frame);
+			}
+			
+			this.recorder = recorder;
+			return true;
+		}
+	}
+	
+	@Override
+	public void setTerminateOnEmpty()
+	{
+		super.setTerminateOnEmpty();
+		
+		// No more frames are coming
+		AudioCache.Recorder recorder = this.recorder;
+		
+		if(recorder != null)
+		{
+			recorder.finish();
+		}
+	}
+	
+	@Override
+	public void consume(AudioFrame frame) throws InterruptedException
+	{
+		// Stopped tracks can't get stuck waiting for space
+		if(stopping != null && stopping.get())
+		{
+			stopped();
+		}
+		
+		// Recording writes to disk, so do it before taking the lock the audio thread needs
+		AudioCache.Recorder recorder = this.recorder;
+		
+		if(recorder != null && !locked)
+		{
+			recorder.record(frame);
+		}
+		
+		synchronized(synchronizer)
+		{
+			if(!locked)
+			{
+				receivedFrames = true;
+				
+				if(clearOnInsert)
+				{
+					clear();
+					clearOnInsert = false;
+				}
+				
+				while(!attemptStore(frame))
+				{
+					try {
+						synchronizer.wait();
+					} catch(InterruptedException e) {
+						if(stopping != null && stopping.get())
+						{
+							stopped();
+						}
+						
+						throw e;
+					}
+				}
+				
+				synchronizer.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Gives the ring back for good, the track is stopping and nothing buffered will play.
+	 */
+	private void stopped() throws InterruptedException
+	{
+		synchronized(synchronizer)
+		{
+			finish();
+		}
+		
+		throw new InterruptedException();
+	}
+	
+	private boolean attemptStore(AudioFrame frame)
+	{
+		// Nothing should play from this buffer anymore
+		if(finished)
+		{
+			return true;
+		}
+		
+		if(lease == null)
+		{
+			lease = arena.lease(blockSize, this);
+			// Our own view of the block, so positioning it doesn't allocate
+			ring = lease.getBlock().duplicate();
+		}
+		
+		if(frameCount >= frameSizes.length)
+		{
+			return false;
+		}
+		
+		int length = frame.getDataLength();
+		int offset = 0;
+		
+		if(frameCount > 0)
+		{
+			int lastFrame = wrappedFrameIndex(firstFrame + frameCount - 1);
+			int head = frameOffsets[firstFrame];
+			int tail = frameOffsets[lastFrame] + frameSizes[lastFrame];
+			
+			if(head < tail)
+			{
+				if(ring.capacity() - tail >= length)
+				{
+					offset = tail;
+				}
+				// Doesn't fit at the end, wrap around to the front
+				else if(head < length)
+				{
+					return false;
+				}
+			}
+			else if(head - tail >= length)
+			{
+				offset = tail;
+			}
+			else
+			{
+				return false;
+			}
+		}
+		
+		frame.getData(inScratch, 0);
+		store(offset, inScratch, length, frame.getTimecode());
+		return true;
+	}
+	
+	/**
+	 * Adds a frame at the end, which has to have room at the offset.
+	 */
+	private void store(int offset, byte[] data, int length, long timecode)
+	{
+		ring.clear();
+		ring.position(offset);
+		ring.put(data, 0, length);
+		
+		int index = wrappedFrameIndex(firstFrame + frameCount);
+		frameOffsets[index] = offset;
+		frameSizes[index] = length;
+		frameTimecodes[index] = timecode;
+		frameCount++;
+	}
+	
+	private int wrappedFrameIndex(int index)
+	{
+		return index % frameSizes.length;
+	}
+	
+	@Override
+	public AudioFrame provide()
+	{
+		synchronized(synchronizer)
+		{
+			if(frameCount == 0)
+			{
+				if(terminateOnEmpty)
+				{
+					finish();
+					return TerminatorAudioFrame.INSTANCE;
+				}
+				
+				return null;
+			}
+			
+			return popFrame();
+		}
+	}
+	
+	@Override
+	public AudioFrame provide(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException
+	{
+		synchronized(synchronizer)
+		{
+			if(!await(System.nanoTime() + unit.toNanos(timeout)))
+			{
+				finish();
+				return TerminatorAudioFrame.INSTANCE;
+			}
+			
+			return popFrame();
+		}
+	}
+	
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame)
+	{
+		synchronized(synchronizer)
+		{
+			if(frameCount == 0)
+			{
+				if(terminateOnEmpty)
+				{
+					popTerminator(targetFrame);
+					return true;
+				}
+				
+				return false;
+			}
+			
+			popFrame(targetFrame);
+			return true;
+		}
+	}
+	
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException
+	{
+		synchronized(synchronizer)
+		{
+			if(!await(System.nanoTime() + unit.toNanos(timeout)))
+			{
+				popTerminator(targetFrame);
+				return true;
+			}
+			
+			popFrame(targetFrame);
+			return true;
+		}
+	}
+	
+	/**
+	 * Waits for a frame. Call while holding the synchronizer.
+	 * 
+	 * @param deadline {@link System#nanoTime()} to give up at
+	 * @return true if there's a frame, false if it played out and the terminator is next
+	 */
+	private boolean await(long deadline) throws TimeoutException, InterruptedException
+	{
+		while(frameCount == 0)
+		{
+			if(terminateOnEmpty)
+			{
+				return false;
+			}
+			
+			long remaining = deadline - System.nanoTime();
+			
+			if(remaining <= 0)
+			{
+				throw new TimeoutException();
+			}
+			
+			TimeUnit.NANOSECONDS.timedWait(synchronizer, remaining);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Takes the first frame off the ring. Its data ends up in the out scratch, everything else stays at the index until the next store.
+	 * 
+	 * @return index the frame was at
+	 */
+	private int pop()
+	{
+		provided = true;
+		int index = firstFrame;
+		ring.clear();
+		ring.position(frameOffsets[index]);
+		ring.get(outScratch, 0, frameSizes[index]);
+		
+		firstFrame = wrappedFrameIndex(firstFrame + 1);
+		frameCount--;
+		synchronizer.notifyAll();
+		return index;
+	}
+	
+	private void popFrame(MutableAudioFrame targetFrame)
+	{
+		int index = pop();
+		targetFrame.setFormat(format);
+		targetFrame.setVolume(100);
+		targetFrame.setTimecode(frameTimecodes[index]);
+		targetFrame.store(outScratch, 0, frameSizes[index]);
+	}
+	
+	/**
+	 * @return the first frame, copied straight out of the scratch since it's handed off for good
+	 */
+	private AudioFrame popFrame()
+	{
+		int index = pop();
+		return new ImmutableAudioFrame(frameTimecodes[index], Arrays.copyOf(outScratch, frameSizes[index]), 100, format);
+	}
+	
+	private void popTerminator(MutableAudioFrame targetFrame)
+	{
+		targetFrame.setTerminator(true);
+		
+		// Played out, the ring can go to the next track
+		finish();
+	}
+	
+	/**
+	 * Terminates the buffer and gives the ring back for good.
+	 */
+	private void finish()
+	{
+		terminateOnEmpty = false;
+		terminated = true;
+		finished = true;
+		release();
+		synchronizer.notifyAll();
+	}
+	
+	/**
+	 * Gives the ring back to the arena. Whatever is still buffered is dropped.
+	 */
+	private void release()
+	{
+		frameCount = 0;
+		firstFrame = 0;
+		
+		if(lease != null)
+		{
+			lease.release();
+			lease = null;
+			ring = null;
+		}
+	}
+	
+	@Override
+	public void clear()
+	{
+		synchronized(synchronizer)
+		{
+			// Leased again when frames come back in
+			release();
+			synchronizer.notifyAll();
+		}
+		
+		// Frames were dropped (like for a seek), so it's not a clean recording anymore
+		AudioCache.Recorder recorder = this.recorder;
+		
+		if(recorder != null)
+		{
+			recorder.abort();
+		}
+	}
+	
+	@Override
+	public void rebuild(AudioFrameRebuilder rebuilder)
+	{
+		synchronized(synchronizer)
+		{
+			if(frameCount == 0) return;
+			
+			// Rebuilt frames can come out a different size, so take them all out and lay them out again from the front
+			List<AudioFrame> frames = new ArrayList<AudioFrame>(frameCount);
+			
+			while(frameCount > 0)
+			{
+				int index = firstFrame;
+				ring.clear();
+				ring.position(frameOffsets[index]);
+				byte[] data = new byte[frameSizes[index]];
+				ring.get(data);
+				frames.add(rebuilder.rebuild(new ImmutableAudioFrame(frameTimecodes[index], data, 100, format)));
+				firstFrame = wrappedFrameIndex(firstFrame + 1);
+				frameCount--;
+			}
+			
+			firstFrame = 0;
+			int offset = 0;
+			
+			for(AudioFrame frame : frames)
+			{
+				int length = frame.getDataLength();
+				
+				// Grew past the ring, the rest is dropped like a seek would
+				if(frameCount >= frameSizes.length || offset + length > blockSize)
+				{
+					Main.log.debug("Dropped {} rebuilt frames that no longer fit the ring", frames.size() - frameCount);
+					break;
+				}
+				
+				store(offset, frame.getData(), length, frame.getTimecode());
+				offset += length;
+			}
+			
+			synchronizer.notifyAll();
+		}
+		
+		// The recorder got the frames as they came in, so the recording still is the original audio
+	}
+	
+	@Override
+	public Long getLastInputTimecode()
+	{
+		synchronized(synchronizer)
+		{
+			if(frameCount == 0)
+			{
+				return null;
+			}
+			
+			return frameTimecodes[wrappedFrameIndex(firstFrame + frameCount - 1)];
+		}
+	}
+	
+	@Override
+	protected void signalWaiters()
+	{
+		synchronized(synchronizer)
+		{
+			synchronizer.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.concurrent.ExecutorService;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerOptions;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.TrackStateListener;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioTrackExecutor;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * Player manager that plays tracks on a pool we control. Lavaplayer's own playback pool can't be sized or replaced.
+ */
+public class PooledAudioPlayerManager extends DefaultAudioPlayerManager {
+	
+	private final ExecutorService playback;
+	
+	/**
+	 * @param playback pool tracks play on. Shut down with the manager
+	 */
+	public PooledAudioPlayerManager(ExecutorService playback)
+	{
+		this.playback = playback;
+	}
+	
+	@Override
+	public void executeTrack(TrackStateListener listener, InternalAudioTrack track, AudioConfiguration configuration, AudioPlayerOptions playerOptions)
+	{
+		// Same as lavaplayer does it, minus its remote nodes (we never set any up)
+		AudioTrackExecutor executor = track.createLocalExecutor(this);
+		
+		if(executor == null)
+		{
+			Integer bufferDuration = playerOptions.frameBufferDuration.get();
+			executor = new LocalAudioTrackExecutor(track, configuration, playerOptions, isUsingSeekGhosting(), bufferDuration == null ? getFrameBufferDuration() : bufferDuration);
+		}
+		
+		track.assignExecutor(executor, true);
+		
+		AudioTrackExecutor assigned = executor;
+		playback.execute(() -> assigned.execute(listener));
+	}
+	
+	/**
+	 * @return the pool tracks play on
+	 */
+	public ExecutorService getPlaybackExecutor()
+	{
+		return playback;
+	}
+	
+	@Override
+	public void shutdown()
+	{
+		super.shutdown();
+		playback.shutdownNow();
+	}
+}
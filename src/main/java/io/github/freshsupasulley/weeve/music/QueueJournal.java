@@ -0,0 +1,968 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.DecodedTrackHolder;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Append-only log of everything that happens to the guilds' queues, so they survive the process dying. Every change (queueing, skipping, looping, resetting, position checkpoints)
+ * is one small binary record. Tracks are stored with lavaplayer's {@link AudioPlayerManager#encodeTrack(MessageOutput, AudioTrack)}.
+ * 
+ * <p>
+ * Records are written and synced by a single writer thread in batches, so callers never wait on the disk. The writer also keeps the state of every guild up to date as records go
+ * by. Once the log gets big, that state is written out as a snapshot and the log starts over, so replaying never has to go through more than one log.
+ * </p>
+ * 
+ * <p>
+ * If writing fails (like a full disk), records keep piling up in memory while the writer backs off and tries again on a fresh log, starting with a snapshot of everything it got
+ * so far. A shutdown hook writes out whatever is left when the process exits.
+ * </p>
+ * 
+ * <p>
+ * Files: <i>queue.snapshot</i> has a generation number, and <i>queue-&lt;generation&gt;.wal</i> holds everything that happened after it. Each record is its length, a CRC32 and
+ * then the record itself, so a record torn by a crash is noticed and everything from it on is dropped.
+ * </p>
+ */
+public class QueueJournal {
+	
+	private static final int SNAPSHOT_MAGIC = 0x57565153; // WVQS
+	private static final String SNAPSHOT = "queue.snapshot";
+	/** Anything claiming to be bigger than this is garbage from a torn write */
+	private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+	
+	// Record types
+	private static final byte ADD = 1, REMOVE = 2, REMOVE_FIRST = 3, MOVE = 4, SHUFFLE = 5, PLAY = 6, STOP = 7, POSITION = 8, LOOP = 9, RESET = 10, GONE = 11;
+	
+	/** Tells the writer to finish up */
+	private static final byte[] CLOSE = new byte[0];
+	/** Longest (ms) the writer waits before trying again after a failure */
+	private static final long MAX_BACKOFF = 30000;
+	/** How long (ms) closing waits for the writer. It might be stuck on a broken disk */
+	private static final long CLOSE_TIMEOUT = 10000;
+	
+	private final Path directory;
+	private final AudioPlayerManager playerManager;
+	private final long compactBytes;
+	
+	private final LinkedBlockingQueue<byte[]> pending;
+	private Thread writer;
+	/** Closes the log when the JVM exits, taken out again if it's closed before that */
+	private Thread shutdownHook;
+	
+	// Only touched by the writer (or by replay before the writer starts)
+	private final Map<Long, GuildState> guilds;
+	private volatile long generation;
+	private FileChannel channel;
+	private DataOutputStream out;
+	private final CRC32 crc;
+	
+	private final AtomicLong records = new AtomicLong(), bytes = new AtomicLong(), syncs = new AtomicLong(), compactions = new AtomicLong();
+	private volatile int guildCount;
+	private volatile long logBytes, replayedGuilds, replayMillis;
+	/** Why the last write failed, null while writing works */
+	private volatile String failure;
+	private volatile int failures;
+	
+	/**
+	 * @param directory     where to keep the log, or null to disable it
+	 * @param playerManager encodes and decodes tracks. Every source that shows up in the log needs to be registered
+	 * @param compactBytes  size (bytes) the log can get to before it's compacted into a snapshot
+	 */
+	public QueueJournal(Path directory, AudioPlayerManager playerManager, long compactBytes)
+	{
+		this.directory = directory;
+		this.playerManager = playerManager;
+		this.compactBytes = compactBytes;
+		this.pending = new LinkedBlockingQueue<byte[]>();
+		this.guilds = new HashMap<Long, GuildState>();
+		this.crc = new CRC32();
+	}
+	
+	/**
+	 * @return false if nothing is being logged
+	 */
+	public boolean isEnabled()
+	{
+		return directory != null;
+	}
+	
+	/**
+	 * Reads back everything that was logged before the last shutdown and starts logging. Call this once, before anything gets logged.
+	 * 
+	 * @return every guild that had something playing or queued, with their tracks decoded
+	 * @throws IOException if the log can't be opened for writing
+	 */
+	public synchronized List<RestoredGuild> replay() throws IOException
+	{
+		if(directory == null || writer != null)
+			return Collections.emptyList();
+		
+		long start = System.currentTimeMillis();
+		Files.createDirectories(directory);
+		
+		Path snapshot = directory.resolve(SNAPSHOT);
+		
+		if(Files.exists(snapshot))
+		{
+			try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot))))
+			{
+				readSnapshot(input);
+			}
+		}
+		
+		readLog(getLogFile(generation));
+		
+		// Decoding is the slow part, and guilds don't depend on each other
+		List<RestoredGuild> restored = guilds.entrySet().parallelStream().map(entry -> entry.getValue().decode(entry.getKey(), playerManager)).collect(Collectors.toList());
+		
+		// Start clean, whatever was replayed goes into a fresh snapshot
+		openLog(generation + 1);
+		compact();
+		
+		replayedGuilds = restored.size();
+		replayMillis = System.currentTimeMillis() - start;
+		Main.log.info("Replayed the queue log of {} guilds in {}ms", restored.size(), replayMillis);
+		
+		writer = new Thread(this::write, "weeve-queue-log");
+		writer.setDaemon(true);
+		writer.start();
+		
+		shutdownHook = new Thread(() ->
+		{
+			try {
+				close();
+			} catch(InterruptedException e) {
+				Main.log.warn("Interrupted while writing out the queue log");
+			}
+		}, "weeve-queue-log-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+		
+		return restored;
+	}
+	
+	private void readSnapshot(DataInputStream input) throws IOException
+	{
+		if(input.readInt() != SNAPSHOT_MAGIC)
+			throw new IOException("Not a queue snapshot");
+		
+		generation = input.readLong();
+		
+		for(int count = input.readInt(); count > 0; count--)
+		{
+			long guildID = input.readLong();
+			guilds.put(guildID, GuildState.read(input));
+		}
+	}
+	
+	/**
+	 * Applies every intact record of a log. Anything after a torn or corrupt record is dropped.
+	 */
+	private void readLog(Path file) throws IOException
+	{
+		if(!Files.exists(file)) return;
+		
+		long count = 0;
+		
+		try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			while(true)
+			{
+				int length = input.readInt();
+				long checksum = input.readInt() & 0xFFFFFFFFL;
+				
+				if(length < 0 || length > MAX_RECORD_BYTES)
+				{
+					Main.log.warn("Queue log {} has a bad record length after {} records, dropping the rest", file, count);
+					break;
+				}
+				
+				byte[] record = new byte[length];
+				input.readFully(record);
+				
+				crc.reset();
+				crc.update(record);
+				
+				if(crc.getValue() != checksum)
+				{
+					Main.log.warn("Queue log {} has a corrupt record after {} records, dropping the rest", file, count);
+					break;
+				}
+				
+				// Like a record type from a newer build. Same as a corrupt one, everything up to it still counts
+				try {
+					apply(record);
+				} catch(IOException | RuntimeException e) {
+					Main.log.warn("Queue log {} has a record that can't be applied after {} records, dropping the rest", file, count, e);
+					break;
+				}
+				
+				count++;
+			}
+		} catch(EOFException e) {
+			// Torn write at the end, everything before it is fine
+		}
+		
+		Main.log.debug("Replayed {} records from {}", count, file);
+	}
+	
+	private Path getLogFile(long generation)
+	{
+		return directory.resolve("queue-" + generation + ".wal");
+	}
+	
+	private void openLog(long generation) throws IOException
+	{
+		channel = FileChannel.open(getLogFile(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+		logBytes = 0;
+	}
+	
+	/**
+	 * Writes the state of every guild to a new snapshot and deletes the log it covers. The new log has to be open already.
+	 */
+	private void compact() throws IOException
+	{
+		long next = generation + 1;
+		Path temp = directory.resolve(SNAPSHOT + ".tmp");
+		
+		try(FileChannel snapshotChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(snapshotChannel), 64 * 1024));
+			output.writeInt(SNAPSHOT_MAGIC);
+			output.writeLong(next);
+			output.writeInt(guilds.size());
+			
+			for(Map.Entry<Long, GuildState> entry : guilds.entrySet())
+			{
+				output.writeLong(entry.getKey());
+				entry.getValue().write(output);
+			}
+			
+			output.flush();
+			snapshotChannel.force(true);
+		}
+		
+		// Once this lands, the old log is dead weight
+		Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		generation = next;
+		compactions.incrementAndGet();
+		
+		// Leftovers from older generations (or a crash mid compaction)
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "queue-*.wal"))
+		{
+			for(Path file : stream)
+			{
+				if(!file.equals(getLogFile(generation)))
+				{
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writer loop. Takes whatever piled up, writes it, syncs once for the whole batch. When that fails it waits a bit, starts a new log and goes on where it left off.
+	 */
+	private void write()
+	{
+		ArrayDeque<byte[]> batch = new ArrayDeque<byte[]>();
+		boolean broken = false;
+		
+		try {
+			while(true)
+			{
+				if(batch.isEmpty())
+				{
+					batch.add(pending.take());
+					pending.drainTo(batch);
+				}
+				
+				try {
+					if(broken)
+					{
+						reopen();
+						broken = false;
+					}
+					
+					if(writeBatch(batch)) return;
+					
+					if(failure != null)
+					{
+						Main.log.info("Queue log is writing again after {} failures", failures);
+						failure = null;
+						failures = 0;
+					}
+				} catch(IOException e) {
+					broken = true;
+					failure = e.toString();
+					
+					// Once is enough to tell the operator
+					if(failures++ == 0)
+					{
+						Main.error("Queue log failed, retrying (queue changes are kept in memory until then)", e);
+					}
+					else
+					{
+						Main.log.debug("Queue log still failing ({} times)", failures, e);
+					}
+					
+					Thread.sleep(Math.min(MAX_BACKOFF, 500L << Math.min(failures, 10)));
+				}
+			}
+		} catch(InterruptedException e) {
+			Main.log.warn("Queue log writer was interrupted, nothing else will be logged");
+		}
+	}
+	
+	/**
+	 * Writes records off the front of the batch, taking each one out once it's been applied so a failure can pick up where it stopped.
+	 * 
+	 * @return true if the log was closed
+	 */
+	private boolean writeBatch(ArrayDeque<byte[]> batch) throws IOException
+	{
+		boolean closing = false;
+		
+		for(byte[] record = batch.peek(); record != null; record = batch.peek())
+		{
+			if(record == CLOSE)
+			{
+				closing = true;
+				batch.clear();
+				break;
+			}
+			
+			crc.reset();
+			crc.update(record);
+			out.writeInt(record.length);
+			out.writeInt((int) crc.getValue());
+			out.write(record);
+			logBytes += 8 + record.length;
+			bytes.addAndGet(8 + record.length);
+			apply(record);
+			batch.poll();
+			records.incrementAndGet();
+		}
+		
+		out.flush();
+		channel.force(false);
+		syncs.incrementAndGet();
+		
+		if(closing)
+		{
+			channel.close();
+			return true;
+		}
+		
+		if(logBytes > compactBytes)
+		{
+			FileChannel old = channel;
+			openLog(generation + 1);
+			compact();
+			old.close();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Gives up on the log that failed and starts over with a snapshot of every record applied so far, so records that were applied but never made it to the disk aren't lost.
+	 */
+	private void reopen() throws IOException
+	{
+		try {
+			channel.close();
+		} catch(IOException e) {
+			// It's broken anyway
+		}
+		
+		openLog(generation + 1);
+		compact();
+	}
+	
+	/**
+	 * Writes out everything logged so far and stops logging.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting for the writer
+	 */
+	public synchronized void close() throws InterruptedException
+	{
+		if(writer == null) return;
+		
+		pending.add(CLOSE);
+		writer.join(CLOSE_TIMEOUT);
+		
+		if(writer.isAlive())
+		{
+			Main.log.warn("Queue log couldn't be written out in {}s ({}), {} records are lost", TimeUnit.MILLISECONDS.toSeconds(CLOSE_TIMEOUT), failure, pending.size());
+			writer.interrupt();
+		}
+		
+		writer = null;
+		
+		// Can't be taken out while it's running (or anything else is, once the JVM is shutting down)
+		if(Thread.currentThread() != shutdownHook)
+		{
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch(IllegalStateException e) {
+				// Already shutting down, it'll find the log closed
+			}
+		}
+		
+		shutdownHook = null;
+	}
+	
+	/**
+	 * Applies a record to the state of its guild.
+	 */
+	private void apply(byte[] record) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = input.readByte();
+		long guildID = input.readLong();
+		
+		if(type == GONE)
+		{
+			guilds.remove(guildID);
+		}
+		else
+		{
+			GuildState state = guilds.computeIfAbsent(guildID, key -> new GuildState());
+			state.apply(type, input);
+			
+			// Nothing to bring back, don't carry it around
+			if(state.isEmpty())
+			{
+				guilds.remove(guildID);
+			}
+		}
+		
+		guildCount = guilds.size();
+	}
+	
+	/**
+	 * Tracks were queued.
+	 * 
+	 * @param guildID  the guild
+	 * @param index    position of the first track
+	 * @param requests the tracks, in order
+	 */
+	public void queued(long guildID, int index, List<AudioRequest> requests)
+	{
+		if(directory == null || requests.isEmpty()) return;
+		
+		Record record = new Record(ADD, guildID);
+		record.writeInt(index);
+		record.writeInt(requests.size());
+		
+		for(AudioRequest request : requests)
+		{
+			record.writeRequest(request);
+		}
+		
+		record.commit();
+	}
+	
+	/**
+	 * A track was removed from the queue.
+	 */
+	public void removed(long guildID, int index)
+	{
+		if(directory == null) return;
+		
+		Record record = new Record(REMOVE, guildID);
+		record.writeInt(index);
+		record.commit();
+	}
+	
+	/**
+	 * Tracks were taken off the front of the queue (played or skipped).
+	 */
+	public void removedFirst(long guildID, int count)
+	{
+		if(directory == null || count <= 0) return;
+		
+		Record record = new Record(REMOVE_FIRST, guildID);
+		record.writeInt(count);
+		record.commit();
+	}
+	
+	/**
+	 * A track was moved within the queue.
+	 */
+	public void moved(long guildID, int from, int to)
+	{
+		if(directory == null) return;
+		
+		Record record = new Record(MOVE, guildID);
+		record.writeInt(from);
+		record.writeInt(to);
+		record.commit();
+	}
+	
+	/**
+	 * The queue was shuffled with a {@link Random} made from {@code seed}. Replaying shuffles the same way.
+	 */
+	public void shuffled(long guildID, long seed)
+	{
+		if(directory == null) return;
+		
+		Record record = new Record(SHUFFLE, guildID);
+		record.writeLong(seed);
+		record.commit();
+	}
+	
+	/**
+	 * A track started playing from the start.
+	 * 
+	 * @param guildID       the guild
+	 * @param request       the track
+	 * @param textChannelID channel messages about the guild's music go to, 0 if there is none
+	 */
+	public void playing(long guildID, AudioRequest request, long textChannelID)
+	{
+		if(directory == null) return;
+		
+		Record record = new Record(PLAY, guildID);
+		record.writeLong(textChannelID);
+		record.writeRequest(request);
+		record.commit();
+	}
+	
+	/**
+	 * Nothing is playing anymore.
+	 */
+	public void stopped(long guildID)
+	{
+		if(directory == null) return;
+		
+		new Record(STOP, guildID).commit();
+	}
+	
+	/**
+	 * Checkpoint of the playing track's position.
+	 */
+	public void position(long guildID, long position)
+	{
+		if(directory == null) return;
+		
+		Record record = new Record(POSITION, guildID);
+		record.writeLong(position);
+		record.commit();
+	}
+	
+	/**
+	 * Looping was turned on or off.
+	 */
+	public void loop(long guildID, boolean loop)
+	{
+		if(directory == null) return;
+		
+		Record record = new Record(LOOP, guildID);
+		record.writeBoolean(loop);
+		record.commit();
+	}
+	
+	/**
+	 * The queue was emptied, the player stopped and looping turned off.
+	 */
+	public void reset(long guildID)
+	{
+		if(directory == null) return;
+		
+		new Record(RESET, guildID).commit();
+	}
+	
+	/**
+	 * The guild's music manager is gone for good, nothing of it should come back.
+	 */
+	public void gone(long guildID)
+	{
+		if(directory == null) return;
+		
+		new Record(GONE, guildID).commit();
+	}
+	
+	@Override
+	public String toString()
+	{
+		if(directory == null)
+		{
+			return "disabled";
+		}
+		
+		String failing = failure == null ? "" : "**failing** (" + failures + " times, last " + failure + ", " + pending.size() + " records waiting), ";
+		return failing + guildCount + " guilds, generation " + generation + " (" + logBytes / 1024 + "KB), " + records.get() + " records (" + bytes.get() / 1024 + "KB) in " + syncs.get() + " syncs, " + compactions.get() + " compactions, replayed " + replayedGuilds + " guilds in " + replayMillis + "ms";
+	}
+	
+	/**
+	 * One record being built. Encoding happens on the caller's thread so the writer only has to copy bytes.
+	 */
+	private class Record {
+		
+		private final ByteArrayOutputStream buffer;
+		private final DataOutputStream output;
+		
+		private Record(byte type, long guildID)
+		{
+			this.buffer = new ByteArrayOutputStream(64);
+			this.output = new DataOutputStream(buffer);
+			
+			try {
+				output.writeByte(type);
+				output.writeLong(guildID);
+			} catch(IOException e) {
+				// Byte arrays don't throw
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private void writeInt(int value)
+		{
+			try {
+				output.writeInt(value);
+			} catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private void writeLong(long value)
+		{
+			try {
+				output.writeLong(value);
+			} catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private void writeBoolean(boolean value)
+		{
+			try {
+				output.writeBoolean(value);
+			} catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		/**
+		 * Writes the voice channel of a request and its encoded track. Tracks that can't be rebuilt are written empty and skipped when replaying.
+		 */
+		private void writeRequest(AudioRequest request)
+		{
+			try {
+				output.writeLong(request.getChannelID());
+				
+				AudioTrack track = request.canRebuild() ? request.rebuild() : null;
+				
+				if(track == null)
+				{
+					output.writeInt(0);
+					return;
+				}
+				
+				ByteArrayOutputStream encoded = new ByteArrayOutputStream(128);
+				playerManager.encodeTrack(new MessageOutput(encoded), track);
+				output.writeInt(encoded.size());
+				encoded.writeTo(output);
+			} catch(IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private void commit()
+		{
+			pending.add(buffer.toByteArray());
+		}
+	}
+	
+	/**
+	 * A queued (or playing) track as it sits in the log.
+	 */
+	private static class EncodedRequest {
+		
+		private final long channelID;
+		/** Encoded track, empty if it couldn't be encoded */
+		private final byte[] track;
+		
+		private EncodedRequest(long channelID, byte[] track)
+		{
+			this.channelID = channelID;
+			this.track = track;
+		}
+		
+		private static EncodedRequest read(DataInput input) throws IOException
+		{
+			long channelID = input.readLong();
+			byte[] track = new byte[input.readInt()];
+			input.readFully(track);
+			return new EncodedRequest(channelID, track);
+		}
+		
+		private void write(DataOutput output) throws IOException
+		{
+			output.writeLong(channelID);
+			output.writeInt(track.length);
+			output.write(track);
+		}
+	}
+	
+	/**
+	 * What the log says a guild looks like. Tracks are kept encoded, they're only decoded when replaying.
+	 */
+	private static class GuildState {
+		
+		private long textChannelID;
+		private EncodedRequest playing;
+		private long position;
+		private boolean loop;
+		private final ArrayList<EncodedRequest> queue = new ArrayList<EncodedRequest>();
+		
+		private void apply(byte type, DataInput input) throws IOException
+		{
+			switch(type)
+			{
+				case ADD:
+				{
+					int index = Math.min(input.readInt(), queue.size());
+					int count = input.readInt();
+					List<EncodedRequest> requests = new ArrayList<EncodedRequest>(count);
+					
+					for(int i = 0; i < count; i++)
+					{
+						requests.add(EncodedRequest.read(input));
+					}
+					
+					queue.addAll(index, requests);
+					break;
+				}
+				case REMOVE:
+				{
+					int index = input.readInt();
+					
+					if(index < queue.size())
+					{
+						queue.remove(index);
+					}
+					
+					break;
+				}
+				case REMOVE_FIRST:
+					queue.subList(0, Math.min(input.readInt(), queue.size())).clear();
+					break;
+				case MOVE:
+				{
+					int from = input.readInt(), to = input.readInt();
+					
+					if(from < queue.size() && to < queue.size())
+					{
+						queue.add(to, queue.remove(from));
+					}
+					
+					break;
+				}
+				case SHUFFLE:
+					// Same shuffle the queue did, the order only depends on the size and the random
+					Collections.shuffle(queue, new Random(input.readLong()));
+					break;
+				case PLAY:
+					textChannelID = input.readLong();
+					playing = EncodedRequest.read(input);
+					position = 0;
+					break;
+				case STOP:
+					playing = null;
+					position = 0;
+					break;
+				case POSITION:
+					position = input.readLong();
+					break;
+				case LOOP:
+					loop = input.readBoolean();
+					break;
+				case RESET:
+					queue.clear();
+					playing = null;
+					position = 0;
+					loop = false;
+					break;
+				default:
+					throw new IOException("Unknown queue log record type " + type);
+			}
+		}
+		
+		private boolean isEmpty()
+		{
+			return playing == null && queue.isEmpty();
+		}
+		
+		private static GuildState read(DataInput input) throws IOException
+		{
+			GuildState state = new GuildState();
+			state.textChannelID = input.readLong();
+			state.loop = input.readBoolean();
+			state.position = input.readLong();
+			state.playing = input.readBoolean() ? EncodedRequest.read(input) : null;
+			
+			for(int count = input.readInt(); count > 0; count--)
+			{
+				state.queue.add(EncodedRequest.read(input));
+			}
+			
+			return state;
+		}
+		
+		private void write(DataOutput output) throws IOException
+		{
+			output.writeLong(textChannelID);
+			output.writeBoolean(loop);
+			output.writeLong(position);
+			output.writeBoolean(playing != null);
+			
+			if(playing != null)
+			{
+				playing.write(output);
+			}
+			
+			output.writeInt(queue.size());
+			
+			for(EncodedRequest request : queue)
+			{
+				request.write(output);
+			}
+		}
+		
+		/**
+		 * Decodes the tracks. Ones that can't be decoded anymore (like from a source that was removed) are left out.
+		 */
+		private RestoredGuild decode(long guildID, AudioPlayerManager playerManager)
+		{
+			List<AudioRequest> requests = new ArrayList<AudioRequest>(queue.size());
+			
+			for(EncodedRequest request : queue)
+			{
+				AudioRequest decoded = decode(guildID, request, playerManager);
+				
+				if(decoded != null)
+				{
+					requests.add(decoded);
+				}
+			}
+			
+			return new RestoredGuild(guildID, textChannelID, playing == null ? null : decode(guildID, playing, playerManager), position, loop, requests);
+		}
+		
+		private static AudioRequest decode(long guildID, EncodedRequest request, AudioPlayerManager playerManager)
+		{
+			if(request.track.length == 0) return null;
+			
+			try(InputStream input = new ByteArrayInputStream(request.track))
+			{
+				DecodedTrackHolder holder = playerManager.decodeTrack(new MessageInput(input));
+				return holder == null || holder.decodedTrack == null ? null : new AudioRequest(holder.decodedTrack, guildID, request.channelID);
+			} catch(IOException e) {
+				Main.log.warn("Failed to decode a track of guild {} from the queue log", guildID, e);
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * A guild as it was before the last shutdown.
+	 */
+	public static class RestoredGuild {
+		
+		private final long guildID, textChannelID;
+		private final AudioRequest playing;
+		private final long position;
+		private final boolean loop;
+		private final List<AudioRequest> queue;
+		
+		private RestoredGuild(long guildID, long textChannelID, AudioRequest playing, long position, boolean loop, List<AudioRequest> queue)
+		{
+			this.guildID = guildID;
+			this.textChannelID = textChannelID;
+			this.playing = playing;
+			this.position = position;
+			this.loop = loop;
+			this.queue = queue;
+		}
+		
+		public long getGuildID()
+		{
+			return guildID;
+		}
+		
+		/**
+		 * @return channel messages about the guild's music went to, 0 if unknown
+		 */
+		public long getTextChannelID()
+		{
+			return textChannelID;
+		}
+		
+		/**
+		 * @return the track that was playing, null if nothing was (or it can't be decoded)
+		 */
+		public AudioRequest getPlaying()
+		{
+			return playing;
+		}
+		
+		/**
+		 * @return last known position (millis) of the playing track
+		 */
+		public long getPosition()
+		{
+			return position;
+		}
+		
+		public boolean isLoop()
+		{
+			return loop;
+		}
+		
+		/**
+		 * @return the queue, in order
+		 */
+		public List<AudioRequest> getQueue()
+		{
+			return queue;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.Nullable;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+
+/**
+ * Admission control for source loads, so one user spamming /play can't get a source (like the YouTube OAuth account) throttled for everyone. Every load takes a token from the
+ * user's, the guild's and the source's bucket. Going a little over just waits for the tokens to come back, going way over is turned down.
+ * 
+ * <p>
+ * Buckets are lock-free: each one is a single timestamp of when it's full again (the generic cell rate algorithm), moved forward with a CAS.
+ * </p>
+ */
+public class RateLimiter {
+	
+	/** Which bucket turned a load down */
+	public enum Scope {
+		USER, GUILD, SOURCE
+	}
+	
+	private final long maxWait;
+	private final Limit userLimit, guildLimit, sourceLimit;
+	
+	private final ConcurrentHashMap<Long, Bucket> users, guilds;
+	private final Map<AudioSource, Bucket> sources;
+	
+	private final AtomicLong admitted = new AtomicLong(), queued = new AtomicLong(), queuedNanos = new AtomicLong();
+	private final Map<Scope, AtomicLong> rejected;
+	
+	/**
+	 * @param userRate   loads per minute each user gets
+	 * @param guildRate  loads per minute each guild gets
+	 * @param sourceRate loads per minute each source gets across all guilds
+	 * @param maxWait    longest (ms) a load waits for tokens before it's turned down instead
+	 */
+	public RateLimiter(int userRate, int guildRate, int sourceRate, long maxWait)
+	{
+		this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+		this.userLimit = new Limit(userRate);
+		this.guildLimit = new Limit(guildRate);
+		this.sourceLimit = new Limit(sourceRate);
+		this.users = new ConcurrentHashMap<Long, Bucket>();
+		this.guilds = new ConcurrentHashMap<Long, Bucket>();
+		this.sources = new EnumMap<AudioSource, Bucket>(AudioSource.class);
+		this.rejected = new EnumMap<Scope, AtomicLong>(Scope.class);
+		
+		for(AudioSource source : AudioSource.values())
+		{
+			sources.put(source, new Bucket(sourceLimit));
+		}
+		
+		for(Scope scope : Scope.values())
+		{
+			rejected.put(scope, new AtomicLong());
+		}
+	}
+	
+	/**
+	 * Takes a token from each bucket.
+	 * 
+	 * @param userID  user making the request
+	 * @param guildID guild it's made in
+	 * @param source  source it goes to, or null if it isn't known up front (links)
+	 * @return how long (ms) to wait before loading, or -1 if it's turned down
+	 */
+	public long acquire(long userID, long guildID, @Nullable AudioSource source)
+	{
+		long now = System.nanoTime();
+		Bucket user = users.computeIfAbsent(userID, id -> new Bucket(userLimit));
+		Bucket guild = guilds.computeIfAbsent(guildID, id -> new Bucket(guildLimit));
+		Bucket sourceBucket = source == null ? null : sources.get(source);
+		
+		long userWait = user.take(now);
+		
+		if(userWait < 0)
+			return reject(Scope.USER);
+		
+		long guildWait = guild.take(now);
+		
+		if(guildWait < 0)
+		{
+			user.refund();
+			return reject(Scope.GUILD);
+		}
+		
+		long sourceWait = sourceBucket == null ? 0 : sourceBucket.take(now);
+		
+		if(sourceWait < 0)
+		{
+			user.refund();
+			guild.refund();
+			return reject(Scope.SOURCE);
+		}
+		
+		long wait = Math.max(userWait, Math.max(guildWait, sourceWait));
+		admitted.incrementAndGet();
+		
+		if(wait > 0)
+		{
+			queued.incrementAndGet();
+			queuedNanos.addAndGet(wait);
+		}
+		
+		return TimeUnit.NANOSECONDS.toMillis(wait);
+	}
+	
+	/**
+	 * Takes a token from only the source's bucket, for a request that already paid its user and guild tokens but goes out to more than one source.
+	 * 
+	 * @param source source the load goes to
+	 * @return how long (ms) to wait before loading, or -1 if it's turned down
+	 */
+	public long acquireSource(AudioSource source)
+	{
+		long wait = sources.get(source).take(System.nanoTime());
+		
+		if(wait < 0)
+			return reject(Scope.SOURCE);
+		
+		if(wait > 0)
+		{
+			queued.incrementAndGet();
+			queuedNanos.addAndGet(wait);
+		}
+		
+		return TimeUnit.NANOSECONDS.toMillis(wait);
+	}
+	
+	private long reject(Scope scope)
+	{
+		rejected.get(scope).incrementAndGet();
+		return -1;
+	}
+	
+	/**
+	 * Drops the buckets of users and guilds that are full again, they'd start out the same anyway.
+	 */
+	public void evictIdle()
+	{
+		long now = System.nanoTime();
+		users.values().removeIf(bucket -> bucket.isFull(now));
+		guilds.values().removeIf(bucket -> bucket.isFull(now));
+	}
+	
+	@Override
+	public String toString()
+	{
+		long queued = this.queued.get();
+		return admitted.get() + " admitted, " + queued + " queued" + (queued == 0 ? "" : " (avg " + queuedNanos.get() / queued / 1000000 + "ms wait)") + ", rejected " + rejected + ", " + users.size() + " user and " + guilds.size() + " guild buckets";
+	}
+	
+	/**
+	 * How fast a kind of bucket refills and how much it holds. A bucket holds a quarter minute's worth, so short bursts go straight through.
+	 */
+	private static class Limit {
+		
+		/** Nanos between tokens */
+		private final long interval;
+		/** How far (nanos) a bucket can be drawn ahead of time before loads have to wait */
+		private final long burst;
+		
+		private Limit(int perMinute)
+		{
+			this.interval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, perMinute);
+			this.burst = interval * Math.max(0, perMinute / 4 - 1);
+		}
+	}
+	
+	private class Bucket {
+		
+		private final Limit limit;
+		/** When the bucket is full again. Taking a token moves it forward by an interval */
+		private final AtomicLong full;
+		
+		private Bucket(Limit limit)
+		{
+			this.limit = limit;
+			this.full = new AtomicLong(System.nanoTime());
+		}
+		
+		/**
+		 * @return how long (nanos) until the token can be used, or -1 if that's longer than allowed (nothing is taken then)
+		 */
+		private long take(long now)
+		{
+			while(true)
+			{
+				long current = full.get();
+				long start = Math.max(current, now);
+				long wait = start - limit.burst - now;
+				
+				if(wait > maxWait)
+					return -1;
+				
+				if(full.compareAndSet(current, start + limit.interval))
+					return Math.max(0, wait);
+			}
+		}
+		
+		/**
+		 * Gives back a token another bucket didn't let us use.
+		 */
+		private void refund()
+		{
+			full.addAndGet(-limit.interval);
+		}
+		
+		private boolean isFull(long now)
+		{
+			return full.get() <= now;
+		}
+	}
+}
@@ -0,0 +1,493 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sedmelluq.discord.lavaplayer.filter.PcmFilterFactory;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventListener;
+import com.sedmelluq.discord.lavaplayer.player.event.PlayerPauseEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.PlayerResumeEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackEndEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackExceptionEvent;
+import com.sedmelluq.discord.lavaplayer.player.event.TrackStartEvent;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Player whose track plays on an {@link AudioNode}. To everything here it looks like any other player: it fires the same events and provides Opus frames, they just come
+ * over a socket. Up to {@link AudioNode#BUFFER_FRAMES} frames are buffered, and credit for more goes back to the node as they're played.
+ * 
+ * <p>
+ * If the node goes away, the playing track fails once what's buffered runs out, and the next track is started on another node.
+ * </p>
+ */
+public class RemoteAudioPlayer implements AudioPlayer {
+	
+	/** Credit is given back in batches of this many frames */
+	private static final int CREDIT_BATCH = 10;
+	/** Queued in place of a frame, the track ends when it's reached */
+	private static final Object FAILED = new Object(), FINISHED = new Object();
+	
+	private final AudioNodes nodes;
+	private final long id;
+	private final List<AudioEventListener> listeners;
+	
+	// Guarded by this
+	private AudioNodes.Node node;
+	/** Only written while holding the lock, but read without it when nodes compare load */
+	private volatile RemoteAudioTrack playing;
+	/** Bumped on every play and seek. Anything the node sends for an older one is dropped */
+	private long seq;
+	/** Frames from the node, and an end marker once it's done */
+	private final ArrayDeque<Object> frames;
+	private AudioTrackEndReason endReason;
+	private int uncredited;
+	/** Node connection the volume and pause state were last sent over. They're sent again on any other */
+	private AudioNodes.Node syncedNode;
+	private long syncedConnects;
+	
+	private volatile boolean paused;
+	private volatile int volume = 100;
+	
+	RemoteAudioPlayer(AudioNodes nodes, long id, AudioNodes.Node node)
+	{
+		this.nodes = nodes;
+		this.id = id;
+		this.node = node;
+		this.listeners = new CopyOnWriteArrayList<AudioEventListener>();
+		this.frames = new ArrayDeque<Object>(AudioNode.BUFFER_FRAMES + 1);
+		
+		if(node != null)
+		{
+			node.register(this);
+		}
+	}
+	
+	long getID()
+	{
+		return id;
+	}
+	
+	synchronized AudioNodes.Node getNode()
+	{
+		return node;
+	}
+	
+	/**
+	 * @return true if a track is playing, which is what node load is measured in
+	 */
+	boolean isActive()
+	{
+		return playing != null && !paused;
+	}
+	
+	@Override
+	public AudioTrack getPlayingTrack()
+	{
+		return playing;
+	}
+	
+	@Override
+	public void playTrack(AudioTrack track)
+	{
+		startTrack(track, false);
+	}
+	
+	@Override
+	public boolean startTrack(AudioTrack track, boolean noInterrupt)
+	{
+		RemoteAudioTrack next = track == null ? null : track instanceof RemoteAudioTrack ? (RemoteAudioTrack) track : new RemoteAudioTrack(track);
+		RemoteAudioTrack previous;
+		AudioNodes.Node target;
+		boolean replay = false;
+		long seq;
+		
+		synchronized(this)
+		{
+			if(noInterrupt && playing != null) return false;
+			
+			previous = playing;
+			playing = next;
+			seq = ++this.seq;
+			frames.clear();
+			endReason = null;
+			uncredited = 0;
+			
+			// Move off a node that went away
+			if(next != null && (node == null || !node.isConnected()))
+			{
+				if(node != null) node.unregister(this);
+				node = nodes.pick(node);
+				if(node != null) node.register(this);
+			}
+			
+			target = node;
+			
+			// The node only knows the player once it's played on it, so that's when it catches up on state it missed
+			if(next != null && target != null && (target != syncedNode || target.getConnects() != syncedConnects))
+			{
+				syncedNode = target;
+				syncedConnects = target.getConnects();
+				replay = true;
+			}
+		}
+		
+		if(previous != null)
+		{
+			previous.attach(null);
+			dispatch(new TrackEndEvent(this, previous, next == null ? AudioTrackEndReason.STOPPED : AudioTrackEndReason.REPLACED));
+		}
+		
+		if(next == null)
+		{
+			if(target != null) target.send(AudioNode.message(AudioNode.STOP, id, out -> {}));
+			return false;
+		}
+		
+		next.attach(this);
+		dispatch(new TrackStartEvent(this, next));
+		
+		if(target == null)
+		{
+			fail(seq, "No audio node is connected");
+			return true;
+		}
+		
+		try {
+			byte[] encoded = nodes.encode(next.getOriginal());
+			long position = next.getPosition();
+			// Goes out first, so the node can load it if it's from YouTube
+			target.syncYouTubeToken();
+			target.send(AudioNode.message(AudioNode.PLAY, id, out -> { out.writeLong(seq); out.writeLong(position); out.writeInt(encoded.length); out.write(encoded); }));
+			
+			if(replay)
+			{
+				target.send(AudioNode.message(AudioNode.VOLUME, id, out -> out.writeInt(volume)));
+				target.send(AudioNode.message(AudioNode.PAUSE, id, out -> out.writeBoolean(paused)));
+			}
+		} catch(IOException e) {
+			Main.log.warn("Failed to encode <{}> for the audio node", next.getInfo().uri, e);
+			fail(seq, "Track can't be sent to the audio node");
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Seeks the playing track on the node. Anything buffered is from before the seek, so it's dropped.
+	 */
+	void seek(RemoteAudioTrack track, long position)
+	{
+		AudioNodes.Node target;
+		long seq;
+		
+		synchronized(this)
+		{
+			if(track != playing || endReason != null) return;
+			
+			seq = ++this.seq;
+			frames.clear();
+			uncredited = 0;
+			target = node;
+		}
+		
+		if(target != null)
+		{
+			target.send(AudioNode.message(AudioNode.SEEK, id, out -> { out.writeLong(seq); out.writeLong(position); }));
+		}
+	}
+	
+	@Override
+	public void stopTrack()
+	{
+		startTrack(null, false);
+	}
+	
+	@Override
+	public int getVolume()
+	{
+		return volume;
+	}
+	
+	@Override
+	public void setVolume(int volume)
+	{
+		this.volume = Math.min(1000, Math.max(0, volume));
+		send(AudioNode.message(AudioNode.VOLUME, id, out -> out.writeInt(this.volume)));
+	}
+	
+	/**
+	 * Does nothing. Filters run where the PCM is, which is on the node, and a factory can't be sent over there. Nothing here sets one.
+	 */
+	@Override
+	public void setFilterFactory(PcmFilterFactory factory)
+	{
+		if(factory != null)
+		{
+			Main.log.debug("Ignoring a filter factory set on remote player {}", id);
+		}
+	}
+	
+	@Override
+	public void setFrameBufferDuration(Integer duration)
+	{
+		// The node has its own frame_buffer_ms
+	}
+	
+	@Override
+	public boolean isPaused()
+	{
+		return paused;
+	}
+	
+	@Override
+	public void setPaused(boolean value)
+	{
+		if(paused == value) return;
+		
+		paused = value;
+		send(AudioNode.message(AudioNode.PAUSE, id, out -> out.writeBoolean(value)));
+		dispatch(value ? new PlayerPauseEvent(this) : new PlayerResumeEvent(this));
+	}
+	
+	@Override
+	public void destroy()
+	{
+		AudioNodes.Node target;
+		
+		synchronized(this)
+		{
+			playing = null;
+			frames.clear();
+			endReason = null;
+			target = node;
+		}
+		
+		if(target != null)
+		{
+			target.send(AudioNode.message(AudioNode.DESTROY, id, out -> {}));
+			target.unregister(this);
+		}
+	}
+	
+	@Override
+	public void addListener(AudioEventListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	@Override
+	public void removeListener(AudioEventListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	@Override
+	public void checkCleanup(long threshold)
+	{
+		// The node's player manager cleans up its own players
+	}
+	
+	@Override
+	public AudioFrame provide()
+	{
+		MutableAudioFrame frame = new MutableAudioFrame();
+		frame.setBuffer(ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
+		return provide(frame) ? new ImmutableAudioFrame(frame.getTimecode(), frame.getData(), frame.getVolume(), frame.getFormat()) : null;
+	}
+	
+	@Override
+	public AudioFrame provide(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException
+	{
+		MutableAudioFrame frame = new MutableAudioFrame();
+		frame.setBuffer(ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
+		return provide(frame, timeout, unit) ? new ImmutableAudioFrame(frame.getTimecode(), frame.getData(), frame.getVolume(), frame.getFormat()) : null;
+	}
+	
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException
+	{
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		
+		while(true)
+		{
+			if(provide(targetFrame)) return true;
+			
+			synchronized(this)
+			{
+				long left = end - System.nanoTime();
+				if(left <= 0) throw new TimeoutException();
+				if(frames.isEmpty()) TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+		}
+	}
+	
+	@Override
+	public boolean provide(MutableAudioFrame targetFrame)
+	{
+		RemoteAudioTrack ended;
+		AudioTrackEndReason reason;
+		AudioNodes.Node target = null;
+		int credit = 0;
+		long seq;
+		
+		synchronized(this)
+		{
+			if(paused || playing == null) return false;
+			
+			Object next = frames.poll();
+			if(next == null) return false;
+			
+			seq = this.seq;
+			
+			if(next instanceof Frame)
+			{
+				Frame frame = (Frame) next;
+				targetFrame.setFormat(StandardAudioDataFormats.DISCORD_OPUS);
+				targetFrame.setTimecode(frame.timecode);
+				targetFrame.setVolume(volume);
+				targetFrame.store(frame.data, 0, frame.data.length);
+				playing.updatePosition(frame.timecode + StandardAudioDataFormats.DISCORD_OPUS.frameDuration());
+				
+				if(++uncredited >= CREDIT_BATCH)
+				{
+					credit = uncredited;
+					uncredited = 0;
+					target = node;
+				}
+			}
+			
+			ended = next == FINISHED || next == FAILED ? playing : null;
+			reason = endReason;
+			
+			if(ended != null)
+			{
+				playing = null;
+				endReason = null;
+				ended.attach(null);
+			}
+		}
+		
+		if(target != null)
+		{
+			int frames = credit;
+			target.send(AudioNode.message(AudioNode.CREDIT, id, out -> { out.writeLong(seq); out.writeInt(frames); }));
+		}
+		
+		if(ended != null)
+		{
+			dispatch(new TrackEndEvent(this, ended, reason));
+			return false;
+		}
+		
+		return true;
+	}
+	
+	void onFrame(long seq, long timecode, byte[] data)
+	{
+		synchronized(this)
+		{
+			if(seq != this.seq || playing == null || endReason != null) return;
+			
+			frames.add(new Frame(timecode, data));
+			notifyAll();
+		}
+	}
+	
+	void onException(long seq, FriendlyException exception)
+	{
+		RemoteAudioTrack track;
+		
+		synchronized(this)
+		{
+			if(seq != this.seq || playing == null) return;
+			track = playing;
+		}
+		
+		dispatch(new TrackExceptionEvent(this, track, exception));
+	}
+	
+	/**
+	 * The node is done with the track. It ends here once the frames before it are played, like it would locally.
+	 */
+	void onEnd(long seq, AudioTrackEndReason reason)
+	{
+		synchronized(this)
+		{
+			if(seq != this.seq || playing == null || endReason != null) return;
+			
+			endReason = reason;
+			frames.add(reason == AudioTrackEndReason.LOAD_FAILED ? FAILED : FINISHED);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * The node went away, so whatever it was playing fails.
+	 */
+	void nodeLost()
+	{
+		long seq;
+		
+		synchronized(this)
+		{
+			seq = this.seq;
+		}
+		
+		fail(seq, "Lost the audio node");
+	}
+	
+	private void fail(long seq, String message)
+	{
+		onException(seq, new FriendlyException(message, FriendlyException.Severity.FAULT, null));
+		onEnd(seq, AudioTrackEndReason.LOAD_FAILED);
+	}
+	
+	private void send(byte[] message)
+	{
+		AudioNodes.Node target = getNode();
+		
+		if(target != null)
+		{
+			target.send(message);
+		}
+	}
+	
+	private void dispatch(AudioEvent event)
+	{
+		for(AudioEventListener listener : listeners)
+		{
+			try {
+				listener.onEvent(event);
+			} catch(Exception e) {
+				Main.error("Audio event listener failed", e);
+			}
+		}
+	}
+	
+	private static class Frame {
+		
+		private final long timecode;
+		private final byte[] data;
+		
+		private Frame(long timecode, byte[] data)
+		{
+			this.timecode = timecode;
+			this.data = data;
+		}
+	}
+}
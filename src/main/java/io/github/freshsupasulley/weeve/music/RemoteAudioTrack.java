@@ -0,0 +1,103 @@
+package io.github.freshsupasulley.weeve.music;
+
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * Track that plays on an {@link AudioNode}. The position is whatever the last frame from the node said, and seeking is forwarded to the node.
+ * 
+ * <p>
+ * If it ends up on a local player anyway (no node was around when it was wrapped), it just plays the original here.
+ * </p>
+ */
+public class RemoteAudioTrack extends BaseAudioTrack {
+	
+	private final AudioTrack original;
+	
+	private volatile RemoteAudioPlayer player;
+	private volatile long position;
+	
+	/**
+	 * @param original the track the node should play. Its position is where playing starts
+	 */
+	public RemoteAudioTrack(AudioTrack original)
+	{
+		super(original.getInfo());
+		this.original = original;
+		this.position = original.getPosition();
+	}
+	
+	/**
+	 * @return the track the node plays
+	 */
+	public AudioTrack getOriginal()
+	{
+		return original;
+	}
+	
+	void attach(RemoteAudioPlayer player)
+	{
+		this.player = player;
+	}
+	
+	/**
+	 * Moves the position along as frames are played, without telling the node.
+	 */
+	void updatePosition(long position)
+	{
+		this.position = position;
+	}
+	
+	/**
+	 * @return true if it's playing on a local player instead of a node
+	 */
+	private boolean isLocal()
+	{
+		return getActiveExecutor() instanceof LocalAudioTrackExecutor;
+	}
+	
+	@Override
+	public long getPosition()
+	{
+		return isLocal() ? super.getPosition() : position;
+	}
+	
+	@Override
+	public void setPosition(long position)
+	{
+		if(isLocal())
+		{
+			super.setPosition(position);
+			return;
+		}
+		
+		this.position = position;
+		RemoteAudioPlayer player = this.player;
+		
+		if(player != null)
+		{
+			player.seek(this, position);
+		}
+	}
+	
+	@Override
+	public void process(LocalAudioTrackExecutor executor) throws Exception
+	{
+		((InternalAudioTrack) original).process(executor);
+	}
+	
+	@Override
+	protected AudioTrack makeShallowClone()
+	{
+		return new RemoteAudioTrack(original.makeClone());
+	}
+	
+	@Override
+	public AudioSourceManager getSourceManager()
+	{
+		return original.getSourceManager();
+	}
+}
@@ -36,22 +36,49 @@ public class RequestInfoBuilder {
 	
 	public String apply(AudioTrack track)
 	{
-		AudioTrackInfo info = track.getInfo();
-		StringBuilder builder = new StringBuilder();
+		return apply(track.getInfo(), showPosition ? track.getPosition() : -1);
+	}
+	
+	/**
+	 * Same as {@link #apply(AudioTrack)}, but without resolving the request's track. Queued tracks haven't started, so there's no position to show.
+	 */
+	public String apply(AudioRequest request)
+	{
+		return apply(request.getInfo(), -1);
+	}
+	
+	/**
+	 * @param position position (millis) to show, or -1 to not show it
+	 */
+	private String apply(AudioTrackInfo info, long position)
+	{
+		StringBuilder builder = new StringBuilder(128);
 		
 		// Bold
 		// Sanitize title
-		builder.append((bold ? "**" : "") + MarkdownSanitizer.sanitize(info.title) + (bold ? "**" : ""));
+		if(bold) builder.append("**");
+		builder.append(MarkdownSanitizer.sanitize(info.title));
+		if(bold) builder.append("**");
 		
 		// Duration / position
 		// If tbis isn't a stream
-		if(!info.isStream)
+		if(!info.isStream && showDuration)
 		{
-			builder.append(showDuration ? " (**" + (showPosition ? AudioHandler.parseDuration(track.getPosition()) + " / " : "") + AudioHandler.parseDuration(info.length) + "**)" : "");
+			builder.append(" (**");
+			
+			if(position >= 0)
+			{
+				AudioHandler.appendDuration(builder, position).append(" / ");
+			}
+			
+			AudioHandler.appendDuration(builder, info.length).append("**)");
 		}
 		
 		// Show link
-		builder.append(showLink ? " [(link)](<" + info.uri + ">)" : "");
+		if(showLink)
+		{
+			builder.append(" [(link)](<").append(info.uri).append(">)");
+		}
 		
 		return builder.toString();
 	}
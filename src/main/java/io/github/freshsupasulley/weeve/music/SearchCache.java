@@ -0,0 +1,161 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+
+/**
+ * Bounded LRU cache of search results, so the same search doesn't go back to the source every time. Entries expire after a while because search results go stale.
+ */
+public class SearchCache {
+	
+	private final int maxSize;
+	private final long ttl;
+	
+	/** Access ordered, so the eldest entry is the least recently used one */
+	private final LinkedHashMap<String, Cached> cache;
+	/** Every entry in the order it was put, which is also the order they expire in since they all live as long */
+	private final ArrayDeque<Cached> expiry;
+	private long hits, misses, evictions;
+	
+	/**
+	 * @param maxSize maximum number of cached searches, 0 to disable caching
+	 * @param ttl     time (millis) a search result is considered fresh
+	 */
+	public SearchCache(int maxSize, long ttl)
+	{
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.expiry = new ArrayDeque<Cached>();
+		this.cache = new LinkedHashMap<String, Cached>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest)
+			{
+				if(size() > SearchCache.this.maxSize)
+				{
+					eldest.getValue().removed = true;
+					evictions++;
+					return true;
+				}
+				
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Gets the tracks a search came back with.
+	 * 
+	 * @param source source the search was made on
+	 * @param query  the search query
+	 * @return the cached results, or null if there's nothing fresh
+	 */
+	public synchronized List<AudioTrack> get(AudioSource source, String query)
+	{
+		if(maxSize == 0) return null;
+		
+		String key = getKey(source, query);
+		Cached entry = cache.get(key);
+		
+		if(entry == null)
+		{
+			misses++;
+			return null;
+		}
+		
+		if(entry.isExpired())
+		{
+			cache.remove(key);
+			entry.removed = true;
+			evictions++;
+			misses++;
+			return null;
+		}
+		
+		hits++;
+		return entry.tracks;
+	}
+	
+	/**
+	 * Caches search results.
+	 * 
+	 * @param source source the search was made on
+	 * @param query  the search query
+	 * @param tracks results to cache. Only the first {@code limit} are kept
+	 * @param limit  max number of tracks to keep
+	 */
+	public synchronized void put(AudioSource source, String query, List<AudioTrack> tracks, int limit)
+	{
+		if(maxSize == 0) return;
+		
+		// Might as well drop whatever expired while we're here. The oldest are up front, so this stops at the first one that's still fresh
+		for(Cached head = expiry.peek(); head != null && (head.removed || head.isExpired()); head = expiry.peek())
+		{
+			expiry.poll();
+			
+			if(!head.removed)
+			{
+				cache.remove(head.key);
+				head.removed = true;
+				evictions++;
+			}
+		}
+		
+		String key = getKey(source, query);
+		Cached entry = new Cached(key, new ArrayList<AudioTrack>(tracks.subList(0, Math.min(tracks.size(), limit))));
+		Cached previous = cache.put(key, entry);
+		
+		if(previous != null)
+		{
+			previous.removed = true;
+		}
+		
+		expiry.add(entry);
+	}
+	
+	/**
+	 * Searches that only differ in case or spacing are the same search.
+	 */
+	private String getKey(AudioSource source, String query)
+	{
+		return source.name() + ":" + query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		long total = hits + misses;
+		return cache.size() + "/" + maxSize + " entries, " + hits + " hits, " + misses + " misses" + (total == 0 ? "" : " (" + (100 * hits / total) + "% hit ratio)") + ", " + evictions + " evictions";
+	}
+	
+	private class Cached {
+		
+		private final String key;
+		private final List<AudioTrack> tracks;
+		private final long expires;
+		/** Out of the cache already (replaced or evicted), it's only waiting to leave the expiry queue */
+		private boolean removed;
+		
+		private Cached(String key, List<AudioTrack> tracks)
+		{
+			this.key = key;
+			this.tracks = tracks;
+			this.expires = System.currentTimeMillis() + ttl;
+		}
+		
+		private boolean isExpired()
+		{
+			return System.currentTimeMillis() > expires;
+		}
+	}
+}
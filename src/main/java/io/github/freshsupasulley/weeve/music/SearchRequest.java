@@ -23,6 +23,12 @@ public class SearchRequest implements ButtonAction {
 		this.manager = manager;
 	}
 	
+	@Override
+	public long getRetainedSize()
+	{
+		return 96 + 2L * query.length();
+	}
+	
 	@Override
 	public void fire(InteractionHook hook, Button button, AudioHandler handler)
 	{
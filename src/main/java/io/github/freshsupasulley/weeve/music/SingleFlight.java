@@ -0,0 +1,185 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist;
+
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Collapses identical loads that are in flight at the same time into one. When a song goes viral, many guilds ask for the same URL or search within seconds; only the first goes
+ * out to the source and the rest wait for its result. Tracks can only be played once, so everyone but the first gets clones.
+ */
+public class SingleFlight {
+	
+	private final ConcurrentHashMap<String, Flight> flights;
+	private final AtomicLong loads = new AtomicLong(), saved = new AtomicLong();
+	
+	public SingleFlight()
+	{
+		this.flights = new ConcurrentHashMap<String, Flight>();
+	}
+	
+	/**
+	 * Loads an item, or waits for the same load if it's already in flight.
+	 * 
+	 * @param identifier    the final identifier (search prefix and query, or URL)
+	 * @param resultHandler handler for the result
+	 * @param loader        does the actual load when nothing is in flight
+	 */
+	public void load(String identifier, AudioLoadResultHandler resultHandler, BiConsumer<String, AudioLoadResultHandler> loader)
+	{
+		Flight created = new Flight(identifier, resultHandler);
+		
+		while(true)
+		{
+			Flight existing = flights.putIfAbsent(identifier, created);
+			
+			if(existing == null)
+			{
+				loads.incrementAndGet();
+				loader.accept(identifier, created);
+				return;
+			}
+			
+			if(existing.attach(resultHandler))
+			{
+				saved.incrementAndGet();
+				return;
+			}
+			
+			// It finished while we were looking at it, make sure it's gone and try again
+			flights.remove(identifier, existing);
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		long saved = this.saved.get();
+		long total = loads.get() + saved;
+		return saved + " saved" + (total == 0 ? "" : " (" + saved * 100 / total + "% of loads)") + ", " + flights.size() + " in flight";
+	}
+	
+	/**
+	 * One load going out to the source, and everyone waiting on it.
+	 */
+	private class Flight implements AudioLoadResultHandler {
+		
+		private final String identifier;
+		
+		// Guarded by this
+		private final List<AudioLoadResultHandler> waiters;
+		private boolean done;
+		
+		private Flight(String identifier, AudioLoadResultHandler first)
+		{
+			this.identifier = identifier;
+			this.waiters = new ArrayList<AudioLoadResultHandler>(1);
+			waiters.add(first);
+		}
+		
+		/**
+		 * @return false if the result was already handed out
+		 */
+		private synchronized boolean attach(AudioLoadResultHandler resultHandler)
+		{
+			if(done) return false;
+			
+			waiters.add(resultHandler);
+			return true;
+		}
+		
+		/**
+		 * Stops anyone else from attaching.
+		 * 
+		 * @return everyone waiting on the result
+		 */
+		private List<AudioLoadResultHandler> finish()
+		{
+			List<AudioLoadResultHandler> waiting;
+			
+			synchronized(this)
+			{
+				done = true;
+				waiting = new ArrayList<AudioLoadResultHandler>(waiters);
+			}
+			
+			flights.remove(identifier, this);
+			return waiting;
+		}
+		
+		@Override
+		public void trackLoaded(AudioTrack track)
+		{
+			deliver(finish(), (handler, first) -> handler.trackLoaded(first ? track : track.makeClone()));
+		}
+		
+		@Override
+		public void playlistLoaded(AudioPlaylist playlist)
+		{
+			deliver(finish(), (handler, first) -> handler.playlistLoaded(first ? playlist : clonePlaylist(playlist)));
+		}
+		
+		@Override
+		public void noMatches()
+		{
+			deliver(finish(), (handler, first) -> handler.noMatches());
+		}
+		
+		@Override
+		public void loadFailed(FriendlyException exception)
+		{
+			deliver(finish(), (handler, first) -> handler.loadFailed(exception));
+		}
+		
+		/**
+		 * Hands the result to everyone. One broken handler doesn't keep it from the rest.
+		 * 
+		 * @param waiting  everyone waiting on the result
+		 * @param delivery gives the result to a handler. The first one gets the original
+		 */
+		private void deliver(List<AudioLoadResultHandler> waiting, BiConsumer<AudioLoadResultHandler, Boolean> delivery)
+		{
+			for(int i = 0; i < waiting.size(); i++)
+			{
+				try {
+					delivery.accept(waiting.get(i), i == 0);
+				} catch(Exception e) {
+					Main.error("Failed to hand out the result of loading " + identifier, e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Clones every track in a playlist, keeping the same one selected.
+	 */
+	private static AudioPlaylist clonePlaylist(AudioPlaylist playlist)
+	{
+		List<AudioTrack> tracks = playlist.getTracks();
+		List<AudioTrack> clones = new ArrayList<AudioTrack>(tracks.size());
+		AudioTrack selected = null;
+		
+		for(AudioTrack track : tracks)
+		{
+			AudioTrack clone = track.makeClone();
+			clones.add(clone);
+			
+			if(track == playlist.getSelectedTrack())
+			{
+				selected = clone;
+			}
+		}
+		
+		return new BasicAudioPlaylist(playlist.getName(), clones, selected, playlist.isSearchResult());
+	}
+}
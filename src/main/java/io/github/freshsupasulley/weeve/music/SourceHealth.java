@@ -0,0 +1,219 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.jetbrains.annotations.Nullable;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Keeps track of how well each {@link AudioSource} is doing, so searches go to the healthiest one instead of one that's failing. Latency and error rate are moving averages
+ * (EWMA) over recent searches.
+ * 
+ * <p>
+ * Each source has a circuit breaker. Once its error rate gets too high it's opened and nothing goes to it for a while. After that, one search is let through as a probe: if it
+ * works the source is back, if not it stays open for another while.
+ * </p>
+ */
+public class SourceHealth {
+	
+	/** Weight of the newest sample in the moving averages */
+	private static final double ALPHA = 0.2;
+	/** Searches a source needs before its error rate can open the circuit */
+	private static final int MIN_SAMPLES = 5;
+	/** What a source is assumed to take before it's been measured (ms) */
+	private static final double ASSUMED_LATENCY = 500;
+	
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final AudioSource preferred;
+	private final double tripErrorRate;
+	private final long openTime;
+	private final Map<AudioSource, Health> sources;
+	
+	/**
+	 * @param preferred     source to use when they're all as healthy as each other
+	 * @param tripErrorRate error rate (0 to 1) that opens a source's circuit
+	 * @param openTime      how long (ms) an open circuit stays open before it's probed
+	 */
+	public SourceHealth(AudioSource preferred, double tripErrorRate, long openTime)
+	{
+		this.preferred = preferred;
+		this.tripErrorRate = tripErrorRate;
+		this.openTime = openTime;
+		this.sources = new EnumMap<AudioSource, Health>(AudioSource.class);
+		
+		for(AudioSource source : AudioSource.values())
+		{
+			sources.put(source, new Health(source));
+		}
+	}
+	
+	/**
+	 * Checks if a search can go to a source right now. If its circuit is due for a probe, this search becomes the probe.
+	 * 
+	 * @param source source to check
+	 * @return true if the search can go ahead
+	 */
+	public boolean allow(AudioSource source)
+	{
+		return source.canHandle() && sources.get(source).allow(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Records how a search went.
+	 * 
+	 * @param source source it went to
+	 * @param nanos  how long it took
+	 * @param failed true if it failed (finding nothing still counts as working)
+	 */
+	public void record(AudioSource source, long nanos, boolean failed)
+	{
+		sources.get(source).record(nanos / 1e6, failed, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Picks the healthiest source that can take a search right now.
+	 * 
+	 * @param exclude sources not to pick (like ones that already failed this request)
+	 * @return the source, or null if none are left
+	 */
+	@Nullable
+	public AudioSource pick(Set<AudioSource> exclude)
+	{
+		long now = System.currentTimeMillis();
+		AudioSource best = null;
+		double bestScore = Double.MAX_VALUE;
+		
+		for(Health health : sources.values())
+		{
+			if(exclude.contains(health.source) || !health.source.canHandle() || !health.isAvailable(now)) continue;
+			
+			double score = health.getScore();
+			
+			if(score < bestScore || (score == bestScore && health.source == preferred))
+			{
+				best = health.source;
+				bestScore = score;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * @return the source searches go to when the user didn't pick one
+	 */
+	public AudioSource getDefault()
+	{
+		AudioSource source = pick(Set.of());
+		return source == null ? preferred : source;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return sources.values().stream().map(Health::toString).collect(Collectors.joining(", "));
+	}
+	
+	private class Health {
+		
+		private final AudioSource source;
+		
+		// Guarded by this
+		private double latency = ASSUMED_LATENCY, errorRate;
+		private long samples, failures, trips;
+		private State state = State.CLOSED;
+		/** When the circuit opened, or when the probe went out while half open */
+		private long since;
+		
+		private Health(AudioSource source)
+		{
+			this.source = source;
+		}
+		
+		private synchronized boolean allow(long now)
+		{
+			switch(state)
+			{
+				case CLOSED:
+					return true;
+				case OPEN:
+				case HALF_OPEN:
+					// A probe that never reported back (like it got rate limited) doesn't hold the circuit forever
+					if(now - since < openTime) return false;
+					
+					state = State.HALF_OPEN;
+					since = now;
+					Main.log.info("Probing {}", source.getFancyName());
+					return true;
+				default:
+					return false;
+			}
+		}
+		
+		private synchronized boolean isAvailable(long now)
+		{
+			return state == State.CLOSED || now - since >= openTime;
+		}
+		
+		private synchronized void record(double millis, boolean failed, long now)
+		{
+			samples++;
+			latency = samples == 1 ? millis : ALPHA * millis + (1 - ALPHA) * latency;
+			errorRate = ALPHA * (failed ? 1 : 0) + (1 - ALPHA) * errorRate;
+			
+			if(failed)
+			{
+				failures++;
+			}
+			
+			if(state == State.HALF_OPEN)
+			{
+				if(failed)
+				{
+					open(now);
+				}
+				else
+				{
+					// Give it a clean-ish slate so one more failure doesn't open it right back up
+					state = State.CLOSED;
+					errorRate = tripErrorRate / 2;
+					Main.log.info("{} is healthy again", source.getFancyName());
+				}
+			}
+			else if(state == State.CLOSED && samples >= MIN_SAMPLES && errorRate >= tripErrorRate)
+			{
+				open(now);
+			}
+		}
+		
+		private void open(long now)
+		{
+			state = State.OPEN;
+			since = now;
+			trips++;
+			Main.log.warn("{} is failing ({}% errors), not searching it for {}ms", source.getFancyName(), Math.round(errorRate * 100), openTime);
+		}
+		
+		/**
+		 * Lower is better. Errors count a lot more than being slow.
+		 */
+		private synchronized double getScore()
+		{
+			return latency * (1 + 10 * errorRate);
+		}
+		
+		@Override
+		public synchronized String toString()
+		{
+			return source.getFancyName() + " " + state.name().toLowerCase().replace('_', '-') + " (" + Math.round(latency) + "ms, " + Math.round(errorRate * 100) + "% errors, " + failures + "/" + samples + " failed, " + trips + " trips)";
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import com.sedmelluq.discord.lavaplayer.tools.http.ExtendedHttpClientBuilder;
+import com.sedmelluq.discord.lavaplayer.tools.io.HttpConfigurable;
+
+import io.github.freshsupasulley.weeve.AudioSource;
+import io.github.freshsupasulley.weeve.Main;
+
+/**
+ * Timeouts, keep-alive and metrics for the HTTP client of each {@link AudioSource}. Every source runs its own connection pool; these show how it's holding up per host (how long
+ * requests wait for a connection, how often connections are reused instead of handshaking again, how many requests are in flight and how long responses take).
+ * 
+ * <p>
+ * Options are per source, like {@code youtube_http_connect_ms} and {@code soundcloud_http_max_per_route}.
+ * </p>
+ */
+public class SourceHttp {
+	
+	/** Context attribute with when the request started, before it had a connection */
+	private static final String START = "weeve-start";
+	
+	private final AudioSource source;
+	private final ConcurrentHashMap<String, Host> hosts;
+	/** Null until the client is built, or if lavaplayer's own pool is used */
+	private volatile PoolingHttpClientConnectionManager pool;
+	
+	private SourceHttp(AudioSource source)
+	{
+		this.source = source;
+		this.hosts = new ConcurrentHashMap<String, Host>();
+	}
+	
+	/**
+	 * Applies the options to every source that makes its own HTTP requests. Call once, before anything loads.
+	 * 
+	 * @return metrics of each configured source
+	 */
+	public static Map<AudioSource, SourceHttp> configure()
+	{
+		Map<AudioSource, SourceHttp> configured = new EnumMap<AudioSource, SourceHttp>(AudioSource.class);
+		
+		for(AudioSource source : AudioSource.values())
+		{
+			if(source.getManager() instanceof HttpConfigurable)
+			{
+				SourceHttp http = new SourceHttp(source);
+				http.apply((HttpConfigurable) source.getManager());
+				configured.put(source, http);
+			}
+		}
+		
+		return configured;
+	}
+	
+	private void apply(HttpConfigurable configurable)
+	{
+		String prefix = source.name().toLowerCase() + "_http_";
+		int connect = Main.getOption(prefix + "connect_ms", 3000, Integer::parseInt);
+		int socket = Main.getOption(prefix + "socket_ms", 3000, Integer::parseInt);
+		int lease = Main.getOption(prefix + "lease_ms", 3000, Integer::parseInt);
+		long keepAlive = Main.getOption(prefix + "keep_alive_ms", 0L, Long::parseLong);
+		int maxTotal = Main.getOption(prefix + "max_total", 0, Integer::parseInt);
+		int maxPerRoute = Main.getOption(prefix + "max_per_route", 0, Integer::parseInt);
+		
+		configurable.configureRequests(config -> RequestConfig.copy(config).setConnectTimeout(connect).setSocketTimeout(socket).setConnectionRequestTimeout(lease).build());
+		configurable.configureBuilder(builder ->
+		{
+			builder.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> context.setAttribute(START, System.nanoTime()));
+			builder.setRequestExecutor(new TimedRequestExecutor());
+			
+			// Otherwise connections are kept for as long as the server says (or forever if it doesn't)
+			if(keepAlive > 0)
+			{
+				builder.setKeepAliveStrategy((response, context) ->
+				{
+					long server = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+					return server < 0 ? keepAlive : Math.min(server, keepAlive);
+				});
+			}
+			
+			// Same pool lavaplayer makes, just sized for this source
+			if((maxTotal > 0 || maxPerRoute > 0) && builder instanceof ExtendedHttpClientBuilder)
+			{
+				((ExtendedHttpClientBuilder) builder).setConnectionManagerFactory((operator, connectionFactory) ->
+				{
+					PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(operator, connectionFactory, -1, TimeUnit.MILLISECONDS);
+					
+					if(maxTotal > 0)
+					{
+						pool.setMaxTotal(maxTotal);
+					}
+					
+					if(maxPerRoute > 0)
+					{
+						pool.setDefaultMaxPerRoute(maxPerRoute);
+					}
+					
+					this.pool = pool;
+					return pool;
+				});
+			}
+		});
+		
+		Main.log.info("{} HTTP: {}ms connect, {}ms socket, {}ms lease timeouts, {} keep-alive, pool of {} ({} per route)", source.getFancyName(), connect, socket, lease, keepAlive > 0 ? keepAlive + "ms" : "server's", maxTotal > 0 ? maxTotal : "default", maxPerRoute > 0 ? maxPerRoute : "default");
+	}
+	
+	@Override
+	public String toString()
+	{
+		PoolingHttpClientConnectionManager pool = this.pool;
+		String name = source.getFancyName();
+		
+		if(pool != null)
+		{
+			PoolStats stats = pool.getTotalStats();
+			name += " [" + stats.getLeased() + "/" + stats.getMax() + " leased, " + stats.getAvailable() + " idle, " + stats.getPending() + " waiting]";
+		}
+		
+		return hosts.isEmpty() ? name + " idle" : hosts.values().stream().map(Host::toString).collect(Collectors.joining(", ", name + " (", ")"));
+	}
+	
+	/**
+	 * @param host full host name
+	 * @return the host's domain, so hosts that rotate (like video CDNs) are counted together
+	 */
+	private static String getDomain(String host)
+	{
+		int last = host.lastIndexOf('.');
+		int domain = last <= 0 ? -1 : host.lastIndexOf('.', last - 1);
+		return domain < 0 ? host : host.substring(domain + 1);
+	}
+	
+	/**
+	 * Times requests from when they got a connection. Runs after the pool leased one (and connected, if it's new) and until the response headers are in.
+	 */
+	private class TimedRequestExecutor extends HttpRequestExecutor {
+		
+		@Override
+		public HttpResponse execute(HttpRequest request, HttpClientConnection connection, HttpContext context) throws IOException, HttpException
+		{
+			long sent = System.nanoTime();
+			Object start = context.getAttribute(START);
+			HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+			Host host = hosts.computeIfAbsent(target == null ? "unknown" : getDomain(target.getHostName()), Host::new);
+			
+			// Nothing has been sent on it yet, so it was just opened
+			boolean opened = connection.getMetrics().getRequestCount() == 0;
+			boolean tls = connection instanceof ManagedHttpClientConnection && ((ManagedHttpClientConnection) connection).getSSLSession() != null;
+			host.started(start instanceof Long ? sent - (Long) start : 0, opened, opened && tls);
+			
+			boolean failed = true;
+			
+			try {
+				HttpResponse response = super.execute(request, connection, context);
+				failed = false;
+				return response;
+			} finally {
+				host.finished(System.nanoTime() - sent, failed);
+			}
+		}
+	}
+	
+	private static class Host {
+		
+		private final String name;
+		private final AtomicLong requests = new AtomicLong(), inFlight = new AtomicLong(), opened = new AtomicLong(), handshakes = new AtomicLong(), failures = new AtomicLong();
+		private final AtomicLong leaseNanos = new AtomicLong(), responseNanos = new AtomicLong();
+		
+		private Host(String name)
+		{
+			this.name = name;
+		}
+		
+		/**
+		 * @param lease  how long (nanos) it waited for a connection, including connecting if it's new
+		 * @param opened if the connection is new instead of reused
+		 * @param tls    if a TLS handshake was made for it
+		 */
+		private void started(long lease, boolean opened, boolean tls)
+		{
+			requests.incrementAndGet();
+			inFlight.incrementAndGet();
+			leaseNanos.addAndGet(lease);
+			
+			if(opened)
+			{
+				this.opened.incrementAndGet();
+			}
+			
+			if(tls)
+			{
+				handshakes.incrementAndGet();
+			}
+		}
+		
+		private void finished(long response, boolean failed)
+		{
+			inFlight.decrementAndGet();
+			responseNanos.addAndGet(response);
+			
+			if(failed)
+			{
+				failures.incrementAndGet();
+			}
+		}
+		
+		@Override
+		public String toString()
+		{
+			long requests = this.requests.get();
+			return name + ": " + requests + " requests, " + inFlight.get() + " in flight, " + (requests - opened.get()) * 100 / Math.max(1, requests) + "% reused, " + handshakes.get() + " handshakes, avg " + leaseNanos.get() / Math.max(1, requests) / 1000000 + "ms lease, " + responseNanos.get() / Math.max(1, requests) / 1000000 + "ms response, " + failures.get() + " failed";
+		}
+	}
+}
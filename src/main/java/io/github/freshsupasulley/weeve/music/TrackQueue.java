@@ -0,0 +1,410 @@
+package io.github.freshsupasulley.weeve.music;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sedmelluq.discord.lavaplayer.tools.Units;
+
+/**
+ * Indexed queue of {@link AudioRequest}s backed by a persistent implicit treap. Every node knows the size and total duration of its subtree, so looking up, removing or moving any
+ * position and getting the start time of any position is O(log n).
+ * 
+ * <p>
+ * Nodes are never modified once created, mutations copy the path they touch instead. Writers are serialized on this object, while readers can grab a {@link #snapshot()} without
+ * locking and keep reading it while the queue changes underneath.
+ * </p>
+ */
+public class TrackQueue implements Iterable<AudioRequest> {
+	
+	private volatile Node root;
+	
+	/**
+	 * @return an immutable view of the queue as it is right now
+	 */
+	public Snapshot snapshot()
+	{
+		return new Snapshot(root);
+	}
+	
+	public int size()
+	{
+		return size(root);
+	}
+	
+	public boolean isEmpty()
+	{
+		return root == null;
+	}
+	
+	/**
+	 * @param index position in the queue
+	 * @return the request at that position
+	 */
+	public AudioRequest get(int index)
+	{
+		return snapshot().get(index);
+	}
+	
+	@Override
+	public Iterator<AudioRequest> iterator()
+	{
+		return snapshot().iterator();
+	}
+	
+	/**
+	 * Inserts a batch of requests, keeping their order.
+	 * 
+	 * @param index    position of the first request of the batch
+	 * @param requests requests to insert
+	 */
+	public synchronized void addAll(int index, List<AudioRequest> requests)
+	{
+		checkPosition(index, size());
+		
+		Node block = null;
+		
+		for(AudioRequest request : requests)
+		{
+			block = merge(block, new Node(request));
+		}
+		
+		Node[] halves = split(root, index);
+		root = merge(merge(halves[0], block), halves[1]);
+	}
+	
+	/**
+	 * Removes the first request.
+	 * 
+	 * @return the removed request, or null if the queue is empty
+	 */
+	public synchronized AudioRequest poll()
+	{
+		return root == null ? null : remove(0);
+	}
+	
+	/**
+	 * @param index position to remove
+	 * @return the removed request
+	 */
+	public synchronized AudioRequest remove(int index)
+	{
+		checkIndex(index, size());
+		
+		Node[] left = split(root, index);
+		Node[] right = split(left[1], 1);
+		root = merge(left[0], right[1]);
+		return right[0].value;
+	}
+	
+	/**
+	 * Removes up to {@code count} requests from the front.
+	 * 
+	 * @param count number of requests to remove
+	 * @return number of requests that were actually removed
+	 */
+	public synchronized int removeFirst(int count)
+	{
+		int removed = Math.max(0, Math.min(count, size()));
+		root = split(root, removed)[1];
+		return removed;
+	}
+	
+	/**
+	 * Moves a request to another position.
+	 * 
+	 * @param from current position
+	 * @param to   position it should end up at
+	 * @return the moved request
+	 */
+	public synchronized AudioRequest move(int from, int to)
+	{
+		int size = size();
+		checkIndex(from, size);
+		checkIndex(to, size);
+		
+		Node[] left = split(root, from);
+		Node[] right = split(left[1], 1);
+		Node rest = merge(left[0], right[1]);
+		
+		Node[] halves = split(rest, to);
+		root = merge(merge(halves[0], right[0]), halves[1]);
+		return right[0].value;
+	}
+	
+	/**
+	 * Shuffles the whole queue.
+	 */
+	public synchronized void shuffle(Random random)
+	{
+		List<AudioRequest> requests = new ArrayList<AudioRequest>(size());
+		collect(root, requests);
+		Collections.shuffle(requests, random);
+		
+		Node shuffled = null;
+		
+		for(AudioRequest request : requests)
+		{
+			shuffled = merge(shuffled, new Node(request));
+		}
+		
+		root = shuffled;
+	}
+	
+	public synchronized void clear()
+	{
+		root = null;
+	}
+	
+	private static void checkIndex(int index, int size)
+	{
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+	}
+	
+	private static void checkPosition(int index, int size)
+	{
+		if(index < 0 || index > size)
+			throw new IndexOutOfBoundsException("Position " + index + " out of bounds for size " + size);
+	}
+	
+	private static int size(Node node)
+	{
+		return node == null ? 0 : node.size;
+	}
+	
+	private static long duration(Node node)
+	{
+		return node == null ? 0 : node.duration;
+	}
+	
+	private static int unknown(Node node)
+	{
+		return node == null ? 0 : node.unknown;
+	}
+	
+	/**
+	 * Joins two treaps where everything in {@code left} comes before everything in {@code right}.
+	 */
+	private static Node merge(Node left, Node right)
+	{
+		if(left == null) return right;
+		if(right == null) return left;
+		
+		if(left.priority > right.priority)
+		{
+			return left.with(left.left, merge(left.right, right));
+		}
+		
+		return right.with(merge(left, right.left), right.right);
+	}
+	
+	/**
+	 * Splits a treap into the first {@code count} nodes and the rest.
+	 */
+	private static Node[] split(Node node, int count)
+	{
+		if(node == null) return new Node[2];
+		
+		if(size(node.left) >= count)
+		{
+			Node[] halves = split(node.left, count);
+			halves[1] = node.with(halves[1], node.right);
+			return halves;
+		}
+		
+		Node[] halves = split(node.right, count - size(node.left) - 1);
+		halves[0] = node.with(node.left, halves[0]);
+		return halves;
+	}
+	
+	private static void collect(Node node, List<AudioRequest> requests)
+	{
+		if(node == null) return;
+		
+		collect(node.left, requests);
+		requests.add(node.value);
+		collect(node.right, requests);
+	}
+	
+	/**
+	 * Immutable view of the queue at some point in time.
+	 */
+	public static class Snapshot implements Iterable<AudioRequest> {
+		
+		private final Node root;
+		
+		private Snapshot(Node root)
+		{
+			this.root = root;
+		}
+		
+		public int size()
+		{
+			return TrackQueue.size(root);
+		}
+		
+		public boolean isEmpty()
+		{
+			return root == null;
+		}
+		
+		/**
+		 * @param index position in the queue
+		 * @return the request at that position
+		 */
+		public AudioRequest get(int index)
+		{
+			checkIndex(index, size());
+			
+			for(Node node = root;;)
+			{
+				int leftSize = TrackQueue.size(node.left);
+				
+				if(index < leftSize)
+				{
+					node = node.left;
+				}
+				else if(index == leftSize)
+				{
+					return node.value;
+				}
+				else
+				{
+					index -= leftSize + 1;
+					node = node.right;
+				}
+			}
+		}
+		
+		/**
+		 * Gets how long it takes to get through everything queued before a position.
+		 * 
+		 * @param index position in the queue
+		 * @return total duration (millis) of the requests before it, or {@link Units#DURATION_MS_UNKNOWN} if any of them has an unknown duration (like streams)
+		 */
+		public long getStartTime(int index)
+		{
+			checkPosition(index, size());
+			
+			long duration = 0;
+			int unknown = 0;
+			
+			for(Node node = root; node != null;)
+			{
+				int leftSize = TrackQueue.size(node.left);
+				
+				if(index <= leftSize)
+				{
+					node = node.left;
+				}
+				else
+				{
+					// Everything left of this node plus the node itself is before the index
+					duration += TrackQueue.duration(node.left) + node.ownDuration;
+					unknown += TrackQueue.unknown(node.left) + (node.ownUnknown ? 1 : 0);
+					index -= leftSize + 1;
+					node = node.right;
+				}
+			}
+			
+			return unknown == 0 ? duration : Units.DURATION_MS_UNKNOWN;
+		}
+		
+		/**
+		 * @return total duration (millis) of the whole queue, or {@link Units#DURATION_MS_UNKNOWN} if anything in it has an unknown duration
+		 */
+		public long getDuration()
+		{
+			return unknown(root) == 0 ? duration(root) : Units.DURATION_MS_UNKNOWN;
+		}
+		
+		@Override
+		public Iterator<AudioRequest> iterator()
+		{
+			// In-order walk with an explicit stack
+			return new Iterator<AudioRequest>()
+			{
+				private final ArrayList<Node> stack = new ArrayList<Node>();
+				
+				{
+					pushLeft(root);
+				}
+				
+				private void pushLeft(Node node)
+				{
+					for(; node != null; node = node.left)
+					{
+						stack.add(node);
+					}
+				}
+				
+				@Override
+				public boolean hasNext()
+				{
+					return !stack.isEmpty();
+				}
+				
+				@Override
+				public AudioRequest next()
+				{
+					if(stack.isEmpty())
+						throw new NoSuchElementException();
+					
+					Node node = stack.remove(stack.size() - 1);
+					pushLeft(node.right);
+					return node.value;
+				}
+			};
+		}
+	}
+	
+	private static class Node {
+		
+		private final AudioRequest value;
+		private final int priority;
+		private final Node left, right;
+		
+		/** Duration of this request alone, 0 if unknown */
+		private final long ownDuration;
+		private final boolean ownUnknown;
+		
+		// Subtree totals
+		private final int size;
+		private final long duration;
+		private final int unknown;
+		
+		private Node(AudioRequest value)
+		{
+			this(value, ThreadLocalRandom.current().nextInt(), null, null);
+		}
+		
+		private Node(AudioRequest value, int priority, Node left, Node right)
+		{
+			this.value = value;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			
+			long length = value.getDuration();
+			this.ownUnknown = length == Units.DURATION_MS_UNKNOWN;
+			this.ownDuration = ownUnknown ? 0 : length;
+			
+			this.size = TrackQueue.size(left) + 1 + TrackQueue.size(right);
+			this.duration = TrackQueue.duration(left) + ownDuration + TrackQueue.duration(right);
+			this.unknown = TrackQueue.unknown(left) + (ownUnknown ? 1 : 0) + TrackQueue.unknown(right);
+		}
+		
+		/**
+		 * @return copy of this node with new children
+		 */
+		private Node with(Node left, Node right)
+		{
+			return new Node(value, priority, left, right);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package io.github.freshsupasulley.weeve.music;
 
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 
 import net.dv8tion.jda.api.entities.channel.middleman.AudioChannel;
 import net.dv8tion.jda.api.interactions.InteractionHook;
@@ -19,9 +20,24 @@ public class TrackSelected implements ButtonAction {
 		this.audioChannel = audioChannel;
 	}
 	
+	@Override
+	public long getRetainedSize()
+	{
+		// Mostly the track's info strings (2 bytes a char)
+		AudioTrackInfo info = track.getInfo();
+		return 256 + 2L * (length(info.title) + length(info.author) + length(info.identifier) + length(info.uri) + length(info.artworkUrl));
+	}
+	
+	private static int length(String string)
+	{
+		return string == null ? 0 : string.length();
+	}
+	
 	@Override
 	public void fire(InteractionHook hook, Button button, AudioHandler handler)
 	{
-		handler.loadAndPlay(playNext, track.getInfo().uri, audioChannel, hook.getInteraction().getMessageChannel());
+		// The track was already resolved, no need to ask the source for it again
+		// Clone it because the same search result can be picked more than once (and shows up in other guilds through the search cache)
+		handler.queueTrack(playNext, track.makeClone(), audioChannel, hook.getInteraction().getMessageChannel());
 	}
 }
@@ -0,0 +1,267 @@
+package io.github.freshsupasulley.weeve.music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioItem;
+import com.sedmelluq.discord.lavaplayer.track.AudioReference;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+public class QueueJournalTest {
+	
+	private static final long GUILD = 1234, CHANNEL = 5678;
+	
+	@TempDir
+	Path directory;
+	
+	private AudioPlayerManager playerManager;
+	private TestSourceManager source;
+	
+	@BeforeEach
+	void setUp()
+	{
+		playerManager = new DefaultAudioPlayerManager();
+		source = new TestSourceManager();
+		playerManager.registerSourceManager(source);
+	}
+	
+	@AfterEach
+	void tearDown()
+	{
+		playerManager.shutdown();
+	}
+	
+	@Test
+	void replaysQueueAndPlayingTrack() throws Exception
+	{
+		QueueJournal journal = new QueueJournal(directory, playerManager, 1024 * 1024);
+		assertEquals(List.of(), journal.replay());
+		
+		journal.queued(GUILD, 0, List.of(request("a"), request("b"), request("c")));
+		journal.removedFirst(GUILD, 1);
+		journal.playing(GUILD, request("a"), 42);
+		journal.removed(GUILD, 1);
+		journal.position(GUILD, 30000);
+		journal.loop(GUILD, true);
+		journal.close();
+		
+		List<QueueJournal.RestoredGuild> restored = new QueueJournal(directory, playerManager, 1024 * 1024).replay();
+		assertEquals(1, restored.size());
+		
+		QueueJournal.RestoredGuild guild = restored.get(0);
+		assertEquals(GUILD, guild.getGuildID());
+		assertEquals(42, guild.getTextChannelID());
+		assertEquals("a", guild.getPlaying().getInfo().title);
+		assertEquals(30000, guild.getPosition());
+		assertEquals(true, guild.isLoop());
+		assertEquals(List.of("b"), titles(guild.getQueue()));
+		assertEquals(CHANNEL, guild.getQueue().get(0).getChannelID());
+	}
+	
+	@Test
+	void replaysAcrossCompactions() throws Exception
+	{
+		// Small enough that nearly every batch rolls the log over
+		QueueJournal journal = new QueueJournal(directory, playerManager, 1);
+		journal.replay();
+		
+		for(int i = 0; i < 20; i++)
+		{
+			journal.queued(GUILD, i, List.of(request("" + i)));
+		}
+		
+		journal.removedFirst(GUILD, 5);
+		journal.close();
+		
+		QueueJournal.RestoredGuild guild = new QueueJournal(directory, playerManager, 1).replay().get(0);
+		assertEquals(15, guild.getQueue().size());
+		assertEquals("5", guild.getQueue().get(0).getInfo().title);
+		assertEquals("19", guild.getQueue().get(14).getInfo().title);
+	}
+	
+	@Test
+	void dropsTornRecordAtTheEnd() throws Exception
+	{
+		QueueJournal journal = new QueueJournal(directory, playerManager, 1024 * 1024);
+		journal.replay();
+		journal.queued(GUILD, 0, List.of(request("a"), request("b")));
+		journal.close();
+		
+		// A crash halfway through writing the next record
+		try(DataOutputStream out = new DataOutputStream(append()))
+		{
+			out.writeInt(100);
+			out.writeInt(0);
+			out.write(new byte[10]);
+		}
+		
+		QueueJournal.RestoredGuild guild = new QueueJournal(directory, playerManager, 1024 * 1024).replay().get(0);
+		assertNull(guild.getPlaying());
+		assertEquals(List.of("a", "b"), titles(guild.getQueue()));
+	}
+	
+	@Test
+	void dropsEverythingFromCorruptRecordOn() throws Exception
+	{
+		QueueJournal journal = new QueueJournal(directory, playerManager, 1024 * 1024);
+		journal.replay();
+		journal.queued(GUILD, 0, List.of(request("a")));
+		journal.close();
+		
+		// Replaying put "a" in the snapshot, so the new log only has "b" and "c"
+		journal = new QueueJournal(directory, playerManager, 1024 * 1024);
+		journal.replay();
+		journal.queued(GUILD, 1, List.of(request("b")));
+		journal.queued(GUILD, 2, List.of(request("c")));
+		journal.close();
+		
+		// Flip a byte of the first record past its length and checksum, "c" is intact but comes after it
+		Path log = getLog();
+		byte[] bytes = Files.readAllBytes(log);
+		bytes[8] ^= 0xFF;
+		Files.write(log, bytes);
+		
+		QueueJournal.RestoredGuild guild = new QueueJournal(directory, playerManager, 1024 * 1024).replay().get(0);
+		assertEquals(List.of("a"), titles(guild.getQueue()));
+	}
+	
+	@Test
+	void dropsEverythingFromUnknownRecordOn() throws Exception
+	{
+		QueueJournal journal = new QueueJournal(directory, playerManager, 1024 * 1024);
+		journal.replay();
+		journal.queued(GUILD, 0, List.of(request("a")));
+		journal.close();
+		
+		// Intact, but of a type this build doesn't know (like one from a newer build)
+		try(DataOutputStream out = new DataOutputStream(append()))
+		{
+			byte[] record = {99, 0, 0, 0, 0, 0, 0, 4, (byte) 0xD2};
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			out.writeInt(record.length);
+			out.writeInt((int) crc.getValue());
+			out.write(record);
+		}
+		
+		QueueJournal.RestoredGuild guild = new QueueJournal(directory, playerManager, 1024 * 1024).replay().get(0);
+		assertEquals(List.of("a"), titles(guild.getQueue()));
+	}
+	
+	private AudioRequest request(String title)
+	{
+		return new AudioRequest(new TestTrack(new AudioTrackInfo(title, "author", 1000, title, false, "test://" + title), source), GUILD, CHANNEL);
+	}
+	
+	private static List<String> titles(List<AudioRequest> requests)
+	{
+		return requests.stream().map(request -> request.getInfo().title).collect(Collectors.toList());
+	}
+	
+	/**
+	 * @return the log that's currently written to
+	 */
+	private Path getLog() throws IOException
+	{
+		try(Stream<Path> files = Files.list(directory))
+		{
+			return files.filter(file -> file.getFileName().toString().endsWith(".wal")).findFirst().orElseThrow();
+		}
+	}
+	
+	private OutputStream append() throws IOException
+	{
+		return Files.newOutputStream(getLog(), StandardOpenOption.APPEND);
+	}
+	
+	private static class TestSourceManager implements AudioSourceManager {
+		
+		@Override
+		public String getSourceName()
+		{
+			return "test";
+		}
+		
+		@Override
+		public AudioItem loadItem(AudioPlayerManager manager, AudioReference reference)
+		{
+			return null;
+		}
+		
+		@Override
+		public boolean isTrackEncodable(AudioTrack track)
+		{
+			return true;
+		}
+		
+		@Override
+		public void encodeTrack(AudioTrack track, DataOutput output)
+		{
+			// Nothing past the info
+		}
+		
+		@Override
+		public AudioTrack decodeTrack(AudioTrackInfo trackInfo, DataInput input)
+		{
+			return new TestTrack(trackInfo, this);
+		}
+		
+		@Override
+		public void shutdown()
+		{
+		}
+	}
+	
+	private static class TestTrack extends BaseAudioTrack {
+		
+		private final TestSourceManager source;
+		
+		private TestTrack(AudioTrackInfo info, TestSourceManager source)
+		{
+			super(info);
+			this.source = source;
+		}
+		
+		@Override
+		public void process(LocalAudioTrackExecutor executor)
+		{
+			// Never played
+		}
+		
+		@Override
+		protected AudioTrack makeShallowClone()
+		{
+			return new TestTrack(getInfo(), source);
+		}
+		
+		@Override
+		public AudioSourceManager getSourceManager()
+		{
+			return source;
+		}
+	}
+}